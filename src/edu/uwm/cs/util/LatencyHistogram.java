@@ -0,0 +1,118 @@
+package edu.uwm.cs.util;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of latencies (in nanoseconds) using a fixed amount of memory.
+ * Buckets are log-linear: each power of two is split into {@link #SUB_BUCKETS}
+ * equal buckets, so that any percentile is accurate to about 3%.
+ * Latencies of more than about two minutes (2<sup>37</sup> ns) all go into the
+ * last bucket, but the maximum is kept exactly.
+ * Not thread-safe: callers must synchronize.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 5;
+	public static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_BITS = 36;
+	private static final int NUM_BUCKETS = (MAX_BITS - SUB_BITS + 2) * SUB_BUCKETS;
+
+	private final long[] counts = new long[NUM_BUCKETS];
+	private long count;
+	private long max;
+
+	/**
+	 * Record a latency.  Negative latencies (which can happen when clocks
+	 * on different machines disagree) are recorded as zero.
+	 * @param nanos latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		++counts[index(nanos)];
+		++count;
+		if (nanos > max) max = nanos;
+	}
+
+	/**
+	 * Add all the latencies recorded in another histogram to this one.
+	 * @param other histogram to add, must not be null
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < NUM_BUCKETS; ++i) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		if (other.max > max) max = other.max;
+	}
+
+	/**
+	 * Forget all recorded latencies.
+	 */
+	public void clear() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		max = 0;
+	}
+
+	/**
+	 * Return the number of latencies recorded.
+	 * @return number of latencies
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Return the largest latency recorded.
+	 * @return maximum latency in nanoseconds, or 0 if none
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Return (an upper bound on) the latency that the given fraction
+	 * of recorded latencies are no larger than.
+	 * @param p fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+	 * @return latency in nanoseconds, or 0 if nothing is recorded
+	 */
+	public long getPercentile(double p) {
+		if (count == 0) return 0;
+		long rank = Math.max(1, (long)Math.ceil(p * count));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; ++i) {
+			seen += counts[i];
+			if (seen >= rank) return Math.min(max, highest(i));
+		}
+		return max;
+	}
+
+	/**
+	 * Return a one-line summary: the median, 99th and 99.9th percentiles
+	 * and the maximum, in milliseconds.
+	 */
+	@Override
+	public String toString() {
+		if (count == 0) return "none";
+		return String.format("p50 %.2f, p99 %.2f, p99.9 %.2f, max %.2f ms (n=%d)",
+				getPercentile(0.5) / 1e6, getPercentile(0.99) / 1e6, getPercentile(0.999) / 1e6,
+				max / 1e6, count);
+	}
+
+	private static int index(long v) {
+		if (v < SUB_BUCKETS) return (int)v;
+		int e = 63 - Long.numberOfLeadingZeros(v);
+		if (e > MAX_BITS) return NUM_BUCKETS - 1;
+		int mantissa = (int)(v >>> (e - SUB_BITS)); // SUB_BUCKETS <= mantissa < 2*SUB_BUCKETS
+		return (e - SUB_BITS + 1) * SUB_BUCKETS + mantissa - SUB_BUCKETS;
+	}
+
+	/**
+	 * Return the largest value that goes in the given bucket.
+	 */
+	private static long highest(int i) {
+		if (i < SUB_BUCKETS) return i;
+		int shift = i / SUB_BUCKETS - 1;
+		long mantissa = i % SUB_BUCKETS + SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
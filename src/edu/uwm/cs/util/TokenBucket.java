@@ -0,0 +1,55 @@
+package edu.uwm.cs.util;
+
+/**
+ * A rate limiter: tokens accumulate at a steady rate up to a maximum (the burst size),
+ * and each action that is allowed takes one.  So over any period, the number
+ * of actions allowed is at most the burst size plus the rate times the period.
+ */
+public class TokenBucket {
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	private final double perNano;
+	private final double capacity;
+	private double tokens;
+	private long last;
+
+	/**
+	 * Create a bucket that starts full.
+	 * @param perSecond tokens added per second, must be positive
+	 * @param burst most tokens the bucket holds, must be at least one
+	 */
+	public TokenBucket(double perSecond, double burst) {
+		if (perSecond <= 0 || burst < 1) throw new IllegalArgumentException("bad rate or burst size");
+		perNano = perSecond / NANOS_PER_SECOND;
+		capacity = burst;
+		tokens = burst;
+		last = System.nanoTime();
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - last) * perNano);
+		last = now;
+	}
+
+	/**
+	 * Take a token if there is one.
+	 * @return whether a token was taken
+	 */
+	public synchronized boolean tryTake() {
+		refill();
+		if (tokens < 1) return false;
+		tokens -= 1;
+		return true;
+	}
+
+	/**
+	 * Return how long until a token will be available.
+	 * @return nanoseconds to wait, 0 if a token is available now
+	 */
+	public synchronized long getWait() {
+		refill();
+		if (tokens >= 1) return 0;
+		return (long)Math.ceil((1 - tokens) / perNano);
+	}
+}
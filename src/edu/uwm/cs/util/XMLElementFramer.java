@@ -0,0 +1,308 @@
+package edu.uwm.cs.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An incremental splitter for a stream of UTF-8 encoded XML that consists of
+ * a single top-level element with many nested elements, as used in our network protocol.
+ * Bytes can be fed in whatever chunks they happen to arrive in (as with non-blocking I/O);
+ * the attributes of the top-level element and the complete text of each nested
+ * element are passed on to a {@link Listener} as soon as they are available.
+ * The nested elements are not parsed here: that can be done with an {@link XMLTokenizer}
+ * over just the bytes of the element.
+ * <p>
+ * The framer only looks at the ASCII characters &lt; &gt; / ? ! - and quotes,
+ * which never occur inside a multi-byte UTF-8 sequence, and so never needs to decode
+ * characters except for top-level attribute values.
+ */
+public class XMLElementFramer {
+
+	public static final int DEFAULT_MAX_ELEMENT_SIZE = 1 << 20;
+
+	/**
+	 * What the framer reports as it goes along.
+	 */
+	public interface Listener {
+		/**
+		 * An attribute of the top-level element has been read.
+		 * @param name attribute name, never null
+		 * @param value attribute value with entities converted, never null
+		 * @throws IOException if the listener rejects the attribute
+		 */
+		public void attribute(String name, String value) throws IOException;
+
+		/**
+		 * The start tag of the top-level element has been completed.
+		 * @throws IOException if the listener rejects the element
+		 */
+		public default void startTagClosed() throws IOException { }
+
+		/**
+		 * A complete nested element has been read.
+		 * The array is only valid during this call.
+		 * @param buf array holding the element text (UTF-8)
+		 * @param off offset of the element's initial &lt;
+		 * @param len number of bytes through the final &gt;
+		 * @throws IOException if the listener rejects the element
+		 */
+		public void element(byte[] buf, int off, int len) throws IOException;
+
+		/**
+		 * The top-level element has ended.
+		 * @throws IOException if the listener has a problem with this
+		 */
+		public void end() throws IOException;
+	}
+
+	private enum State { TEXT, LT, OPEN, END, PI, BANG, COMMENT, DECL, DONE };
+
+	private final Listener listener;
+	private int maxElementSize = DEFAULT_MAX_ELEMENT_SIZE;
+
+	private State state = State.TEXT;
+	private int depth = 0;
+	private byte quote = 0;
+	private byte prev = 0;
+	private int dashes = 0;
+
+	private byte[] element = new byte[256];
+	private int elementLength = 0;
+	private boolean capturing = false;
+
+	private byte[] root = new byte[64];
+	private int rootLength = 0;
+	private int rootMark = 0;
+	private String rootName = null;
+
+	/**
+	 * Create a framer that reports to the given listener.
+	 * @param l listener, must not be null
+	 */
+	public XMLElementFramer(Listener l) {
+		listener = l;
+	}
+
+	/**
+	 * Set the largest nested element (in bytes) that will be accepted.
+	 * @param max maximum size, must be positive
+	 */
+	public void setMaxElementSize(int max) {
+		if (max <= 0) throw new IllegalArgumentException("maximum element size must be positive");
+		maxElementSize = max;
+	}
+
+	/**
+	 * Return the name of the top-level element, or null if not yet known.
+	 * @return name of top-level element
+	 */
+	public String getRootName() {
+		return rootName;
+	}
+
+	/**
+	 * Return the current nesting depth: 0 before the top-level
+	 * element starts, 1 within the top-level element etc.
+	 * @return nesting depth
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Return whether the top-level element has been completely read.
+	 * Any further bytes are ignored.
+	 * @return whether the top-level element is finished
+	 */
+	public boolean isDone() {
+		return state == State.DONE;
+	}
+
+	/**
+	 * Stop framing, because what follows is not XML.  This is meant to be called
+	 * by the listener (typically when the start tag closes): the current call
+	 * to {@link #feed(byte[], int, int)} returns without processing any more bytes.
+	 */
+	public void stop() {
+		state = State.DONE;
+	}
+
+	/**
+	 * Continue framing after {@link #stop()}, with bytes that turn out to be XML
+	 * after all (for instance, once they have been decompressed).
+	 */
+	public void resume() {
+		if (state == State.DONE && depth > 0) state = State.TEXT;
+	}
+
+	/**
+	 * Feed some more bytes to the framer.  Listener calls are made during this call.
+	 * @param buf array holding bytes
+	 * @param off offset to start at
+	 * @param len number of bytes to process
+	 * @return number of bytes consumed: this is less than len only if the top-level element ended
+	 * or framing was stopped.
+	 * @throws IOException if the XML is malformed or the listener throws an exception
+	 */
+	public int feed(byte[] buf, int off, int len) throws IOException {
+		for (int i=0; i < len; ++i) {
+			if (state == State.DONE) return i;
+			feed(buf[off+i]);
+		}
+		return len;
+	}
+
+	private void feed(byte b) throws IOException {
+		if (capturing) capture(b);
+		switch (state) {
+		case TEXT:
+			if (b == '<') {
+				state = State.LT;
+				if (depth == 1) {
+					capturing = true;
+					elementLength = 0;
+					capture(b);
+				}
+			}
+			break;
+		case LT:
+			if (b == '/') {
+				if (depth == 0) throw new IOException("malformed XML: end tag before any element");
+				if (depth == 1) capturing = false;
+				state = State.END;
+			} else if (b == '?') {
+				if (depth == 1) capturing = false;
+				state = State.PI;
+			} else if (b == '!') {
+				if (depth == 1) capturing = false;
+				state = State.BANG;
+				dashes = 0;
+			} else {
+				state = State.OPEN;
+				quote = 0;
+				if (depth == 0) {
+					rootLength = 0;
+					rootMark = 0;
+					addRoot((byte)'<');
+					addRoot(b);
+				}
+			}
+			break;
+		case OPEN:
+			if (depth == 0) addRoot(b);
+			if (quote != 0) {
+				if (b == quote) {
+					quote = 0;
+					if (depth == 0) rootAttribute();
+				}
+			} else if (b == '"' || b == '\'') {
+				quote = b;
+			} else if (b == '>') {
+				boolean empty = prev == '/';
+				state = State.TEXT;
+				if (depth == 0) {
+					rootName();
+					++depth;
+					listener.startTagClosed();
+					if (empty) endRoot();
+				} else if (!empty) {
+					++depth;
+				} else if (depth == 1) {
+					emit();
+				}
+			}
+			break;
+		case END:
+			if (b == '>') {
+				state = State.TEXT;
+				--depth;
+				if (depth == 0) endRoot();
+				else if (depth == 1) emit();
+			}
+			break;
+		case PI:
+			if (b == '>' && prev == '?') state = State.TEXT;
+			break;
+		case BANG:
+			if (b == '-') {
+				if (++dashes == 2) {
+					state = State.COMMENT;
+					dashes = 0;
+				}
+			} else {
+				state = b == '>' ? State.TEXT : State.DECL;
+			}
+			break;
+		case COMMENT:
+			if (b == '>' && dashes >= 2) state = State.TEXT;
+			else if (b == '-') ++dashes;
+			else dashes = 0;
+			break;
+		case DECL:
+			if (b == '>') state = State.TEXT;
+			break;
+		case DONE:
+			break;
+		}
+		prev = b;
+	}
+
+	private void capture(byte b) throws IOException {
+		if (elementLength == element.length) {
+			if (elementLength >= maxElementSize) throw new IOException("XML element too large");
+			element = Arrays.copyOf(element, Math.min(maxElementSize, elementLength * 2));
+		}
+		element[elementLength++] = b;
+	}
+
+	private void emit() throws IOException {
+		capturing = false;
+		listener.element(element, 0, elementLength);
+		elementLength = 0;
+	}
+
+	private void endRoot() throws IOException {
+		state = State.DONE;
+		depth = 0;
+		listener.end();
+	}
+
+	private void addRoot(byte b) throws IOException {
+		if (rootLength == root.length) {
+			if (rootLength >= maxElementSize) throw new IOException("XML start tag too large");
+			root = Arrays.copyOf(root, rootLength * 2);
+		}
+		root[rootLength++] = b;
+	}
+
+	private void rootName() {
+		if (rootName != null) return;
+		int i = 1;
+		while (i < rootLength && !isNameEnd(root[i])) ++i;
+		rootName = new String(root, 1, i-1, StandardCharsets.UTF_8);
+	}
+
+	private static boolean isNameEnd(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '/' || b == '>';
+	}
+
+	/**
+	 * An attribute value of the root just closed: report it.
+	 */
+	private void rootAttribute() throws IOException {
+		rootName();
+		String s = new String(root, rootMark, rootLength - rootMark, StandardCharsets.UTF_8);
+		rootMark = rootLength;
+		if (rootName.length() > 0 && s.startsWith("<" + rootName)) {
+			s = s.substring(rootName.length() + 1);
+		}
+		int eq = s.indexOf('=');
+		if (eq < 0) throw new IOException("malformed XML: expected '=' in attribute");
+		String name = s.substring(0, eq).trim();
+		String value = s.substring(eq+1).trim();
+		if (name.isEmpty() || value.length() < 2) throw new IOException("malformed XML attribute: " + s);
+		value = value.substring(1, value.length()-1);
+		listener.attribute(name, XMLTokenizer.convert(value));
+	}
+}
@@ -445,8 +445,10 @@ public class XMLTokenizer implements Iterator<XMLTokenType>, Iterable<XMLTokenTy
 					}
 					if (input.nextToken() == '-' &&
 							input.nextToken() == '>') {
+						// back to how things were before the comment:
+						// the caller restores the outer syntax on top
 						resetSyntax();
-						outerSyntax();
+						innerSyntax();
 						return;
 					}
 					//System.out.println("discarding " + input.toString());
@@ -519,12 +521,13 @@ public class XMLTokenizer implements Iterator<XMLTokenType>, Iterable<XMLTokenTy
 					state.startState();
 					return CLOSE;
 				case '/':
-					state = outerState;
-					state.startState();
+					// read the '>' before changing syntax
 					if (input.nextToken() != '>') {
 						currentText = "Expected '>', got " + input.toString();
 						return ERROR;
 					}
+					state = outerState;
+					state.startState();
 					return ECLOSE;
 				default:
 					currentText = "Illegal " + (char)input.ttype + " inside of tag";
@@ -171,6 +171,16 @@ public class ChoiceQuestion extends Question implements Iterable<Choice>, Observ
 		selectMultiple = sm;
 		super.noteChange("multiple");
 	}
+
+	/**
+	 * {@inheritDoc}
+	 * A response to a choice question gives the (1-based) indices
+	 * of the choices selected, separated by spaces.
+	 */
+	@Override
+	public String[] getAnswers(String text) {
+		return text.split(" ");
+	}
 	
 	@Override
 	protected void printResponse(StringBuilder sb) {
@@ -13,12 +13,34 @@ import edu.uwm.cs552.gui.UserQuestionDialog;
 public class LocalResponseLog extends ResponseLog {
 
 	private List<UserQuestionDialog> users = new ArrayList<>();
+	
+	public LocalResponseLog() { }
+	
+	/**
+	 * Create a local response log with a dialog for each of the given users.
+	 * @param us users to ask questions of, must not be null
+	 */
+	public LocalResponseLog(User.Users us) {
+		for (User u : us) {
+			addUser(u);
+		}
+	}
 
 	public void addUser(User u) {
 		if (!users.contains(u))
 			users.add(new UserQuestionDialog(u, this));
 	}
 	
+	/**
+	 * Get ready to ask a question soon: each user's dialog builds it ahead of time.
+	 * @param q question that will be asked, must not be null
+	 */
+	public void prepareQuestion(Question q) {
+		for (UserQuestionDialog u : users) {
+			u.prepare(q);
+		}
+	}
+
 	@Override
 	public void startQuestion(Question q) {
 		super.startQuestion(q);
@@ -31,6 +31,16 @@ public abstract class Question extends XMLObject {
 	 */
 	protected abstract void printResponse(StringBuilder sb);
 
+	/**
+	 * Return the answers given by the text of a response, to be tallied in results.
+	 * By default, the whole text is a single answer.
+	 * @param text text of a response, must not be null
+	 * @return answers given, never null
+	 */
+	public String[] getAnswers(String text) {
+		return new String[] { text };
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
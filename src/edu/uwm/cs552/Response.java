@@ -1,19 +1,34 @@
 package edu.uwm.cs552;
 
 import java.io.IOException;
+import java.time.DateTimeException;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
 
 import edu.uwm.cs.util.XMLWriter;
 
 /**
  * A response to a question.
+ * The timestamp is the client's idea of when the response was made, and is
+ * only a hint (the client's clock may be wrong); it is not parsed until needed.
+ * A server that logs the response stamps it with a sequence number that orders it
+ * among all the responses the server has received, and the time it was received.
  */
 public class Response extends XMLObject {
 	private User.Users users; 
 	
+	// rough sizes for getEstimatedSize, assuming compressed references:
+	private static final int OBJECT_SIZE = 144; // fields, and the empty observer list every XMLObject has
+	private static final int STRING_SIZE = 40; // string and array headers
+	private static final int TIMESTAMP_SIZE = 72; // date-time, date and time
+
 	private User user;
 	private String response= "";
 	private LocalDateTime timestamp;
+	private String timestampText; // not yet parsed
+	private long think = -1;
+	private long sequence = -1;
+	private long received = -1;
 
 	/**
 	 * Create a new response at this time point.
@@ -25,7 +40,34 @@ public class Response extends XMLObject {
 		response = r;
 		timestamp = LocalDateTime.now();
 	}
-	
+
+	/**
+	 * Create a response made at the given time.
+	 * @param u user responding, not null
+	 * @param r text of response, not null
+	 * @param t time of response, not null
+	 */
+	public Response(User u, String r, LocalDateTime t) {
+		user = u;
+		response = r;
+		timestamp = t;
+	}
+
+	/**
+	 * Create a copy of a response, but from the given user object
+	 * (for instance, one from a different registry with the same name).
+	 * The server's stamp is not copied.
+	 * @param u user responding, not null
+	 * @param r response to copy, not null
+	 */
+	public Response(User u, Response r) {
+		user = u;
+		response = r.response;
+		timestamp = r.timestamp;
+		timestampText = r.timestampText;
+		think = r.think;
+	}
+
 	/**
 	 * Start to read in a historical response.
 	 * @param list dictionary to lookup up user name in, must not be null
@@ -41,6 +83,73 @@ public class Response extends XMLObject {
 	public String getText() {
 		return response;
 	}
+	
+	/**
+	 * Return when the client says the response was made.
+	 * @return client's timestamp, or null if none was given
+	 */
+	public LocalDateTime getTimestamp() {
+		if (timestampText != null) {
+			timestamp = parseTimestamp(timestampText);
+			timestampText = null;
+		}
+		return timestamp;
+	}
+
+	/**
+	 * Return where this response comes in the order the server received responses.
+	 * @return server's sequence number, or -1 if not stamped by a server
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Return when the server received this response.
+	 * @return microseconds since the epoch, or -1 if not stamped by a server
+	 */
+	public long getReceived() {
+		return received;
+	}
+
+	/**
+	 * Stamp this response as received by a server.
+	 * @param seq sequence number, larger than that of any response received before
+	 * @param micros time received, in microseconds since the epoch
+	 */
+	public void stamp(long seq, long micros) {
+		sequence = seq;
+		received = micros;
+	}
+
+	/**
+	 * Return a rough estimate of the heap used by this response: the object,
+	 * its text (at one byte a character) and its timestamp, but not its user,
+	 * which is shared.  The estimate doesn't change when the timestamp is parsed.
+	 * @return estimated size in bytes
+	 */
+	public long getEstimatedSize() {
+		long n = OBJECT_SIZE + STRING_SIZE + response.length();
+		if (timestamp != null || timestampText != null) n += TIMESTAMP_SIZE;
+		return n;
+	}
+
+	/**
+	 * Return how long the user took to respond, from when the client
+	 * received the question until the response was made.
+	 * @return think time in microseconds, or -1 if not known
+	 */
+	public long getThinkTime() {
+		return think;
+	}
+
+	/**
+	 * Set how long the user took to respond.
+	 * @param micros think time in microseconds, or -1 if not known
+	 */
+	public void setThinkTime(long micros) {
+		think = micros;
+	}
 		
 	@Override
 	protected String getXMLelementName() {
@@ -51,7 +160,13 @@ public class Response extends XMLObject {
 	protected void writeAttributes(XMLWriter xw) throws IOException {
 		super.writeAttributes(xw);
 		xw.writeAttr("user",user.getName());
-		xw.writeAttr("timestamp", timestamp.toString());
+		if (timestampText != null) xw.writeAttr("timestamp", timestampText);
+		else if (timestamp != null) xw.writeAttr("timestamp", timestamp.toString());
+		if (think >= 0) xw.writeAttr("think", Long.toString(think));
+		if (sequence >= 0) {
+			xw.writeAttr("seq", Long.toString(sequence));
+			xw.writeAttr("received", Long.toString(received));
+		}
 	}
 
 	@Override
@@ -65,10 +180,73 @@ public class Response extends XMLObject {
 			user = users.get(text);
 			users = null; // not needed any more
 		} else if (name.equals("timestamp")) {
-			timestamp = LocalDateTime.parse(text);
+			timestampText = text;
+		} else if (name.equals("think")) {
+			think = parseLong(name, text);
+		} else if (name.equals("seq")) {
+			sequence = parseLong(name, text);
+		} else if (name.equals("received")) {
+			received = parseLong(name, text);
 		} else super.addAttribute(name, text);
 	}
 
+	private static long parseLong(String name, String text) throws ParseException {
+		try {
+			return Long.parseLong(text);
+		} catch (NumberFormatException e) {
+			throw new ParseException("bad " + name + ": " + text);
+		}
+	}
+
+	/**
+	 * Parse a timestamp as written by {@link LocalDateTime#toString()}.
+	 * The usual form (yyyy-MM-ddTHH:mm:ss with an optional fraction)
+	 * is parsed directly, which is much faster than the general parser.
+	 * @param text timestamp
+	 * @return time, or null if the timestamp is not legal
+	 */
+	private static LocalDateTime parseTimestamp(String text) {
+		int n = text.length();
+		if (n >= 19 && text.charAt(4) == '-' && text.charAt(7) == '-' && text.charAt(10) == 'T'
+				&& text.charAt(13) == ':' && text.charAt(16) == ':' && (n == 19 || n <= 29 && text.charAt(19) == '.')) {
+			int nanos = 0;
+			int scale = 100_000_000;
+			for (int i = 20; i < n; ++i, scale /= 10) {
+				int d = text.charAt(i) - '0';
+				if (d < 0 || d > 9) return parseSlowly(text);
+				nanos += d * scale;
+			}
+			int year = digits(text, 0, 4), month = digits(text, 5, 7), day = digits(text, 8, 10);
+			int hour = digits(text, 11, 13), minute = digits(text, 14, 16), second = digits(text, 17, 19);
+			if ((year | month | day | hour | minute | second) >= 0) {
+				try {
+					return LocalDateTime.of(year, month, day, hour, minute, second, nanos);
+				} catch (DateTimeException e) {
+					return null;
+				}
+			}
+		}
+		return parseSlowly(text);
+	}
+
+	private static int digits(String s, int from, int to) {
+		int result = 0;
+		for (int i = from; i < to; ++i) {
+			int d = s.charAt(i) - '0';
+			if (d < 0 || d > 9) return -1;
+			result = result * 10 + d;
+		}
+		return result;
+	}
+
+	private static LocalDateTime parseSlowly(String text) {
+		try {
+			return LocalDateTime.parse(text);
+		} catch (DateTimeParseException e) {
+			return null;
+		}
+	}
+
 	@Override
 	protected void addText(String text) throws ParseException {
 		response += text;
@@ -0,0 +1,485 @@
+package edu.uwm.cs552;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import edu.uwm.cs.util.XMLTokenizer;
+import edu.uwm.cs.util.XMLWriter;
+import edu.uwm.cs552.XMLObject.ParseException;
+
+/**
+ * An append-only file recording every change to a {@link ResponseLog} as it happens,
+ * so that a session survives a crash.  Changes are queued by the log (cheaply, while
+ * it is locked) and written by a background thread: everything queued while the
+ * previous write was going on is written together, and synced together
+ * (group commit).  How often the file is synced to the disk depends on the {@link Sync} policy.
+ * <p>
+ * Each record is framed as a length, a CRC-32 and a type byte followed by the
+ * data; questions and responses are stored in their XML form.  A record that was
+ * only partly written when the program stopped is detected and discarded
+ * when the journal is {@link #open(File, Sync, ResponseLog) opened} again.
+ * Clearing the log empties the journal.
+ */
+public class ResponseJournal implements Closeable {
+	/** System property naming a journal file for the GUI to use. */
+	public static final String FILE_PROPERTY = "edu.uwm.cs552.journal";
+	/** System property naming the sync policy for the GUI to use. */
+	public static final String SYNC_PROPERTY = "edu.uwm.cs552.journal.sync";
+	/** How often the {@link Sync#INTERVAL} policy syncs. */
+	public static final long SYNC_INTERVAL_MILLIS = 1000;
+	/** How many records may be waiting to be written before changes to the log wait. */
+	public static final int MAX_PENDING = 65536;
+	private static final int MAX_RECORD = 16 * 1024 * 1024;
+
+	/**
+	 * When the journal is synced to the disk (rather than just handed to the operating system,
+	 * which only protects against the program crashing, not the machine).
+	 */
+	public static enum Sync {
+		/** Never, except on close. */
+		NEVER,
+		/** At most once every {@link ResponseJournal#SYNC_INTERVAL_MILLIS}. */
+		INTERVAL,
+		/** After every group of records is written; the log doesn't wait for it. */
+		BATCH,
+		/** After every group of records is written, and every change to the log waits for it
+		 * (after the log is unlocked, so that changes can be synced together). */
+		ALWAYS;
+	}
+
+	private static final byte QUESTION = 'Q'; // id, then the question
+	private static final byte REPEAT = 'q'; // id of a question journaled before
+	private static final byte RESPONSE = 'R';
+	private static final byte STOP = 'S';
+	private static final byte ABORT = 'A';
+	private static final byte[] TRUNCATE = new byte[0]; // queued (by identity) to clear the file
+
+	private final File file;
+	private final Sync sync;
+	private final ResponseLog log;
+	private final FileChannel channel;
+	private final Thread writer;
+	private final Map<Question,Integer> ids = new IdentityHashMap<>();
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private final DataOutputStream data = new DataOutputStream(buffer);
+	private final ByteArrayOutputStream xml = new ByteArrayOutputStream();
+	private final int declarationLength;
+	private final CRC32 crc = new CRC32();
+
+	// guarded by this:
+	private List<byte[]> pending = new ArrayList<>();
+	private long queued, written, synced;
+	private long lost;
+	private boolean closing, syncPending;
+	private IOException failure;
+
+	private ResponseJournal(File f, Sync s, ResponseLog l, long length) throws IOException {
+		file = f;
+		sync = s;
+		log = l;
+		channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.truncate(length); // drop anything partly written
+		channel.position(length);
+		new XMLWriter(xml).flush();
+		declarationLength = xml.size();
+		writer = new Thread(this::run, "journal-" + f.getName());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Open a journal for a log, first adding to the log everything the journal already holds.
+	 * A question that was still in progress is treated as stopped.  Afterwards, every
+	 * change to the log is appended to the journal.  The elements in the journal
+	 * must be registered with {@link XMLObject#register} already.
+	 * @param f file to use, created if it doesn't exist, must not be null
+	 * @param s sync policy, must not be null
+	 * @param log log to restore and then journal, must be empty and have no journal
+	 * @return journal, never null
+	 * @throws IOException if the file cannot be read or written,
+	 * or holds something other than a journal
+	 */
+	public static ResponseJournal open(File f, Sync s, ResponseLog log) throws IOException {
+		if (s == null) throw new IllegalArgumentException("sync policy cannot be null");
+		synchronized (log) {
+			if (!log.isEmpty() || log.getJournal() != null) {
+				throw new IllegalStateException("can only journal an empty log");
+			}
+			Map<Integer,Question> questions = new HashMap<>();
+			long length = f.exists() ? recover(f, log, questions) : 0;
+			ResponseJournal j = new ResponseJournal(f, s, log, length);
+			for (Map.Entry<Integer,Question> e : questions.entrySet()) {
+				j.ids.put(e.getValue(), e.getKey());
+			}
+			log.setJournal(j);
+			if (!log.isEmpty()) {
+				log.restored();
+				log.noteChange("restore");
+			}
+			return j;
+		}
+	}
+
+	/**
+	 * Read a journal into a log.
+	 * @return length of the part of the file that was read successfully
+	 */
+	private static long recover(File f, ResponseLog log, Map<Integer,Question> questions) throws IOException {
+		long good = 0;
+		CRC32 crc = new CRC32();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+			for (;;) {
+				byte[] record;
+				try {
+					int length = in.readInt();
+					int check = in.readInt();
+					if (length <= 0 || length > MAX_RECORD) break;
+					record = new byte[length];
+					in.readFully(record);
+					crc.reset();
+					crc.update(record);
+					if ((int)crc.getValue() != check) break;
+				} catch (EOFException e) {
+					break;
+				}
+				replay(record, log, questions);
+				good += 8 + record.length;
+			}
+		} catch (ParseException e) {
+			throw new IOException("bad journal record in " + f + " at " + good + ": " + e.getMessage(), e);
+		}
+		log.restoreEnd(false);
+		return good;
+	}
+
+	private static void replay(byte[] record, ResponseLog log, Map<Integer,Question> questions) throws IOException, ParseException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		byte type = in.readByte();
+		switch (type) {
+		case QUESTION:
+		case REPEAT:
+			int id = in.readInt();
+			Question q = questions.get(id);
+			if (type == QUESTION) {
+				XMLObject obj = parse(in);
+				if (!(obj instanceof Question)) throw new ParseException("not a question: " + obj);
+				q = (Question)obj;
+				questions.put(id, q);
+			}
+			if (q == null) throw new ParseException("unknown question #" + id);
+			log.restoreEnd(false);
+			log.restoreStart(q);
+			break;
+		case RESPONSE:
+			XMLObject obj = parse(in);
+			if (!(obj instanceof Response)) throw new ParseException("not a response: " + obj);
+			try {
+				log.restoreResponse((Response)obj);
+			} catch (IllegalStateException e) {
+				throw new ParseException("response with no question: " + obj);
+			}
+			break;
+		case STOP:
+		case ABORT:
+			log.restoreEnd(type == ABORT);
+			break;
+		default:
+			throw new ParseException("unknown record type " + type);
+		}
+	}
+
+	private static XMLObject parse(InputStream in) throws ParseException {
+		return XMLObject.fromXML(new XMLTokenizer(in));
+	}
+
+	/**
+	 * Return the file this journal is written to.
+	 * @return file, never null
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Return the sync policy of this journal.
+	 * @return sync policy, never null
+	 */
+	public Sync getSync() {
+		return sync;
+	}
+
+	// Called by the log, while it is locked (so only one thread uses the buffers):
+
+	void started(Question q) {
+		Integer id = ids.get(q);
+		if (id != null) {
+			append(REPEAT, id, null);
+		} else {
+			id = ids.size();
+			ids.put(q, id);
+			append(QUESTION, id, q);
+		}
+	}
+
+	void added(Response r) {
+		append(RESPONSE, -1, r);
+	}
+
+	void ended(boolean aborted) {
+		append(aborted ? ABORT : STOP, -1, null);
+	}
+
+	void cleared() {
+		ids.clear();
+		enqueue(TRUNCATE);
+	}
+
+	private void append(byte type, int id, XMLObject obj) {
+		byte[] record;
+		try {
+			buffer.reset();
+			data.writeInt(0); // length and CRC, filled in below
+			data.writeInt(0);
+			data.writeByte(type);
+			if (id >= 0) data.writeInt(id);
+			if (obj != null) {
+				// a writer only writes one element, so each needs its own
+				xml.reset();
+				XMLWriter xw = new XMLWriter(xml);
+				obj.toXML(xw);
+				xw.flush();
+				byte[] bytes = xml.toByteArray();
+				data.write(bytes, declarationLength, bytes.length - declarationLength);
+			}
+			record = buffer.toByteArray();
+		} catch (IOException e) {
+			throw new AssertionError("not doing actual I/O", e);
+		}
+		int length = record.length - 8;
+		crc.reset();
+		crc.update(record, 8, length);
+		ByteBuffer.wrap(record).putInt(length).putInt((int)crc.getValue());
+		enqueue(record);
+	}
+
+	private synchronized void enqueue(byte[] record) {
+		if (closing) throw new IllegalStateException("journal is closed");
+		boolean interrupted = false;
+		while (pending.size() >= MAX_PENDING && failure == null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (failure != null) {
+			// nothing more will be written: don't let records pile up
+			++lost;
+			if (interrupted) Thread.currentThread().interrupt();
+			return;
+		}
+		pending.add(record);
+		++queued;
+		notifyAll();
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Under the {@link Sync#ALWAYS} policy, wait until everything appended so far
+	 * has been synced to the disk (or writing has failed).  The log calls this
+	 * after it is unlocked, so that changes made while one sync is going on
+	 * are synced together by the next.
+	 */
+	void awaitSynced() {
+		if (sync != Sync.ALWAYS) return;
+		boolean interrupted = false;
+		synchronized (this) {
+			long n = queued;
+			while (synced < n && failure == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Wait until everything appended so far has been written and synced to the disk.
+	 * @throws IOException if the journal could not be written
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void sync() throws IOException, InterruptedException {
+		long n = queued;
+		if (synced < n && failure == null && !closing && !syncPending) {
+			pending.add(null); // ask for a sync
+			syncPending = true;
+			notifyAll();
+		}
+		while (synced < n && failure == null) {
+			wait();
+		}
+		if (failure != null) throw failure;
+	}
+
+	/**
+	 * Return the problem that stopped the journal being written, if any.
+	 * @return exception, or null if the journal is fine
+	 */
+	public synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Return the number of changes to the log not journaled because writing had already failed.
+	 * @return number of changes lost
+	 */
+	public synchronized long getLost() {
+		return lost;
+	}
+
+	/**
+	 * Write and sync everything appended and close the file.
+	 * Later changes to the log are not journaled.
+	 * @throws IOException if the journal could not be written
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (log) {
+			if (log.getJournal() == this) log.setJournal(null);
+			synchronized (this) {
+				closing = true;
+				notifyAll();
+			}
+		}
+		boolean interrupted = false;
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		channel.close();
+		IOException ex = getFailure();
+		if (ex != null) throw ex;
+	}
+
+	/**
+	 * The writer thread: write whatever is pending in a single write, then sync if it's time.
+	 */
+	private void run() {
+		long lastSync = System.nanoTime();
+		List<byte[]> group = new ArrayList<>();
+		List<ByteBuffer> buffers = new ArrayList<>();
+		for (;;) {
+			boolean done, syncRequested = false;
+			synchronized (this) {
+				while (pending.isEmpty() && !closing) {
+					long timeout = 0;
+					if (sync == Sync.INTERVAL && synced < written) {
+						// wake up when the next sync is due
+						timeout = SYNC_INTERVAL_MILLIS - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSync);
+						if (timeout <= 0) break;
+					}
+					try {
+						wait(timeout);
+					} catch (InterruptedException e) {
+						// only closing stops the writer
+					}
+				}
+				List<byte[]> t = group;
+				group = pending;
+				pending = t;
+				syncPending = false;
+				done = closing && group.isEmpty();
+				if (!group.isEmpty()) notifyAll(); // room in the queue again
+			}
+			long n = 0;
+			try {
+				buffers.clear();
+				for (byte[] record : group) {
+					if (record == null) {
+						syncRequested = true;
+					} else if (record == TRUNCATE) {
+						writeAll(buffers);
+						channel.truncate(0);
+						channel.position(0);
+						++n;
+					} else {
+						buffers.add(ByteBuffer.wrap(record));
+						++n;
+					}
+				}
+				writeAll(buffers);
+				long now = System.nanoTime();
+				boolean force;
+				switch (sync) {
+				case NEVER:
+					force = done || syncRequested;
+					break;
+				case INTERVAL:
+					force = done || syncRequested || now - lastSync >= TimeUnit.MILLISECONDS.toNanos(SYNC_INTERVAL_MILLIS);
+					break;
+				default:
+					force = true;
+				}
+				synchronized (this) {
+					written += n;
+				}
+				if (force) {
+					channel.force(false);
+					lastSync = now;
+					synchronized (this) {
+						synced = written;
+						notifyAll();
+					}
+				}
+			} catch (IOException e) {
+				synchronized (this) {
+					if (failure == null) {
+						failure = e;
+						e.printStackTrace();
+					}
+					pending.clear();
+					notifyAll();
+				}
+				return;
+			}
+			group.clear();
+			if (done) return;
+		}
+	}
+
+	private void writeAll(List<ByteBuffer> buffers) throws IOException {
+		if (buffers.isEmpty()) return;
+		ByteBuffer[] bs = buffers.toArray(new ByteBuffer[buffers.size()]);
+		ByteBuffer last = bs[bs.length-1];
+		while (last.hasRemaining()) {
+			channel.write(bs);
+		}
+		buffers.clear();
+	}
+}
@@ -1,34 +1,143 @@
 package edu.uwm.cs552;
 
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
 
-import edu.uwm.cs.util.Pair;
+import edu.uwm.cs.util.Histogram;
 import edu.uwm.cs.util.XMLTokenizer;
 import edu.uwm.cs.util.XMLWriter;
 
 /**
  * Remembering questions that have been put to responses and the responses they garnered.
+ * The methods are synchronized, so that responses can be added by a different
+ * thread from the one that starts and stops questions.
+ * <p>
+ * All the responses to a question (over every time it was asked) are kept together,
+ * indexed by the identity of the question, so that looking them up or counting them
+ * doesn't depend on the size of the log.  The answers given are tallied
+ * as responses are added, so that a {@link ResponseSummary} is cheap too.
  */
 public class ResponseLog extends XMLObject {
 
-	private List<Pair<Question,List<Response>>> log = new ArrayList<>();
+	private List<Entry> log = new ArrayList<>();
+	private Map<Question,Responses> index = new IdentityHashMap<>();
 	
 	private Question current = null;
-	private List<Response> responses = null;
+	private Entry entry = null;
+	private ResponseJournal journal = null;
+	private int responseCount;
+	private long responseBytes;
+	private static final int SLOT_SIZE = 4; // a reference in an array of responses
+
+	/**
+	 * One asking of a question: a range of the responses to the question.
+	 */
+	private static class Entry {
+		final Question question;
+		final Responses all;
+		final int start;
+		int end;
+
+		Entry(Question q, Responses r) {
+			question = q;
+			all = r;
+			start = end = r.size;
+		}
+
+		List<Response> view() {
+			return all.view(start, end);
+		}
+	}
+
+	/**
+	 * All the responses to one question, with the answers given tallied.
+	 * Responses are only ever appended to the array
+	 * (when it fills up, it is replaced with a bigger copy), so a range of it
+	 * can be handed out as a read-only view that never changes.
+	 */
+	private static class Responses {
+		private static final int INITIAL_CAPACITY = 16;
+		final Question question;
+		final Histogram<String> answers = new Histogram<>();
+		Response[] data = new Response[INITIAL_CAPACITY];
+		int size;
+
+		Responses(Question q) {
+			question = q;
+		}
+
+		void add(Response r) {
+			if (size == data.length) data = Arrays.copyOf(data, size * 2);
+			data[size++] = r;
+			for (String a : question.getAnswers(r.getText())) {
+				answers.add(a);
+			}
+		}
+
+		void truncate(int n) {
+			for (int i=n; i < size; ++i) {
+				for (String a : question.getAnswers(data[i].getText())) {
+					answers.remove(a);
+				}
+			}
+			// use a fresh array, since views of the old one may be in use
+			data = Arrays.copyOf(data, Math.max(n, INITIAL_CAPACITY));
+			size = n;
+		}
+
+		ResponseSummary summarize() {
+			return new ResponseSummary(size, answers.entrySet(),
+					size == 0 ? null : data[0], size == 0 ? null : data[size-1]);
+		}
+
+		List<Response> view(int from, int to) {
+			if (from == to) return Collections.emptyList();
+			return new View(data, from, to);
+		}
+	}
+
+	private static class View extends AbstractList<Response> implements RandomAccess {
+		private final Response[] data;
+		private final int from, to;
+
+		View(Response[] a, int f, int t) {
+			data = a;
+			from = f;
+			to = t;
+		}
+
+		@Override
+		public Response get(int i) {
+			if (i < 0 || i >= to - from) throw new IndexOutOfBoundsException("index " + i + " of " + size());
+			return data[from + i];
+		}
+
+		@Override
+		public int size() {
+			return to - from;
+		}
+	}
 	
 	/**
 	 * Start a log entry for this question (provisionally).
 	 * @param q question to use, must not be null
 	 */
 	public void startQuestion(Question q) {
-		if (q == null) throw new IllegalArgumentException("cannot start a question that is null");
-		if (current != null) throw new IllegalStateException("question already started.");
-		current = q;
-		responses = new ArrayList<>();
-		log.add(Pair.create(current, responses));
-		super.noteChange("question");
+		synchronized (this) {
+			if (q == null) throw new IllegalArgumentException("cannot start a question that is null");
+			if (current != null) throw new IllegalStateException("question already started.");
+			restoreStart(q);
+			if (journal != null) journal.started(q);
+			super.noteChange("question");
+		}
+		awaitJournal();
 	}
 	
 	/**
@@ -36,10 +145,14 @@ public class ResponseLog extends XMLObject {
 	 * @param r response to the current question, must not be null
 	 */
 	public void addResponse(Response r) {
-		if (r == null) throw new IllegalArgumentException("response cannot be null");
-		if (current == null) throw new IllegalStateException("no question started");
-		responses.add(r);
-		super.noteChange("response");
+		synchronized (this) {
+			if (r == null) throw new IllegalArgumentException("response cannot be null");
+			if (current == null) throw new IllegalStateException("no question started");
+			restoreResponse(r);
+			if (journal != null) journal.added(r);
+			super.noteChange("response");
+		}
+		awaitJournal();
 	}
 	
 	/**
@@ -47,11 +160,11 @@ public class ResponseLog extends XMLObject {
 	 * Doesn't log the question or responses.
 	 */
 	public void abortQuestion() {
-		if (current != null) {
-			log.remove(log.size()-1);
+		synchronized (this) {
+			if (current != null && journal != null) journal.ended(true);
+			restoreEnd(true);
 		}
-		current = null;
-		responses = null;
+		awaitJournal();
 	}
 	
 	/**
@@ -60,24 +173,97 @@ public class ResponseLog extends XMLObject {
 	 * there is no current question.
 	 */
 	public void stopQuestion() {
-		if (current == null) throw new IllegalStateException("no question started");
+		synchronized (this) {
+			if (current == null) throw new IllegalStateException("no question started");
+			if (journal != null) journal.ended(false);
+			restoreEnd(false);
+		}
+		awaitJournal();
+	}
+
+	/**
+	 * Wait until the journal (if any) holds the changes made so far, if its
+	 * sync policy requires it.  Does nothing if the caller has this log locked:
+	 * the caller should wait after unlocking it, so that the log isn't locked
+	 * while the disk is synced, and all the changes made meanwhile are synced together.
+	 */
+	protected void awaitJournal() {
+		if (Thread.holdsLock(this)) return;
+		ResponseJournal j = getJournal();
+		if (j != null) j.awaitSynced();
+	}
+
+	// The changes themselves, also used to rebuild a log from its journal:
+
+	void restoreStart(Question q) {
+		current = q;
+		entry = new Entry(q, index.computeIfAbsent(q, (k) -> new Responses(k)));
+		log.add(entry);
+	}
+
+	void restoreResponse(Response r) {
+		if (entry == null) throw new IllegalStateException("no question started");
+		entry.all.add(r);
+		++entry.end;
+		++responseCount;
+		responseBytes += SLOT_SIZE + r.getEstimatedSize();
+	}
+
+	void restoreEnd(boolean aborted) {
+		if (current != null && aborted) {
+			for (Response r : entry.view()) {
+				--responseCount;
+				responseBytes -= SLOT_SIZE + r.getEstimatedSize();
+			}
+			log.remove(log.size()-1);
+			// this was the latest asking, so its responses are the last ones
+			entry.all.truncate(entry.start);
+		}
 		current = null;
-		responses = null;
+		entry = null;
 	}
+
+	/**
+	 * Return the journal to which changes to this log are written.
+	 * @return journal, or null if none
+	 * @see ResponseJournal#open(java.io.File, ResponseJournal.Sync, ResponseLog)
+	 */
+	public synchronized ResponseJournal getJournal() {
+		return journal;
+	}
+
+	synchronized void setJournal(ResponseJournal j) {
+		journal = j;
+	}
+
+	/**
+	 * Called (with the log locked) once what a journal held has been restored into the log,
+	 * before anything else is added.  By default, does nothing.
+	 */
+	protected void restored() { }
 	
 	/**
 	 * Return a list of all questions in the log.
 	 * The result is a copy and can be safely mutated by the client.
 	 * @return list of all questions that have been logged, never null.
 	 */
-	public List<Question> getQuestions() {
+	public synchronized List<Question> getQuestions() {
 		List<Question> result = new ArrayList<>();
-		for (Pair<Question,List<Response>> p : log) {
-			result.add(p.fst);
+		for (Entry e : log) {
+			result.add(e.question);
 		}
 		return result;
 	}
 	
+	/**
+	 * Return the responses to one asking of a question.
+	 * @param i index (0-based) of the asking, as in {@link #getQuestions()}
+	 * @return read-only responses, never null
+	 */
+	synchronized List<Response> getEntryResponses(int i) {
+		return log.get(i).view();
+	}
+
 	/**
 	 * Return a list of all responses to a question.
 	 * The result is a copy and can be safely mutated by the client.
@@ -86,21 +272,80 @@ public class ResponseLog extends XMLObject {
 	 * @param q question (may be null) to look for responses for
 	 * @return list of responses, may be empty, will never be null.
 	 */
-	public List<Response> getResponses(Question q) {
-		List<Response> result = new ArrayList<>();
-		for (Pair<Question,List<Response>> p : log) {
-			if (p.fst == q) { // use object identity!
-				result.addAll(p.snd);
-			}
-		}
-		return result;
+	public synchronized List<Response> getResponses(Question q) {
+		return new ArrayList<>(getResponseView(q));
+	}
+
+	/**
+	 * Return all responses to a question so far, without copying them.
+	 * The result cannot be changed, and doesn't change as more responses
+	 * arrive, so it can be read on any thread without locking the log.
+	 * As with {@link #getResponses(Question)}, questions are compared by identity.
+	 * @param q question (may be null) to look for responses for
+	 * @return read-only list of responses, may be empty, will never be null.
+	 */
+	public synchronized List<Response> getResponseView(Question q) {
+		Responses rs = index.get(q); // use object identity!
+		return rs == null ? Collections.emptyList() : rs.view(0, rs.size);
+	}
+
+	/**
+	 * Return the number of responses to a question (from all occurrences).
+	 * This takes constant time.
+	 * @param q question (may be null) to count responses for
+	 * @return number of responses, zero if the question isn't in the log
+	 */
+	public synchronized int getResponseCount(Question q) {
+		Responses rs = index.get(q);
+		return rs == null ? 0 : rs.size;
 	}
 	
+	/**
+	 * Return a summary of the responses to a question (from all occurrences).
+	 * This takes time in the number of different answers given, not the number of responses.
+	 * @param q question (may be null) to summarize responses to
+	 * @return summary, never null
+	 */
+	public synchronized ResponseSummary getResponseSummary(Question q) {
+		Responses rs = index.get(q);
+		if (rs == null) return new ResponseSummary(0, Collections.emptySet(), null, null);
+		return rs.summarize();
+	}
+
+	/**
+	 * Return a description of how long the stages of getting responses
+	 * to the question took, if this log measures them.  The description is
+	 * written to the log as comments.
+	 * @param q question to describe timing for
+	 * @return description (one stage per line), or null if not measured
+	 */
+	public String getTimingSummary(Question q) {
+		return null;
+	}
+
+	/**
+	 * Return the number of responses in the log, over all questions,
+	 * including any to the current question.
+	 * @return number of responses
+	 */
+	public synchronized int getTotalResponseCount() {
+		return responseCount;
+	}
+
+	/**
+	 * Return a rough estimate of the heap used by the responses in the log
+	 * (see {@link Response#getEstimatedSize()}).
+	 * @return estimated size in bytes
+	 */
+	public synchronized long getEstimatedSize() {
+		return responseBytes;
+	}
+
 	/**
 	 * Return true if the log is empty.
 	 * @return whether log is empty.
 	 */
-	public boolean isEmpty() {
+	public synchronized boolean isEmpty() {
 		return log.isEmpty();
 	}
 	
@@ -108,10 +353,17 @@ public class ResponseLog extends XMLObject {
 	 * Discard all information in the log.
 	 */
 	public void clear() {
-		log.clear();
-		current = null;
-		responses = null;
-		super.noteChange("clear");
+		synchronized (this) {
+			log.clear();
+			index.clear();
+			responseCount = 0;
+			responseBytes = 0;
+			if (journal != null) journal.cleared();
+			current = null;
+			entry = null;
+			super.noteChange("clear");
+		}
+		awaitJournal();
 	}
 	
 	// XML reading/writing
@@ -121,13 +373,19 @@ public class ResponseLog extends XMLObject {
 	}
 
 	@Override
-	protected void writeContents(XMLWriter xw) throws IOException {
+	protected synchronized void writeContents(XMLWriter xw) throws IOException {
 		super.writeContents(xw);
-		for (Pair<Question,List<Response>> p : log) {
-			p.fst.toXML(xw);
-			for (Response r : p.snd) {
+		for (Entry e : log) {
+			e.question.toXML(xw);
+			for (Response r : e.view()) {
 				r.toXML(xw);
 			}
+			String timing = getTimingSummary(e.question);
+			if (timing != null) {
+				for (String line : timing.split("\n")) {
+					xw.writeComment(" " + line + " ");
+				}
+			}
 		}
 	}
 
@@ -135,7 +393,7 @@ public class ResponseLog extends XMLObject {
 	protected void addElement(XMLObject obj) throws ParseException {
 		if (obj instanceof Question) {
 			current = null;
-			responses = null;
+			entry = null;
 			startQuestion((Question)obj);
 		} else if (obj instanceof Response) {
 			addResponse((Response)obj);
@@ -147,7 +405,7 @@ public class ResponseLog extends XMLObject {
 		super.readXML(xt);
 		// clean up the current question.
 		current = null;
-		responses = null;
+		entry = null;
 	}
 
 }
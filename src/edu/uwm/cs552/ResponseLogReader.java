@@ -0,0 +1,334 @@
+package edu.uwm.cs552;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import edu.uwm.cs.util.XMLTokenType;
+import edu.uwm.cs.util.XMLTokenizer;
+import edu.uwm.cs552.XMLObject.ParseException;
+
+/**
+ * A reader for the XML form of a {@link ResponseLog} that yields its contents one
+ * at a time instead of building the whole log in memory, so that logs
+ * of any size can be read in a small heap.  Each {@link Event} is either the
+ * asking of a question or a response to the question last asked; nothing is
+ * kept once the next event has been read (except the users, which are
+ * looked up in the given registry).
+ * <p>
+ * Events can be pulled with {@link #read()}, or the reader can be used as an iterator,
+ * in which case malformed input is reported with an {@link IllegalStateException}.
+ * The elements in the log must be registered with {@link XMLObject#register} already;
+ * responses are always read with the given user registry.
+ */
+public class ResponseLogReader implements Iterator<ResponseLogReader.Event>, Closeable {
+	private final InputStream input;
+	private final XMLTokenizer xt;
+	private final User.Users users;
+	private Question question = null;
+	private int entry = -1;
+	private boolean done = false;
+	private Event next = null;
+
+	/**
+	 * Something in the log: a question being asked, or a response to it.
+	 */
+	public static class Event {
+		private final Question question;
+		private final Response response;
+		private final int entry;
+
+		Event(Question q, Response r, int e) {
+			question = q;
+			response = r;
+			entry = e;
+		}
+
+		/**
+		 * Return the question asked, or being responded to.
+		 * Each time a question is asked in the log it is a new object.
+		 * @return question, never null
+		 */
+		public Question getQuestion() {
+			return question;
+		}
+
+		/**
+		 * Return the response.
+		 * @return response, or null if this event is the question being asked
+		 */
+		public Response getResponse() {
+			return response;
+		}
+
+		/**
+		 * Return which asking of a question (0-based) in the log this event belongs to.
+		 * @return index of asking
+		 */
+		public int getEntry() {
+			return entry;
+		}
+	}
+
+	/**
+	 * Start reading a log.
+	 * @param in stream to read, must not be null; it is closed by {@link #close()}
+	 * @param list where to look up the users who made responses, must not be null
+	 * @throws ParseException if the stream doesn't start with a response log
+	 */
+	public ResponseLogReader(InputStream in, User.Users list) throws ParseException {
+		input = in;
+		users = list;
+		xt = new XMLTokenizer(in);
+		if (xt.next() != XMLTokenType.OPEN || !"ResponseLog".equals(xt.getCurrentName())) {
+			throw new ParseException("expected <ResponseLog>, got " + xt);
+		}
+		while (xt.next() == XMLTokenType.ATTR) {
+			// no attributes are defined
+		}
+		if (xt.current() == XMLTokenType.ECLOSE) done = true;
+	}
+
+	/**
+	 * Read the next event from the log.
+	 * @return next event, or null at the end of the log
+	 * @throws ParseException if the log is malformed
+	 */
+	public Event read() throws ParseException {
+		if (done) return null;
+		XMLTokenType t = xt.next();
+		if (t == null) throw new ParseException("log ends without </ResponseLog>");
+		switch (t) {
+		case OPEN:
+			if (xt.getCurrentName().equals("Response")) {
+				if (question == null) throw new ParseException("response before any question");
+				Response r = new Response(users);
+				r.readXML(xt);
+				return new Event(question, r, entry);
+			}
+			xt.saveToken();
+			XMLObject obj = XMLObject.fromXML(xt);
+			if (!(obj instanceof Question)) throw new ParseException("unexpected element in log: " + obj);
+			question = (Question)obj;
+			return new Event(question, null, ++entry);
+		case ETAG:
+			if (!xt.getCurrentName().equals("ResponseLog")) {
+				throw new ParseException("expected </ResponseLog>, not " + xt);
+			}
+			done = true;
+			return null;
+		default:
+			throw new ParseException("malformed XML: expected element, got " + xt);
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null) {
+			try {
+				next = read();
+			} catch (ParseException e) {
+				throw new IllegalStateException(e.getMessage(), e);
+			}
+		}
+		return next != null;
+	}
+
+	@Override
+	public Event next() {
+		if (!hasNext()) throw new NoSuchElementException("no more in log");
+		Event result = next;
+		next = null;
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException {
+		input.close();
+	}
+
+	/**
+	 * A response log made up as it is read, so that a large log can be read
+	 * without having one on disk.  The same question is asked again and again,
+	 * each time with the same number of responses from different users.
+	 */
+	private static class GeneratedLog extends InputStream {
+		private static final int USERS = 1000;
+		private static final int RESPONSES_PER_QUESTION = 10_000;
+
+		private final long size;
+		private final byte[] question;
+		private final byte[][] responses = new byte[USERS][];
+		private final byte[] end = "</ResponseLog>\n".getBytes(StandardCharsets.UTF_8);
+		private long written = 0;
+		private long responseCount = 0;
+		private int pending = -1; // responses still to come for this question
+		private byte[] chunk = "<ResponseLog>\n".getBytes(StandardCharsets.UTF_8);
+		private int pos = 0;
+
+		/**
+		 * Make up a log.
+		 * @param bytes approximate size of the log; the last question gets all its responses
+		 */
+		GeneratedLog(long bytes) {
+			size = bytes;
+			ChoiceQuestion q = new ChoiceQuestion();
+			q.setQuestion("Generated");
+			q.addChoice("yes");
+			q.addChoice("no");
+			question = bytesOf(q);
+			User.Users users = new User.Users();
+			LocalDateTime now = LocalDateTime.now();
+			for (int i = 0; i < USERS; ++i) {
+				responses[i] = bytesOf(new Response(users.get("user" + i), i % 2 == 0 ? "yes" : "no", now));
+			}
+		}
+
+		private static byte[] bytesOf(XMLObject obj) {
+			return (obj.toXMLString() + "\n").getBytes(StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Return the number of responses in the log so far.
+		 * @return number of responses made up
+		 */
+		long getResponseCount() {
+			return responseCount;
+		}
+
+		/**
+		 * Move on to the next chunk of the log.
+		 * @return whether there is one
+		 */
+		private boolean nextChunk() {
+			if (chunk == end) return false;
+			if (pending > 0) {
+				chunk = responses[(int)(responseCount++ % USERS)];
+				--pending;
+			} else if (written < size) {
+				chunk = question;
+				pending = RESPONSES_PER_QUESTION;
+			} else {
+				chunk = end;
+			}
+			pos = 0;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = 0;
+			while (n < len) {
+				if (pos == chunk.length && !nextChunk()) break;
+				int k = Math.min(len - n, chunk.length - pos);
+				System.arraycopy(chunk, pos, b, off + n, k);
+				pos += k;
+				n += k;
+			}
+			written += n;
+			return n == 0 && len > 0 ? -1 : n;
+		}
+	}
+
+	/**
+	 * Read a log made up on the fly and check that all its responses were read.
+	 * Prints the read rate and the most heap used, which should not depend on the size:
+	 * run with a small heap (e.g. -Xmx64m) to check that nothing is kept.
+	 * @param bytes size of log to make up
+	 * @return whether all the responses were read
+	 */
+	private static boolean readGenerated(long bytes) throws ParseException {
+		GeneratedLog log = new GeneratedLog(bytes);
+		long responses = 0;
+		long start = System.nanoTime();
+		ResponseLogReader r = new ResponseLogReader(log, new User.Users());
+		Event e;
+		while ((e = r.read()) != null) {
+			if (e.getResponse() != null) ++responses;
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+		}
+		System.err.printf("%d responses, %.1f MB in %.1f s (%.1f MB/s), peak heap %.1f MB of %.1f MB%n",
+				responses, log.written / 1e6, secs, log.written / 1e6 / secs,
+				peak / 1e6, Runtime.getRuntime().maxMemory() / 1e6);
+		if (responses != log.getResponseCount()) {
+			System.err.println("expected " + log.getResponseCount() + " responses");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a size such as 2g or 500m.
+	 */
+	private static long parseSize(String s) {
+		long unit = 1;
+		switch (Character.toLowerCase(s.charAt(s.length() - 1))) {
+		case 'k': unit = 1L << 10; break;
+		case 'm': unit = 1L << 20; break;
+		case 'g': unit = 1L << 30; break;
+		}
+		if (unit > 1) s = s.substring(0, s.length() - 1);
+		return Long.parseLong(s) * unit;
+	}
+
+	/**
+	 * Print how many responses each asking of a question in the logs got,
+	 * and how fast the logs were read.
+	 * With <code>--generate=SIZE</code> (e.g. 2g), instead read a log of that size
+	 * made up on the fly and exit with status 1 unless all its responses were read.
+	 * @param args names of log files
+	 */
+	public static void main(String[] args) throws IOException, ParseException {
+		User.Users users = new User.Users();
+		XMLObject.register("ChoiceQuestion", () -> { return new ChoiceQuestion(); });
+		XMLObject.register("FreeResponseQuestion", () -> { return new FreeResponseQuestion(); });
+		XMLObject.register("Choice", () -> { return new Choice(); });
+		if (args.length == 1 && args[0].startsWith("--generate=")) {
+			System.exit(readGenerated(parseSize(args[0].substring(11))) ? 0 : 1);
+		}
+		long bytes = 0, responses = 0;
+		long start = System.nanoTime();
+		for (String file : args) {
+			bytes += new File(file).length();
+			try (ResponseLogReader r = new ResponseLogReader(new BufferedInputStream(new FileInputStream(file), 1 << 16), users)) {
+				Event e;
+				Question q = null;
+				int count = 0;
+				while ((e = r.read()) != null) {
+					if (e.getResponse() != null) {
+						++count;
+						continue;
+					}
+					if (q != null) System.out.println(count + "\t" + q.getQuestion().split("\n")[0]);
+					q = e.getQuestion();
+					responses += count;
+					count = 0;
+				}
+				if (q != null) System.out.println(count + "\t" + q.getQuestion().split("\n")[0]);
+				responses += count;
+			}
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+		System.err.printf("%d responses, %.1f MB in %.1f s (%.1f MB/s)%n", responses, bytes / 1e6, secs, bytes / 1e6 / secs);
+	}
+}
@@ -0,0 +1,587 @@
+package edu.uwm.cs552;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.uwm.cs.util.XMLTokenizer;
+import edu.uwm.cs.util.XMLWriter;
+import edu.uwm.cs552.XMLObject.ParseException;
+
+/**
+ * A response log stored in a compact binary file that is read by mapping it into memory,
+ * for archives too big (or too many) to read back through XML.  Opening a segment only
+ * reads its header: responses are read in place when asked for, and only the
+ * pages touched are brought in from the disk.
+ * <p>
+ * The file holds, in order:
+ * <ul>
+ * <li>a header: magic number, version, then the count and file offset of each table;
+ * <li>the user table: for each user, the heap offset of the user's name;
+ * <li>the question table: for each distinct question, the heap offset of its XML;
+ * <li>the entry table: for each time a question was asked, the question's index,
+ * the index of its first response record and the number of responses;
+ * <li>the response records, {@value #RECORD_SIZE} bytes each: user index, heap offset
+ * of the text, client timestamp (nanoseconds since the epoch, as UTC),
+ * server receipt time, server sequence number and think time;
+ * <li>the string heap: each string as a length and UTF-8 bytes.  Equal strings
+ * (for instance, the same choice) are stored once, so their offsets can be
+ * compared instead of the text.
+ * </ul>
+ * Conversion to and from a {@link ResponseLog} (and so the XML form) is lossless,
+ * except for the timing comments, which are not read back from XML either.
+ * A segment is limited to 2GB, and {@link #write} refuses a larger log:
+ * a larger archive has to be kept as several segments (for instance, one per log).
+ */
+public class ResponseSegment implements Closeable {
+	public static final int MAGIC = 0x51534547; // "QSEG"
+	public static final int VERSION = 1;
+	public static final int RECORD_SIZE = 40;
+	private static final int HEADER_SIZE = 48;
+	private static final int ENTRY_SIZE = 12;
+	private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+	// offsets in a record:
+	private static final int USER = 0, TEXT = 4, TIMESTAMP = 8, RECEIVED = 16, SEQUENCE = 24, THINK = 32;
+
+	private final FileChannel channel;
+	private final ByteBuffer map;
+	private final int userCount, questionCount, entryCount, recordCount;
+	private final int users, questions, entries, records, heap;
+	private final Question[] parsed;
+
+	private ResponseSegment(File f) throws IOException {
+		channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		if (channel.size() > Integer.MAX_VALUE) throw new IOException("segment too large: " + f);
+		map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC) throw new IOException("not a response segment: " + f);
+		if (map.getInt(4) != VERSION) throw new IOException("unknown segment version " + map.getInt(4) + ": " + f);
+		userCount = map.getInt(8);
+		questionCount = map.getInt(12);
+		entryCount = map.getInt(16);
+		recordCount = map.getInt(20);
+		users = map.getInt(24);
+		questions = map.getInt(28);
+		entries = map.getInt(32);
+		records = map.getInt(36);
+		heap = map.getInt(40);
+		if (heap > map.capacity() || records + (long)recordCount * RECORD_SIZE > heap) {
+			throw new IOException("truncated segment: " + f);
+		}
+		parsed = new Question[questionCount];
+	}
+
+	/**
+	 * Open a segment for reading.
+	 * @param f file holding the segment, must not be null
+	 * @return segment, never null
+	 * @throws IOException if the file cannot be read or is not a segment
+	 */
+	public static ResponseSegment open(File f) throws IOException {
+		return new ResponseSegment(f);
+	}
+
+	@Override
+	public void close() throws IOException {
+		// the mapping itself goes away when the buffer is collected
+		channel.close();
+	}
+
+	/**
+	 * Return a string from the heap.
+	 * @param offset offset of the string in the heap, as given in a table or record
+	 * @return string, never null
+	 */
+	public String getString(int offset) {
+		int p = heap + offset;
+		int length = map.getInt(p);
+		byte[] bytes = new byte[length];
+		map.get(p + 4, bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * Return the number of different users with responses in this segment.
+	 * @return number of users
+	 */
+	public int getUserCount() {
+		return userCount;
+	}
+
+	/**
+	 * Return the name of a user.
+	 * @param u index of user, 0 &le; u &lt; {@link #getUserCount()}
+	 * @return name of user
+	 */
+	public String getUserName(int u) {
+		return getString(map.getInt(users + 4 * check(u, userCount)));
+	}
+
+	/**
+	 * Return the number of times questions were asked (the entries of the log).
+	 * @return number of entries
+	 */
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * Return the question asked in an entry.  The question is read from its XML
+	 * the first time it is asked for; a question asked more than once
+	 * is the same object in every entry.
+	 * @param e index of entry
+	 * @return question, never null
+	 * @throws UncheckedIOException if the question's XML cannot be parsed
+	 */
+	public synchronized Question getQuestion(int e) {
+		int q = getQuestionIndex(e);
+		if (parsed[q] == null) {
+			String xml = getString(map.getInt(questions + 4 * q));
+			try {
+				parsed[q] = (Question)XMLObject.fromXML(new XMLTokenizer(new ByteArrayInputStream(xml.getBytes(UTF_8))));
+			} catch (ParseException|ClassCastException ex) {
+				throw new UncheckedIOException(new IOException("bad question #" + q + " in segment: " + ex.getMessage(), ex));
+			}
+		}
+		return parsed[q];
+	}
+
+	/**
+	 * Return which distinct question was asked in an entry.
+	 * Entries with the same index asked the same question.
+	 * @param e index of entry
+	 * @return index of question, 0 &le; result &lt; number of distinct questions
+	 */
+	public int getQuestionIndex(int e) {
+		return map.getInt(entries + ENTRY_SIZE * check(e, entryCount));
+	}
+
+	/**
+	 * Return the index of the first response record of an entry.
+	 * @param e index of entry
+	 * @return index of first record
+	 */
+	public int getFirstRecord(int e) {
+		return map.getInt(entries + ENTRY_SIZE * check(e, entryCount) + 4);
+	}
+
+	/**
+	 * Return the number of responses in an entry.
+	 * @param e index of entry
+	 * @return number of response records
+	 */
+	public int getRecordCount(int e) {
+		return map.getInt(entries + ENTRY_SIZE * check(e, entryCount) + 8);
+	}
+
+	/**
+	 * Return the total number of response records.
+	 * @return number of records
+	 */
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	private int record(int r) {
+		return records + RECORD_SIZE * check(r, recordCount);
+	}
+
+	/**
+	 * Return the user who made a response.
+	 * @param r index of record
+	 * @return index of user
+	 * @see #getUserName(int)
+	 */
+	public int getUser(int r) {
+		return map.getInt(record(r) + USER);
+	}
+
+	/**
+	 * Return the heap offset of the text of a response.
+	 * Responses with the same text have the same offset.
+	 * @param r index of record
+	 * @return heap offset
+	 * @see #getString(int)
+	 */
+	public int getTextOffset(int r) {
+		return map.getInt(record(r) + TEXT);
+	}
+
+	/**
+	 * Return the text of a response.
+	 * @param r index of record
+	 * @return text, never null
+	 */
+	public String getText(int r) {
+		return getString(getTextOffset(r));
+	}
+
+	/**
+	 * Return when the client says the response was made.
+	 * @param r index of record
+	 * @return nanoseconds since the epoch (taking the client's time as UTC),
+	 * or {@link Long#MIN_VALUE} if not given
+	 */
+	public long getTimestampNanos(int r) {
+		return map.getLong(record(r) + TIMESTAMP);
+	}
+
+	/**
+	 * Return when the client says the response was made.
+	 * @param r index of record
+	 * @return timestamp, or null if not given
+	 */
+	public LocalDateTime getTimestamp(int r) {
+		long t = getTimestampNanos(r);
+		if (t == NO_TIMESTAMP) return null;
+		return LocalDateTime.ofEpochSecond(Math.floorDiv(t, 1_000_000_000L), (int)Math.floorMod(t, 1_000_000_000L), ZoneOffset.UTC);
+	}
+
+	/**
+	 * Return when the server received a response.
+	 * @param r index of record
+	 * @return microseconds since the epoch, or -1 if not stamped
+	 */
+	public long getReceived(int r) {
+		return map.getLong(record(r) + RECEIVED);
+	}
+
+	/**
+	 * Return the server's sequence number for a response.
+	 * @param r index of record
+	 * @return sequence number, or -1 if not stamped
+	 */
+	public long getSequence(int r) {
+		return map.getLong(record(r) + SEQUENCE);
+	}
+
+	/**
+	 * Return how long the user took to make a response.
+	 * @param r index of record
+	 * @return think time in microseconds, or -1 if not known
+	 */
+	public long getThinkTime(int r) {
+		return map.getLong(record(r) + THINK);
+	}
+
+	private static int check(int i, int n) {
+		if (i < 0 || i >= n) throw new IndexOutOfBoundsException(i + " not in [0," + n + ")");
+		return i;
+	}
+
+	/**
+	 * Create a response object for a record.
+	 * @param r index of record
+	 * @param list where to look up users, must not be null
+	 * @return new response
+	 */
+	public Response getResponse(int r, User.Users list) {
+		return getResponse(r, list.get(getUserName(getUser(r))), getText(r));
+	}
+
+	private Response getResponse(int r, User u, String text) {
+		Response result = new Response(u, text, getTimestamp(r));
+		if (getSequence(r) >= 0) result.stamp(getSequence(r), getReceived(r));
+		result.setThinkTime(getThinkTime(r));
+		return result;
+	}
+
+	/**
+	 * Add everything in this segment to a log.
+	 * @param log log to add to, must not have a question in progress
+	 * @param list where to look up users, must not be null
+	 */
+	public void readInto(ResponseLog log, User.Users list) {
+		User[] us = new User[userCount];
+		for (int u=0; u < userCount; ++u) {
+			us[u] = list.get(getUserName(u));
+		}
+		Map<Integer,String> texts = new HashMap<>();
+		for (int e=0; e < entryCount; ++e) {
+			log.startQuestion(getQuestion(e));
+			int first = getFirstRecord(e);
+			for (int r=first; r < first + getRecordCount(e); ++r) {
+				log.addResponse(getResponse(r, us[getUser(r)], texts.computeIfAbsent(getTextOffset(r), this::getString)));
+			}
+			log.stopQuestion();
+		}
+	}
+
+	/**
+	 * Write a log as a segment.  The log should not have a question in progress.
+	 * @param log log to write, must not be null
+	 * @param f file to write, must not be null
+	 * @throws IOException if the file cannot be written, or the log is too large for one segment (2GB)
+	 */
+	public static void write(ResponseLog log, File f) throws IOException {
+		synchronized (log) {
+			List<Question> asked = log.getQuestions();
+			Heap strings = new Heap();
+			Map<String,Integer> userIndex = new HashMap<>();
+			List<Integer> userNames = new ArrayList<>();
+			Map<Question,Integer> questionIndex = new IdentityHashMap<>();
+			List<Integer> questionXML = new ArrayList<>();
+			long recordCount = 0;
+			for (int e=0; e < asked.size(); ++e) {
+				Question q = asked.get(e);
+				if (!questionIndex.containsKey(q)) {
+					questionIndex.put(q, questionXML.size());
+					questionXML.add(strings.add(q.toXMLString()));
+				}
+				for (Response r : log.getEntryResponses(e)) {
+					userIndex.computeIfAbsent(r.getUser().getName(), (n) -> {
+						userNames.add(strings.add(n));
+						return userNames.size() - 1;
+					});
+					strings.add(r.getText());
+					++recordCount;
+				}
+			}
+			long usersOffset = HEADER_SIZE;
+			long questionsOffset = usersOffset + 4L * userNames.size();
+			long entriesOffset = questionsOffset + 4L * questionXML.size();
+			long recordsOffset = (entriesOffset + (long)ENTRY_SIZE * asked.size() + 7) / 8 * 8;
+			long heapOffset = recordsOffset + RECORD_SIZE * recordCount;
+			if (heapOffset + strings.size() > Integer.MAX_VALUE) {
+				throw new IOException("log too large for a single segment (" + (heapOffset + strings.size()) + " bytes): split it");
+			}
+
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(userNames.size());
+				out.writeInt(questionXML.size());
+				out.writeInt(asked.size());
+				out.writeInt((int)recordCount);
+				out.writeInt((int)usersOffset);
+				out.writeInt((int)questionsOffset);
+				out.writeInt((int)entriesOffset);
+				out.writeInt((int)recordsOffset);
+				out.writeInt((int)heapOffset);
+				out.writeInt(0); // reserved
+				for (int offset : userNames) out.writeInt(offset);
+				for (int offset : questionXML) out.writeInt(offset);
+				int first = 0;
+				for (int e=0; e < asked.size(); ++e) {
+					int n = log.getEntryResponses(e).size();
+					out.writeInt(questionIndex.get(asked.get(e)));
+					out.writeInt(first);
+					out.writeInt(n);
+					first += n;
+				}
+				while (out.size() < recordsOffset) out.writeByte(0);
+				for (int e=0; e < asked.size(); ++e) {
+					for (Response r : log.getEntryResponses(e)) {
+						LocalDateTime t = r.getTimestamp();
+						out.writeInt(userIndex.get(r.getUser().getName()));
+						out.writeInt(strings.add(r.getText()));
+						out.writeLong(t == null ? NO_TIMESTAMP :
+							Math.addExact(Math.multiplyExact(t.toEpochSecond(ZoneOffset.UTC), 1_000_000_000L), t.getNano()));
+						out.writeLong(r.getReceived());
+						out.writeLong(r.getSequence());
+						out.writeLong(r.getThinkTime());
+					}
+				}
+				strings.writeTo(out);
+			}
+		}
+	}
+
+	/**
+	 * Strings being collected for a segment, each stored once.
+	 */
+	private static class Heap {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+		private final Map<String,Integer> offsets = new HashMap<>();
+
+		int add(String s) {
+			Integer offset = offsets.get(s);
+			if (offset != null) return offset;
+			offset = bytes.size();
+			byte[] b = s.getBytes(UTF_8);
+			try {
+				out.writeInt(b.length);
+				out.write(b);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Shouldn't happen: not using actual I/O", e);
+			}
+			offsets.put(s, offset);
+			return offset;
+		}
+
+		int size() {
+			return bytes.size();
+		}
+
+		void writeTo(OutputStream os) throws IOException {
+			bytes.writeTo(os);
+		}
+	}
+
+	private static final int BENCH_SEGMENT_RECORDS = 10 << 18; // about 100MB
+	private static final int BENCH_ENTRY_RECORDS = 1 << 18;
+	private static final int BENCH_USERS = 1000;
+
+	/**
+	 * Make up an archive of segments of about 100MB each, unless the directory already holds one.
+	 * Each segment asks ten questions, each answered by the same users again and again.
+	 * @param dir directory to hold the segments
+	 * @param bytes approximate size of the archive
+	 * @return segment files
+	 */
+	private static List<File> makeArchive(File dir, long bytes) throws IOException {
+		List<File> files = new ArrayList<>();
+		int n = (int)Math.max(1, bytes / ((long)BENCH_SEGMENT_RECORDS * RECORD_SIZE));
+		for (int i = 0; i < n; ++i) {
+			files.add(new File(dir, "segment" + i + ".qseg"));
+		}
+		if (files.get(n - 1).exists()) return files;
+		dir.mkdirs();
+		User.Users users = new User.Users();
+		LocalDateTime now = LocalDateTime.now();
+		String[] answers = { "a", "b", "c", "d" };
+		Response[] made = new Response[BENCH_USERS * answers.length];
+		for (int r = 0; r < made.length; ++r) {
+			made[r] = new Response(users.get("user" + r / answers.length), answers[r % answers.length], now);
+			made[r].stamp(r, r);
+		}
+		for (int i = 0; i < n; ++i) {
+			ResponseLog log = new ResponseLog();
+			for (int e = 0; e < BENCH_SEGMENT_RECORDS / BENCH_ENTRY_RECORDS; ++e) {
+				ChoiceQuestion q = new ChoiceQuestion();
+				q.setQuestion("Question " + e + " of segment " + i);
+				for (String a : answers) q.addChoice(a);
+				log.startQuestion(q);
+				for (int r = 0; r < BENCH_ENTRY_RECORDS; ++r) {
+					log.addResponse(made[(int)(((long)r * 7919) % made.length)]);
+				}
+				log.stopQuestion();
+			}
+			write(log, files.get(i));
+		}
+		return files;
+	}
+
+	/**
+	 * Time how long it takes to answer a first query from an archive of segments:
+	 * opening every segment, then counting the answers to the first question.
+	 * Then time a scan of every record, counting the responses with the first response's text.
+	 * @param dir directory holding (or to hold) the archive
+	 * @param bytes approximate size of archive to make up, if not there already
+	 */
+	private static void bench(File dir, long bytes) throws IOException {
+		List<File> files = makeArchive(dir, bytes);
+		long size = 0;
+		for (File f : files) size += f.length();
+		long start = System.nanoTime();
+		List<ResponseSegment> segments = new ArrayList<>();
+		for (File f : files) segments.add(open(f));
+		long opened = System.nanoTime();
+		ResponseSegment first = segments.get(0);
+		Map<Integer,Integer> counts = new HashMap<>();
+		int from = first.getFirstRecord(0);
+		for (int r = from; r < from + first.getRecordCount(0); ++r) {
+			counts.merge(first.getTextOffset(r), 1, Integer::sum);
+		}
+		StringBuilder sb = new StringBuilder(first.getQuestion(0).getQuestion().trim());
+		for (Map.Entry<Integer,Integer> c : counts.entrySet()) {
+			sb.append(' ').append(first.getString(c.getKey())).append('=').append(c.getValue());
+		}
+		long queried = System.nanoTime();
+		long records = 0, same = 0;
+		String text = first.getText(0);
+		for (ResponseSegment s : segments) {
+			int offset = -1;
+			for (int r = 0; r < s.getRecordCount() && offset < 0; ++r) {
+				if (s.getText(r).equals(text)) offset = s.getTextOffset(r);
+			}
+			for (int r = 0; r < s.getRecordCount(); ++r) {
+				if (s.getTextOffset(r) == offset) ++same;
+			}
+			records += s.getRecordCount();
+		}
+		long scanned = System.nanoTime();
+		for (ResponseSegment s : segments) s.close();
+		System.out.println(sb);
+		System.out.printf("%d segments, %.1f MB: opened in %.1f ms, first query in %.1f ms, "
+				+ "scan of %d records (%d answered %s) in %.1f ms%n", files.size(), size / 1e6, (opened - start) / 1e6,
+				(queried - opened) / 1e6, records, same, text, (scanned - queried) / 1e6);
+	}
+
+	/**
+	 * Convert between XML response logs and segments, or time queries on an archive of segments
+	 * (made up first, of about the given size, unless the directory already holds one):
+	 * <pre>ResponseSegment to-segment LOG.xml SEGMENT
+	 *ResponseSegment to-xml SEGMENT LOG.xml
+	 *ResponseSegment bench DIRECTORY [SIZE, e.g. 1g]</pre>
+	 * To time a first query with a cold cache, run bench once to make the archive,
+	 * drop the operating system's page cache, and run it again.
+	 * @param args direction, input file and output file; or bench and its arguments
+	 */
+	public static void main(String[] args) throws IOException, ParseException {
+		boolean bench = args.length >= 2 && args.length <= 3 && args[0].equals("bench");
+		if (!bench && (args.length != 3 || !args[0].equals("to-segment") && !args[0].equals("to-xml"))) {
+			System.err.println("usage: ResponseSegment to-segment LOG.xml SEGMENT | to-xml SEGMENT LOG.xml | bench DIRECTORY [SIZE]");
+			System.exit(1);
+		}
+		User.Users users = new User.Users();
+		XMLObject.register("ResponseLog", () -> { return new ResponseLog(); });
+		XMLObject.register("ChoiceQuestion", () -> { return new ChoiceQuestion(); });
+		XMLObject.register("FreeResponseQuestion", () -> { return new FreeResponseQuestion(); });
+		XMLObject.register("Choice", () -> { return new Choice(); });
+		XMLObject.register("Response", () -> { return new Response(users); });
+		if (bench) {
+			long size = 1L << 30;
+			if (args.length == 3) {
+				String s = args[2].toLowerCase();
+				long unit = s.endsWith("g") ? 1L << 30 : s.endsWith("m") ? 1L << 20 : 1;
+				size = Long.parseLong(unit == 1 ? s : s.substring(0, s.length() - 1)) * unit;
+			}
+			bench(new File(args[1]), size);
+			return;
+		}
+		long start = System.nanoTime();
+		if (args[0].equals("to-segment")) {
+			XMLObject obj;
+			try (InputStream in = new BufferedInputStream(new FileInputStream(args[1]))) {
+				obj = XMLObject.fromXML(new XMLTokenizer(in));
+			}
+			if (!(obj instanceof ResponseLog)) throw new ParseException("not a response log: " + obj);
+			write((ResponseLog)obj, new File(args[2]));
+		} else {
+			ResponseLog log = new ResponseLog();
+			try (ResponseSegment s = open(new File(args[1]))) {
+				s.readInto(log, users);
+			}
+			try (OutputStream os = new BufferedOutputStream(new FileOutputStream(args[2]))) {
+				XMLWriter xw = new XMLWriter(os);
+				log.toXML(xw);
+				xw.flush();
+			}
+		}
+		System.err.printf("converted in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+	}
+}
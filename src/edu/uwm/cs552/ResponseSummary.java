@@ -0,0 +1,68 @@
+package edu.uwm.cs552;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A summary of the responses to a question at some moment: how often each answer
+ * was given and which responses came first and last.  A summary doesn't change;
+ * the log keeps the counts up to date as responses arrive, so making one
+ * only costs time in the number of different answers, not the number of responses.
+ * @see ResponseLog#getResponseSummary(Question)
+ */
+public class ResponseSummary {
+	private final int count;
+	private final Set<Map.Entry<String,Integer>> answers;
+	private final Response first, last;
+
+	ResponseSummary(int n, Set<Map.Entry<String,Integer>> a, Response f, Response l) {
+		count = n;
+		answers = Collections.unmodifiableSet(new LinkedHashSet<>(a));
+		first = f;
+		last = l;
+	}
+
+	/**
+	 * Return the number of responses.
+	 * @return number of responses
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Return each different answer with the number of times it was given,
+	 * in decreasing order of count.  The answers of a response
+	 * are determined by {@link Question#getAnswers(String)}.
+	 * @return read-only set of answers and counts, never null
+	 */
+	public Set<Map.Entry<String,Integer>> getAnswerCounts() {
+		return answers;
+	}
+
+	/**
+	 * Return the number of different answers given.
+	 * @return number of distinct answers
+	 */
+	public int getDistinctCount() {
+		return answers.size();
+	}
+
+	/**
+	 * Return the first response logged.
+	 * @return first response, or null if none
+	 */
+	public Response getFirst() {
+		return first;
+	}
+
+	/**
+	 * Return the last response logged.
+	 * @return last response, or null if none
+	 */
+	public Response getLast() {
+		return last;
+	}
+}
@@ -1,12 +1,18 @@
 package edu.uwm.cs552;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.swing.ListModel;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ListDataEvent;
 import javax.swing.event.ListDataListener;
 
@@ -15,13 +21,17 @@ public class User {
 	private static String DOMAIN = "uwm.edu";
 
 	private final String name;
+	private final int id;
+	
+	private static final Comparator<User> BY_NAME = (u1, u2) -> u1.name.compareTo(u2.name);
 	
 	private User() {
 		throw new IllegalStateException("can't call empty constructor");
 	}
 	
-	private User(String n) {
+	private User(String n, int i) {
 		name = n;
+		id = i;
 	}
 
 	
@@ -33,75 +43,198 @@ public class User {
 		return name;
 	}
 
+	/**
+	 * Return the id of this user, unique within its {@link Users} registry.
+	 * @return dense id, starting at zero
+	 */
+	public int getId() {
+		return id;
+	}
+
 	@Override
 	public String toString() {
 		return name + "@" + DOMAIN;
 	}
 
+	/**
+	 * A registry of users, one per name.  Lookups do not lock, and a new user is
+	 * inserted into the sorted order incrementally (binary search), so loading
+	 * a large roster is not quadratic.  Each user gets a dense id (0, 1, 2, ...
+	 * in order of creation) that can be used instead of a reference for
+	 * compact storage elsewhere.
+	 * <p>
+	 * As a {@link ListModel}, users appear in order of name.  The list seen by
+	 * Swing changes only on the event thread, once per batch of additions,
+	 * so adding users from other threads (or thousands at once) is safe and cheap.
+	 */
 	public static class Users implements ListModel<User>, Iterable<User> {
-		private Map<String,User> index = new TreeMap<>();
-		private List<User> cache = new ArrayList<>();
-		private List<ListDataListener> listeners = new ArrayList<>();
-		
+		private final Map<String,User> index = new ConcurrentHashMap<>();
+		private volatile User[] byId = new User[16];
+		private int nextId = 0;
+		private final List<User> sorted = new ArrayList<>(); // guarded by this
+		private volatile List<User> view = new ArrayList<>(); // what listeners have been told about
+		private boolean flushPending = false; // guarded by this
+		private final List<ListDataListener> listeners = new CopyOnWriteArrayList<>();
+
+		/**
+		 * Return the user with the given name, if any.  Does not lock.
+		 * @param n name of user
+		 * @return user, or null if there is no user with this name
+		 */
 		public User find(String n) {
 			return index.get(n);
 		}
-		
+
+		/**
+		 * Return the user with the given name, creating it if necessary.
+		 * @param n name of user, must not be null
+		 * @return user, never null
+		 */
 		public User get(String n) {
-			User u  = find(n);
-			if (u == null) {
-				u = new User(n);
-				index.put(n, u);
-				// super easy, but inefficient
-				cache.clear();
-				cache.addAll(index.values());
-				int index = cache.indexOf(u);
-				for (ListDataListener l : listeners) {
-					l.intervalAdded(new ListDataEvent(this, ListDataEvent.INTERVAL_ADDED, index, index));
+			User u = index.get(n);
+			if (u != null) return u;
+			synchronized (this) {
+				u = index.get(n);
+				if (u == null) {
+					u = create(n);
+					int i = Collections.binarySearch(sorted, u, BY_NAME);
+					sorted.add(-i-1, u);
+					changed();
 				}
 			}
 			return u;
 		}
 
+		/**
+		 * Return the users with the given names, creating any that are missing.
+		 * The sorted order is rebuilt once for the whole batch, so this
+		 * is the way to load a large roster.
+		 * @param names names of users, must not be null
+		 * @return users for each name, in the same order
+		 */
+		public synchronized List<User> getAll(Collection<String> names) {
+			List<User> result = new ArrayList<>(names.size());
+			int before = sorted.size();
+			for (String n : names) {
+				User u = index.get(n);
+				if (u == null) {
+					u = create(n);
+					sorted.add(u);
+				}
+				result.add(u);
+			}
+			if (sorted.size() > before) {
+				sorted.sort(BY_NAME);
+				changed();
+			}
+			return result;
+		}
+
+		/**
+		 * Return the user with the given id.  Does not lock.
+		 * @param id dense id, as returned by {@link User#getId()}
+		 * @return user, or null if no user has that id
+		 */
+		public User get(int id) {
+			User[] a = byId;
+			return id >= 0 && id < a.length ? a[id] : null;
+		}
+
+		/**
+		 * Return the number of users.
+		 * @return number of users (ids are less than this)
+		 */
+		public int size() {
+			return index.size();
+		}
+
+		private User create(String n) { // called with lock held
+			User u = new User(n, nextId++);
+			User[] a = byId;
+			if (u.id >= a.length) {
+				a = Arrays.copyOf(a, a.length * 2);
+			}
+			a[u.id] = u;
+			byId = a;
+			index.put(n, u);
+			return u;
+		}
+
+		/**
+		 * Arrange for listeners to hear about the latest additions.
+		 * Called with lock held.
+		 */
+		private void changed() {
+			if (listeners.isEmpty() || flushPending) return;
+			flushPending = true;
+			SwingUtilities.invokeLater(() -> flush());
+		}
+
+		/**
+		 * Bring the view up to date and tell listeners.  Called on the event thread.
+		 */
+		private void flush() {
+			int oldSize = view.size();
+			synchronized (this) {
+				flushPending = false;
+				view = new ArrayList<>(sorted);
+			}
+			int newSize = view.size();
+			if (newSize == oldSize) return;
+			ListDataEvent added = new ListDataEvent(this, ListDataEvent.INTERVAL_ADDED, oldSize, newSize-1);
+			ListDataEvent moved = oldSize == 0 ? null : new ListDataEvent(this, ListDataEvent.CONTENTS_CHANGED, 0, oldSize-1);
+			for (ListDataListener l : listeners) {
+				l.intervalAdded(added);
+				if (moved != null) l.contentsChanged(moved);
+			}
+		}
+
+		/**
+		 * Return the view, bringing it up to date first if no one is listening
+		 * (and so no one needs to be told).
+		 */
+		private List<User> getView() {
+			if (listeners.isEmpty()) {
+				synchronized (this) {
+					if (view.size() != sorted.size()) view = new ArrayList<>(sorted);
+				}
+			}
+			return view;
+		}
+
 		@Override
 		public int getSize() {
-			return cache.size();
+			return getView().size();
 		}
 
 		@Override
 		public User getElementAt(int index) {
-			return cache.get(index);
+			return getView().get(index);
 		}
 
 		@Override
 		public void addListDataListener(ListDataListener l) {
+			getView();
 			listeners.add(l);
+			synchronized (this) {
+				if (view.size() != sorted.size()) changed();
+			}
 		}
 
 		@Override
 		public void removeListDataListener(ListDataListener l) {
 			listeners.remove(l);
 		}
-		
+
+		/**
+		 * Iterate over the users in order of name, as of now:
+		 * users added later are not included.
+		 */
 		@Override
 		public Iterator<User> iterator() {
-			return new MyIterator();
-		}
-
-		private class MyIterator implements Iterator<User> {
-			private Iterator<User> underlying = index.values().iterator();
-
-			@Override
-			public boolean hasNext() {
-				return underlying.hasNext();
-			}
-
-			@Override
-			public User next() {
-				return underlying.next();
+			synchronized (this) {
+				return new ArrayList<>(sorted).iterator();
 			}
-			
-			// No remove needed: Java 8 remove has a default implementation
 		}
 	}
 
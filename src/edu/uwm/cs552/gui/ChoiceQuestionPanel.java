@@ -4,18 +4,16 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.Reader;
-import java.util.List;
 
 import javax.swing.JFrame;
 import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 
-import edu.uwm.cs.util.Histogram;
 import edu.uwm.cs.util.MultiSelectionModel;
 import edu.uwm.cs.util.XMLTokenizer;
 import edu.uwm.cs552.ChoiceQuestion;
 import edu.uwm.cs552.Question;
-import edu.uwm.cs552.Response;
+import edu.uwm.cs552.ResponseSummary;
 import edu.uwm.cs552.XMLObject;
 import edu.uwm.cs552.XMLObject.ParseException;
 
@@ -38,17 +36,11 @@ public class ChoiceQuestionPanel extends QuestionPanel {
 	}
 	
 	@Override
-	public void showResponses(List<Response> li) {
-		Histogram<String> h = new Histogram<>();
-		for (Response r : li) {
-			for (String s : r.getText().split(" ")) {
-				h.add(s);
-			}
-		}
+	public void showResponses(ResponseSummary s) {
 		// Changes the indices of the choices
 		// to the number of responses which 
-		// selected them based on the histogram.
-		((ChoicesFlowComponent) responseComponent).switchIndexToCount(h.entrySet());
+		// selected them based on the summary.
+		((ChoicesFlowComponent) responseComponent).switchIndexToCount(s.getAnswerCounts());
 	}
 
 	public static void main(String[] args) throws FileNotFoundException, ParseException {
@@ -5,7 +5,6 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.Reader;
-import java.util.List;
 import java.util.Map.Entry;
 
 import javax.swing.BorderFactory;
@@ -14,11 +13,10 @@ import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 import javax.swing.border.BevelBorder;
 
-import edu.uwm.cs.util.Histogram;
 import edu.uwm.cs.util.XMLTokenizer;
 import edu.uwm.cs552.FreeResponseQuestion;
 import edu.uwm.cs552.Question;
-import edu.uwm.cs552.Response;
+import edu.uwm.cs552.ResponseSummary;
 import edu.uwm.cs552.XMLObject;
 import edu.uwm.cs552.XMLObject.ParseException;
 
@@ -46,13 +44,9 @@ public class FreeResponseQuestionPanel extends QuestionPanel {
 	}
 
 	@Override
-	public void showResponses(List<Response> li) {
-		Histogram<String> h = new Histogram<>();
-		for (Response r : li) {
-			h.add(r.getText());
-		}
+	public void showResponses(ResponseSummary s) {
 		StringBuilder sb = new StringBuilder();
-		for (Entry<String, Integer> e : h.entrySet()) {
+		for (Entry<String, Integer> e : s.getAnswerCounts()) {
 			if (e.getValue() > 1) {
 				sb.append(e.getValue() + " " + e.getKey() + "\n");
 			}
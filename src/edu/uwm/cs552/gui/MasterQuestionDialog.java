@@ -3,21 +3,29 @@ package edu.uwm.cs552.gui;
 import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.util.Observable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.Timer;
 import javax.swing.WindowConstants;
 
 import edu.uwm.cs552.Question;
 import edu.uwm.cs552.ResponseLog;
+import edu.uwm.cs552.net.Metrics;
 /**
  * JFrame which displays the options and view for the master user
  * when asking the users of the program a question. Provides the
  * ability to abort an asked question, view the results/close a
  * question, and view the number of responses received in live time.
+ * The log may change on other threads; the response count is refreshed
+ * at most every {@link #REFRESH_MILLIS} milliseconds however many responses arrive.
+ * If the log measures how long responses take (see {@link ResponseLog#getTimingSummary(Question)}),
+ * that is shown too.
  */
 public class MasterQuestionDialog extends JFrame implements QuestionDialog {
 	
@@ -25,27 +33,40 @@ public class MasterQuestionDialog extends JFrame implements QuestionDialog {
 	 * KEH
 	 */
 	private static final long serialVersionUID = 1L;
+	public static final int REFRESH_MILLIS = 200;
+	
 	private QuestionPanel questionPane;
 	private final ResponseLog log;
 	private final JLabel responseCount = new JLabel();
+	private final JLabel timing = new JLabel();
 	private boolean questionInProgress = false;
 	private boolean showResults = false;
 	
 	private final JButton abortButton = new JButton("Abort");
 	private final JButton resultsButton = new JButton("Show Results");
 	private final JButton doneButton = new JButton("Done");
+	
+	private final AtomicBoolean refreshPending = new AtomicBoolean();
+	private final Timer refreshTimer = new Timer(REFRESH_MILLIS, (ae) -> refresh());
 
 	public MasterQuestionDialog(ResponseLog r) {
 		super("Master Question Dialog");
 		log = r;
 		log.addObserver(this);
+		refreshTimer.setRepeats(false);
+		if (Integer.getInteger(Metrics.PORT_PROPERTY) != null) {
+			// the server shares our event thread: report how far behind it gets
+			Metrics.getDefault().startEventQueueProbe();
+		}
 		
 		setSize(500, 300);
 		setLayout(new BorderLayout());
 		setDefaultCloseOperation(WindowConstants.HIDE_ON_CLOSE);
 		
 		JPanel northPanel = new JPanel();
+		northPanel.setLayout(new BoxLayout(northPanel, BoxLayout.Y_AXIS));
 		northPanel.add(responseCount);
+		northPanel.add(timing);
 		add(northPanel, BorderLayout.NORTH);
 		
 		JPanel buttonPanel = new JPanel();
@@ -91,6 +112,7 @@ public class MasterQuestionDialog extends JFrame implements QuestionDialog {
 			remove(questionPane);
 			questionPane = null;
 			responseCount.setText("Responses: ");
+			timing.setText("");
 			setAllButtonsEnabled(false);
 			setVisible(false);
 		});
@@ -106,7 +128,7 @@ public class MasterQuestionDialog extends JFrame implements QuestionDialog {
 		
 		add(questionPane, BorderLayout.CENTER);
 		log.startQuestion(q);
-		int count = log.getResponses(questionPane.question).size();
+		int count = log.getResponseCount(questionPane.question);
 		responseCount.setText("Responses: " + count);
 		setVisible(true);
 		setAllButtonsEnabled(true);
@@ -123,7 +145,8 @@ public class MasterQuestionDialog extends JFrame implements QuestionDialog {
 		log.stopQuestion();
 		questionInProgress = false;
 		showResults = true;
-		questionPane.showResponses(log.getResponses(questionPane.question));
+		questionPane.showResponses(log.getResponseSummary(questionPane.question));
+		showTiming();
 	}
 
 	@Override
@@ -136,15 +159,37 @@ public class MasterQuestionDialog extends JFrame implements QuestionDialog {
 		questionPane = null;
 		log.abortQuestion();
 		responseCount.setText("Responses: ");
+		timing.setText("");
 		setAllButtonsEnabled(false);
 		setVisible(false);
 	}
 
+	/**
+	 * Note that the log has changed.  This may be called on any thread:
+	 * the display is refreshed later on the Swing thread.
+	 */
 	@Override
 	public void update(Observable o, Object arg) {
+		if (refreshPending.compareAndSet(false, true)) {
+			refreshTimer.restart();
+		}
+	}
+	
+	private void refresh() {
+		refreshPending.set(false);
 		if (!questionInProgress) return;
-		int count = log.getResponses(questionPane.question).size();
+		int count = log.getResponseCount(questionPane.question);
 		responseCount.setText("Responses: " + count);
+		showTiming();
+	}
+
+	/**
+	 * Show how long responses are taking, if the log measures this.
+	 */
+	private void showTiming() {
+		String summary = questionPane == null ? null : log.getTimingSummary(questionPane.question);
+		if (summary == null) timing.setText("");
+		else timing.setText("<html>" + summary.replace("\n", "<br>") + "</html>");
 	}
 
 	@Override
@@ -15,6 +15,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -39,6 +40,7 @@ import edu.uwm.cs.util.XMLWriter;
 import edu.uwm.cs552.ChoiceQuestion;
 import edu.uwm.cs552.FreeResponseQuestion;
 import edu.uwm.cs552.Question;
+import edu.uwm.cs552.ResponseJournal;
 import edu.uwm.cs552.Script;
 import edu.uwm.cs552.User;
 import edu.uwm.cs552.XMLObject;
@@ -86,6 +88,28 @@ public class QuestionFrame extends JFrame {
 		        doQuit();
 		      }
 		});
+		openJournal();
+	}
+
+	/**
+	 * Journal the response log, if a journal file is given by {@link ResponseJournal#FILE_PROPERTY},
+	 * restoring any responses left in it by a session that didn't write its log.
+	 */
+	private void openJournal() {
+		String file = System.getProperty(ResponseJournal.FILE_PROPERTY);
+		if (file == null) return;
+		String policy = System.getProperty(ResponseJournal.SYNC_PROPERTY, ResponseJournal.Sync.BATCH.name());
+		try {
+			ResponseJournal.open(new File(file), ResponseJournal.Sync.valueOf(policy.toUpperCase()), responseLog);
+		} catch (IOException|IllegalArgumentException e) {
+			SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, e.getLocalizedMessage(), "Journal Error", JOptionPane.ERROR_MESSAGE));
+			return;
+		}
+		if (!responseLog.isEmpty()) {
+			SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+					"Restored " + responseLog.getQuestions().size() + " questions from the journal of an earlier session.",
+					"Journal", JOptionPane.INFORMATION_MESSAGE));
+		}
 	}
 	
 	private void makeContentPane() {
@@ -409,12 +433,21 @@ public class QuestionFrame extends JFrame {
 				  if (!responseLog.isEmpty()) return; // write failed.
 				  break;
 			  case JOptionPane.NO_OPTION:
+				  responseLog.clear(); // so the journal doesn't restore it
 				  break;
 			  case JOptionPane.CANCEL_OPTION:
 			  default:
 				  return;
 			  }
 		  }
+		  ResponseJournal journal = responseLog.getJournal();
+		  if (journal != null) {
+			  try {
+				  journal.close();
+			  } catch (IOException e) {
+				  e.printStackTrace();
+			  }
+		  }
 		  System.exit(0);
 	  }
 	  
@@ -464,11 +497,13 @@ public class QuestionFrame extends JFrame {
 		  try {
 			  File usersFile = myFileChooser.getSelectedFile();
 			  BufferedReader br = new BufferedReader(new FileReader(usersFile));
+			  List<String> names = new ArrayList<>();
 			  String name;
 			  while ((name = br.readLine()) != null) {
-				  allusers.get(name);
+				  names.add(name);
 			  }
 			  br.close();
+			  allusers.getAll(names);
 		  } catch (IOException e) {
 			  JOptionPane.showMessageDialog(this, e.getLocalizedMessage(), "Read Users Error", JOptionPane.ERROR_MESSAGE);
 			  return;
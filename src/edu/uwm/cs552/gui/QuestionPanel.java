@@ -2,7 +2,6 @@ package edu.uwm.cs552.gui;
 
 import java.awt.Color;
 import java.awt.Graphics;
-import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
 
@@ -13,6 +12,7 @@ import edu.uwm.cs552.ChoiceQuestion;
 import edu.uwm.cs552.FreeResponseQuestion;
 import edu.uwm.cs552.Question;
 import edu.uwm.cs552.Response;
+import edu.uwm.cs552.ResponseSummary;
 import edu.uwm.cs552.User;
 
 public abstract class QuestionPanel extends FlowFillingPanel implements Observer {
@@ -88,10 +88,10 @@ public abstract class QuestionPanel extends FlowFillingPanel implements Observer
 	}
 	
 	/**
-	 * Display the passes responses in this QuestionPanel.
-	 * @param li list of Response's to display
+	 * Display the responses summarized in this QuestionPanel.
+	 * @param s summary of responses to display, must not be null
 	 */
-	public abstract void showResponses(List<Response> li);
+	public abstract void showResponses(ResponseSummary s);
 	
 	/**
 	 * Instantiate and return a QuestionPanel for the passed parameters.
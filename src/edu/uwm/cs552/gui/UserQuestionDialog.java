@@ -1,6 +1,9 @@
 package edu.uwm.cs552.gui;
 
 import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Observable;
 
 import javax.swing.JButton;
@@ -27,6 +30,10 @@ public class UserQuestionDialog extends JFrame implements QuestionDialog {
 	private QuestionPanel questionPane;
 	private ResponseLog log;
 	private boolean questionInProgress = false;
+	/** panels built ahead of time for questions not yet started, oldest first */
+	private final List<QuestionPanel> prepared = new ArrayList<>();
+	private static final int MAX_PREPARED = 8;
+	private Dimension panelSize;
 	
 	public UserQuestionDialog(User u, ResponseLog r) {
 		super(u.toString() + ": Please answer");
@@ -49,12 +56,38 @@ public class UserQuestionDialog extends JFrame implements QuestionDialog {
 		add(submit, BorderLayout.SOUTH);
 	}
 
+	/**
+	 * Build the panel for a question that will be asked soon, so that starting
+	 * it is quick.  Once a question has been shown, later panels are laid out
+	 * ahead of time too (at the size the last one had).
+	 * @param q question to prepare for, must not be null
+	 */
+	public void prepare(Question q) {
+		for (QuestionPanel p : prepared) {
+			if (p.question == q) return;
+		}
+		QuestionPanel p = QuestionPanel.createQuestionPanel(q, null, false);
+		if (panelSize != null) {
+			// not in the dialog yet, so it doesn't inherit the font it will have there
+			p.setFont(getContentPane().getFont());
+			p.setSize(panelSize);
+			p.doLayout();
+		}
+		prepared.add(p);
+		if (prepared.size() > MAX_PREPARED) prepared.remove(0).dispose();
+	}
+
 	@Override
 	public void start(Question q) {
 		if (questionInProgress) 
 			throw new IllegalStateException("Cannot ask start a question while one is in progress");
 		questionInProgress = true;
-		questionPane = QuestionPanel.createQuestionPanel(q, null, false);
+		questionPane = null;
+		for (QuestionPanel p : prepared) {
+			if (p.question == q) questionPane = p;
+		}
+		if (questionPane == null) questionPane = QuestionPanel.createQuestionPanel(q, null, false);
+		else prepared.remove(questionPane);
 		add(questionPane, BorderLayout.CENTER);
 		this.setVisible(true);
 	}
@@ -65,6 +98,7 @@ public class UserQuestionDialog extends JFrame implements QuestionDialog {
 			throw new IllegalStateException("Cannot stop a question when one is not in progress");
 		log.addResponse(questionPane.getResponse(user));
 		questionInProgress = false;
+		panelSize = questionPane.getSize();
 		remove(questionPane);
 		questionPane.dispose();
 		questionPane = null;
@@ -76,6 +110,7 @@ public class UserQuestionDialog extends JFrame implements QuestionDialog {
 		if (!questionInProgress)
 			throw new IllegalStateException("Cannot abort a question when one is not in progress");
 		questionInProgress = false;
+		panelSize = questionPane.getSize();
 		remove(questionPane);
 		questionPane.dispose();
 		questionPane = null;
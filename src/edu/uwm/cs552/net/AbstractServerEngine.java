@@ -0,0 +1,437 @@
+package edu.uwm.cs552.net;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.uwm.cs.util.TokenBucket;
+import edu.uwm.cs552.Response;
+import edu.uwm.cs552.User;
+import edu.uwm.cs552.XMLObject;
+
+/**
+ * Settings and state shared by the server engines.
+ * Settings should be changed before the engine is started.
+ * <p>
+ * The engine keeps track of every open connection.  Clients that say they
+ * understand heartbeats are sent a {@link Heartbeat} regularly and are
+ * disconnected if nothing is heard from them for too long.
+ * <p>
+ * To keep any one client (or a crowd of them) from swamping the server,
+ * new connections are admitted only at a limited rate, and only while not too
+ * many are still in the middle of their handshake.  Each client (other than a relay)
+ * may send responses only at a limited rate; responses beyond that are dropped,
+ * the client is told with an {@link Error} saying when to try again, and input
+ * from it is not even read until it may send again.
+ */
+public abstract class AbstractServerEngine implements ServerEngine {
+	public static final long DEFAULT_HEARTBEAT_MILLIS = 10000;
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 45000;
+	/**
+	 * How many connections may wait to be accepted.  This must be large enough
+	 * for a whole room reconnecting at once (e.g. after the network drops);
+	 * connections beyond the backlog wait a second or more to retry.
+	 */
+	public static final int ACCEPT_BACKLOG = 1024;
+	/** Responses per second allowed from a client, enough for any person clicking. */
+	public static final double DEFAULT_RESPONSE_RATE = 10;
+	public static final int DEFAULT_RESPONSE_BURST = 20;
+	/** New connections per second: a full room of 1000 can reconnect within a second or two. */
+	public static final double DEFAULT_ACCEPT_RATE = 1000;
+	public static final int DEFAULT_ACCEPT_BURST = ACCEPT_BACKLOG;
+	public static final int DEFAULT_MAX_HANDSHAKES = ACCEPT_BACKLOG;
+	private static final EncodedElement HEARTBEAT = EncodedElement.encode(new Heartbeat());
+
+	protected final int port;
+	protected Handler handler;
+	private final ElementQueue.Settings queueSettings = new ElementQueue.Settings();
+	protected int maxBatch = BackgroundXMLObjectStream.DEFAULT_MAX_BATCH;
+	protected long linger = 0;
+	private long heartbeatInterval = DEFAULT_HEARTBEAT_MILLIS;
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT_MILLIS;
+	private double responseRate = DEFAULT_RESPONSE_RATE;
+	private int responseBurst = DEFAULT_RESPONSE_BURST;
+	private TokenBucket accepts = new TokenBucket(DEFAULT_ACCEPT_RATE, DEFAULT_ACCEPT_BURST);
+	private int maxHandshakes = DEFAULT_MAX_HANDSHAKES;
+	private final AtomicInteger handshakes = new AtomicInteger();
+
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+	private ScheduledExecutorService monitor;
+	private volatile int halfOpen = 0;
+
+	/** labels of this engine's metrics */
+	protected final String metricLabels;
+	protected final Metrics.Counter bytesIn;
+	protected final Metrics.Counter bytesOut;
+	protected final Metrics.Counter protocolErrors;
+	private final Metrics.Counter refused;
+	private final Metrics.Counter throttled;
+
+	protected AbstractServerEngine(int p) {
+		port = p;
+		metricLabels = "port=\"" + p + "\"";
+		Metrics m = Metrics.getDefault();
+		bytesIn = m.counter("quiz_bytes_in_total", metricLabels, "Bytes received from clients.");
+		bytesOut = m.counter("quiz_bytes_out_total", metricLabels, "Bytes sent to clients.");
+		protocolErrors = m.counter("quiz_protocol_errors_total", metricLabels,
+				"Connections closed because of malformed input.");
+		refused = m.counter("quiz_refused_connections_total", metricLabels,
+				"Connections closed on accept because too many were arriving.");
+		throttled = m.counter("quiz_throttled_responses_total", metricLabels,
+				"Responses dropped because a client sent them too fast.");
+	}
+
+	@Override
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Return the settings used for the output queue of each new connection:
+	 * its capacity and what to do with a slow client.
+	 * @return queue settings (mutable), never null
+	 */
+	public ElementQueue.Settings getQueueSettings() {
+		return queueSettings;
+	}
+
+	/**
+	 * Set how many queued elements may be sent to a client at once.
+	 * @param max maximum number of elements in one write, must be positive
+	 * @param lingerMillis time to wait for more elements before writing,
+	 * if the engine can wait (0 to write as soon as possible).
+	 * @see BackgroundXMLObjectStream#setBatching(int, long)
+	 */
+	public void setBatching(int max, long lingerMillis) {
+		if (max <= 0) throw new IllegalArgumentException("batch size must be positive");
+		maxBatch = max;
+		linger = lingerMillis;
+	}
+
+	/**
+	 * Set how often heartbeats are sent, and how long a client that understands
+	 * heartbeats may be silent before being disconnected.
+	 * @param intervalMillis time between heartbeats, must be positive
+	 * @param timeoutMillis idle time after which a client is disconnected,
+	 * must be larger than the interval
+	 */
+	public void setHeartbeat(long intervalMillis, long timeoutMillis) {
+		if (intervalMillis <= 0 || timeoutMillis <= intervalMillis) throw new IllegalArgumentException("bad heartbeat times");
+		heartbeatInterval = intervalMillis;
+		idleTimeout = timeoutMillis;
+	}
+
+	/**
+	 * Set how fast each client may send responses.  Relays are not limited.
+	 * @param perSecond responses per second allowed on average, or 0 for no limit
+	 * @param burst how many responses may be sent at once, must be positive
+	 */
+	public void setResponseRate(double perSecond, int burst) {
+		if (perSecond < 0 || burst <= 0) throw new IllegalArgumentException("bad response rate");
+		responseRate = perSecond;
+		responseBurst = burst;
+	}
+
+	/**
+	 * Set how fast new connections are admitted.  A connection that arrives
+	 * when too many have arrived recently, or when too many are still in their handshake,
+	 * is closed at once; clients reconnect after a delay.
+	 * @param perSecond connections per second allowed on average, must be positive
+	 * @param burst how many connections may arrive at once, must be positive
+	 * @param maxPending how many connections may be in their handshake at once, must be positive
+	 */
+	public void setAdmission(double perSecond, int burst, int maxPending) {
+		if (maxPending <= 0) throw new IllegalArgumentException("bad handshake limit");
+		accepts = new TokenBucket(perSecond, burst);
+		maxHandshakes = maxPending;
+	}
+
+	/**
+	 * Decide whether to keep a connection just accepted.
+	 * Engines call this, and close the connection if it returns false.
+	 * @return whether to admit the connection
+	 */
+	protected boolean admit() {
+		if (handshakes.get() >= maxHandshakes || !accepts.tryTake()) {
+			refused.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Run a task after a delay, on the monitor's thread.
+	 * @param r task, should be quick
+	 * @param nanos delay in nanoseconds
+	 */
+	protected void schedule(Runnable r, long nanos) {
+		try {
+			monitor.schedule(r, nanos, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			// closing: the task doesn't matter any more
+		}
+	}
+
+	@Override
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	@Override
+	public int getHalfOpenCount() {
+		return halfOpen;
+	}
+
+	/**
+	 * Start sending heartbeats and reaping idle connections.
+	 * Engines call this when they start.
+	 */
+	protected void startMonitor() {
+		monitor = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "connection-monitor");
+			t.setDaemon(true);
+			return t;
+		});
+		monitor.scheduleWithFixedDelay(() -> checkConnections(), heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+		Metrics m = Metrics.getDefault();
+		m.gauge("quiz_connections", metricLabels, "Open connections, logged in or not.", () -> connections.size());
+		m.gauge("quiz_half_open_connections", metricLabels, "Connections that have missed heartbeats.", () -> halfOpen);
+		m.gauge("quiz_queued_elements", metricLabels, "Elements waiting to be sent, over all connections.", () -> {
+			long total = 0;
+			for (Connection c : connections) total += c.getOutputQueue().size();
+			return total;
+		});
+		m.gauge("quiz_queued_elements_max", metricLabels, "Elements waiting to be sent to the most backed up connection.", () -> {
+			long max = 0;
+			for (Connection c : connections) max = Math.max(max, c.getOutputQueue().size());
+			return max;
+		});
+		m.gauge("quiz_queued_bytes", metricLabels, "Bytes waiting to be sent, over all connections.", () -> {
+			long total = 0;
+			for (Connection c : connections) total += c.getOutputQueue().getBytes();
+			return total;
+		});
+	}
+
+	/**
+	 * Stop the monitor, and close every connection immediately.
+	 * Engines call this when they close.
+	 */
+	protected void stopMonitor() {
+		if (monitor != null) monitor.shutdownNow();
+		Metrics.getDefault().removeAll(metricLabels);
+		for (Connection c : connections) {
+			c.abort();
+		}
+	}
+
+	private void checkConnections() {
+		long now = System.currentTimeMillis();
+		int count = 0;
+		for (Connection c : connections) {
+			boolean loggedIn = c.getUser() != null;
+			// clients that never finish the handshake are reaped too
+			if (loggedIn && !c.heartbeat) continue;
+			long idle = now - c.lastHeard;
+			if (idle >= idleTimeout) {
+				c.abort();
+				continue;
+			}
+			if (!loggedIn) continue;
+			if (idle >= 2 * heartbeatInterval) ++count;
+			c.write(HEARTBEAT);
+		}
+		halfOpen = count;
+	}
+
+	/**
+	 * The part of a connection that the engine keeps track of, and the
+	 * decoding of what the client sends, which is the same for every engine.
+	 * A connection is tracked from when it is created until {@link #closed()} is called.
+	 */
+	protected abstract class Connection implements ClientConnection, ElementDecoder.Listener {
+		private volatile long lastHeard = System.currentTimeMillis();
+		private volatile boolean heartbeat = false;
+		private volatile User user;
+		private final ElementDecoder decoder = new ElementDecoder((name) -> lookup(name), this);
+		private boolean outputStarted = false;
+		private boolean handshaking = true;
+		private TokenBucket responses;
+		private boolean throttling = false;
+		private long pause = 0;
+
+		protected Connection() {
+			connections.add(this);
+			handshakes.incrementAndGet();
+		}
+
+		@Override
+		public User getUser() {
+			return user;
+		}
+
+		/**
+		 * Decode bytes received from the client.
+		 * @param buf array holding bytes
+		 * @param off offset to start at
+		 * @param len number of bytes received
+		 * @throws IOException if the input is malformed or is rejected by the handler
+		 */
+		protected void input(byte[] buf, int off, int len) throws IOException {
+			heard();
+			bytesIn.add(len);
+			try {
+				decoder.feed(buf, off, len);
+			} catch (IOException e) {
+				protocolErrors.increment();
+				throw e;
+			}
+		}
+
+		/**
+		 * Return how long to wait before reading more input, because the client
+		 * has been sending responses too fast.  Resets the wait.
+		 * @return nanoseconds to wait, or 0 to keep reading
+		 */
+		protected long takePause() {
+			long p = pause;
+			pause = 0;
+			return p;
+		}
+
+		/**
+		 * Return whether the client has finished its top-level element.
+		 * @return whether all input has been read
+		 */
+		protected boolean isInputDone() {
+			return decoder.isDone();
+		}
+
+		/**
+		 * Start sending the top-level Requests element, with the given attributes.
+		 * Elements written before this are held back until now.
+		 * This is called once, on the thread reading input, before the handler
+		 * hears about the connection.
+		 * @param attributes attributes of start tag, never null
+		 */
+		protected abstract void startOutput(Map<String,String> attributes);
+
+		/**
+		 * Start output, using the same encoding the client asked for.
+		 * @param request attributes the client sent
+		 */
+		private void startOutputLike(Map<String,String> request) {
+			if (outputStarted) return;
+			outputStarted = true;
+			Map<String,String> attributes = new HashMap<>();
+			if (BinaryCodec.isBinary(request)) {
+				attributes.put(BinaryCodec.WIRE_ATTRIBUTE, BinaryCodec.BINARY);
+			}
+			if (ElementEncoder.isDeflated(request)) {
+				attributes.put(ElementEncoder.COMPRESS_ATTRIBUTE, ElementEncoder.DEFLATE);
+			}
+			startOutput(attributes);
+		}
+
+		private User lookup(String name) {
+			User u = user;
+			if (u == null) return null;
+			if (u.getName().equals(name)) return u;
+			return handler.findUser(this, name);
+		}
+
+		private void refuse() throws IOException {
+			startOutputLike(Collections.emptyMap());
+			write(new Error("Malformed/Illegal request response."));
+			throw new IOException("Initial client response illegal.");
+		}
+
+		@Override
+		public void attribute(String name, String value) throws IOException {
+			if (!"UserResponses".equals(decoder.getRootName())) refuse();
+			if (user == null && name.equals("user")) {
+				user = login(decoder.getAttributes());
+			}
+		}
+
+		@Override
+		public void startTagClosed() throws IOException {
+			if (user == null) refuse();
+		}
+
+		@Override
+		public void element(XMLObject obj) throws IOException {
+			if (obj instanceof Heartbeat) return;
+			if (obj instanceof Response && responses != null) {
+				if (!responses.tryTake()) {
+					throttled.increment();
+					pause = responses.getWait();
+					if (!throttling) {
+						throttling = true;
+						write(new Error(Error.THROTTLED, TimeUnit.NANOSECONDS.toMillis(pause) + 1));
+					}
+					return;
+				}
+				throttling = false;
+			}
+			handler.received(this, obj);
+		}
+
+		@Override
+		public void end() throws IOException {
+			close();
+		}
+
+		/**
+		 * Note that something was received from the client.
+		 */
+		protected void heard() {
+			lastHeard = System.currentTimeMillis();
+		}
+
+		/**
+		 * The handshake has been received: log in the user.
+		 * @param attributes attributes of the top-level element
+		 * @return user logged in
+		 * @throws IOException if the login is refused
+		 */
+		private User login(Map<String,String> attributes) throws IOException {
+			heartbeat = Boolean.parseBoolean(attributes.get("heartbeat"));
+			if (responseRate > 0 && !Boolean.parseBoolean(attributes.get(NetworkResponseLog.RELAY_ATTRIBUTE))) {
+				responses = new TokenBucket(responseRate, responseBurst);
+			}
+			startOutputLike(attributes);
+			User u = handler.login(this, attributes);
+			handshakeDone();
+			return u;
+		}
+
+		/**
+		 * Close the connection immediately, without sending anything else.
+		 */
+		protected abstract void abort();
+
+		/**
+		 * The connection has been closed: stop tracking it.
+		 */
+		protected void closed() {
+			connections.remove(this);
+			handshakeDone();
+		}
+
+		private synchronized void handshakeDone() {
+			if (handshaking) {
+				handshaking = false;
+				handshakes.decrementAndGet();
+			}
+		}
+	}
+}
@@ -1,41 +1,76 @@
 package edu.uwm.cs552.net;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
 
-import edu.uwm.cs.util.XMLWriter;
 import edu.uwm.cs552.XMLObject;
 
 /**
  * A concurrent ADT that allows us to send the sub elements of an XML object
  * (presumably the top-level element) concurrently.
+ * Elements are queued already encoded, so that an element sent to many
+ * streams need only be serialized once.  What happens when the backlog 
+ * grows too large is up to the {@link ElementQueue}.
+ * The background thread writes everything that is queued as a single batch
+ * and flushes once per batch rather than once per element.
+ * The attributes may ask for the nested elements to be encoded
+ * differently (see {@link ElementEncoder}).
  */
 public class BackgroundXMLObjectStream {
 	
-	final int QUEUE_CAPACITY = 10;
+	public static final int DEFAULT_MAX_BATCH = 64;
 	
-	private final XMLWriter xw;
+	private final OutputStream out;
 	private final String name;
 	private final Map<String, String> attr;
 	private final Thread backgroundThread;
-	private final BlockingQueue<XMLObject> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final ElementQueue queue;
+	private volatile int maxBatch = DEFAULT_MAX_BATCH;
+	private volatile long linger = 0;
 	
 	/**
 	 * Create the object with the given top-level element name and attributes.
-	 * (The elements will be added later.) The given XML writer will be used to write everything, 
+	 * (The elements will be added later.) The given stream will be used to write everything, 
 	 * but only in the background thread (that the constructor will create and start)
-	 * @param xw
+	 * @param out
 	 * @param name
 	 * @param attr
 	 */
-	public BackgroundXMLObjectStream(XMLWriter xw, String name, Map<String, String> attr) {
-		this.xw = xw;
+	public BackgroundXMLObjectStream(OutputStream out, String name, Map<String, String> attr) {
+		this(out, name, attr, Thread::new);
+	}
+	
+	/**
+	 * Create the object as above, but with the background thread created by the
+	 * given factory (which may, for instance, create virtual threads).
+	 * @param out
+	 * @param name
+	 * @param attr
+	 * @param tf factory for the background thread, must not be null
+	 */
+	public BackgroundXMLObjectStream(OutputStream out, String name, Map<String, String> attr, ThreadFactory tf) {
+		this(out, name, attr, tf, new ElementQueue.Settings().create());
+	}
+	
+	/**
+	 * Create the object as above, using the given queue for the backlog.
+	 * @param out
+	 * @param name
+	 * @param attr
+	 * @param tf factory for the background thread, must not be null
+	 * @param q queue to use, must be empty and not used for anything else
+	 */
+	public BackgroundXMLObjectStream(OutputStream out, String name, Map<String, String> attr, ThreadFactory tf, ElementQueue q) {
+		this.out = new BufferedOutputStream(out);
+		queue = q;
 		this.name = name;
 		this.attr = attr;
-		backgroundThread = new Thread(() -> doWrite());
+		backgroundThread = tf.newThread(() -> doWrite());
 		backgroundThread.start();
 	}
 	
@@ -47,47 +82,99 @@ public class BackgroundXMLObjectStream {
 	 * @return
 	 */
 	public boolean write(XMLObject obj) {
-		return queue.offer(obj);
+		return write(EncodedElement.encode(obj));
 	}
 	
 	/**
-	 * Indicate that no more elements will be added to the top-level element. 
-	 * Arrange that the XML writer is closed afterwards. Return false if the 
-	 * backlog is too great to perform this action.
+	 * Arrange for the already encoded element to be written as a nested element
+	 * of the top-level element.  Return false if the element was not queued
+	 * because the backlog is too great (see {@link ElementQueue#offer(EncodedElement)}).
+	 * @param e
 	 * @return
 	 */
+	public boolean write(EncodedElement e) {
+		return queue.offer(e);
+	}
+	
+	/**
+	 * Indicate that no more elements will be added to the top-level element. 
+	 * Arrange that the stream is closed afterwards.
+	 * @return true (for compatibility)
+	 */
 	public boolean close() {
-		return queue.offer(CLOSE_TOKEN);
+		queue.close();
+		return true;
+	}
+	
+	/**
+	 * Set how elements are batched before flushing.  After the first element 
+	 * of a batch is available, the background thread waits up to the linger 
+	 * time for more elements, unless the batch is already full.
+	 * @param max maximum number of elements written between flushes, must be positive
+	 * @param lingerMillis time to wait for more elements, 0 to flush as soon as possible.
+	 */
+	public void setBatching(int max, long lingerMillis) {
+		if (max <= 0) throw new IllegalArgumentException("batch size must be positive");
+		maxBatch = max;
+		linger = lingerMillis;
+	}
+	
+	/**
+	 * Return the queue of elements waiting to be written, for its statistics.
+	 * @return queue, never null
+	 */
+	public ElementQueue getQueue() {
+		return queue;
+	}
+	
+	/**
+	 * Add whatever else is queued to the batch, waiting for the linger time if necessary.
+	 */
+	private void fillBatch(List<EncodedElement> batch) throws InterruptedException {
+		int max = maxBatch;
+		queue.drainTo(batch, max - batch.size());
+		long lingerMillis = linger;
+		if (lingerMillis <= 0) return;
+		long deadline = System.currentTimeMillis() + lingerMillis;
+		while (batch.size() < max) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) break;
+			EncodedElement e = queue.poll(remaining);
+			if (e == null) break;
+			batch.add(e);
+			queue.drainTo(batch, max - batch.size());
+		}
 	}
 	
 	/**
 	 * Background threads job.
 	 */
 	private void doWrite() {
+		ElementEncoder encoder = new ElementEncoder(attr);
 		try {
-			xw.writeElementStart(name);
-			for (Entry<String, String> e : attr.entrySet()) {
-				xw.writeAttr(e.getKey(), e.getValue());
-			}
-			xw.flush();
+			EncodedElement.startTag(name, attr).writeTo(out);
+			out.flush();
+			List<EncodedElement> batch = new ArrayList<>();
 			for (;;) {
-				XMLObject obj = queue.take();
-				if (obj == CLOSE_TOKEN) break;
-				obj.toXML(xw);
-				xw.flush();
+				EncodedElement e = queue.take();
+				if (e == null) break;
+				batch.add(e);
+				fillBatch(batch);
+				for (EncodedElement x : batch) {
+					out.write(encoder.encode(x));
+				}
+				out.flush();
+				batch.clear();
+			}
+			if (!queue.isOverflowed()) {
+				out.write(encoder.encode(EncodedElement.endTag(name)));
 			}
-			xw.writeElementDone(name);
-			xw.flush();
-			xw.close();
+			out.flush();
+			out.close();
 		} catch (IOException |InterruptedException e) {
 			e.printStackTrace();
+		} finally {
+			encoder.close();
 		}
 	}
-	
-	private static final XMLObject CLOSE_TOKEN = new XMLObject() {
-		@Override
-		protected String getXMLelementName() {
-			return "CLOSE_TOKEN";
-		}
-	};
 }
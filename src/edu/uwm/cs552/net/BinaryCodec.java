@@ -0,0 +1,462 @@
+package edu.uwm.cs552.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+import edu.uwm.cs.util.XMLTokenizer;
+import edu.uwm.cs552.Choice;
+import edu.uwm.cs552.ChoiceQuestion;
+import edu.uwm.cs552.FreeResponseQuestion;
+import edu.uwm.cs552.Response;
+import edu.uwm.cs552.User;
+import edu.uwm.cs552.XMLObject;
+import edu.uwm.cs552.XMLObject.ParseException;
+
+/**
+ * A compact alternative to XML for the nested elements of the network protocol.
+ * A side that puts wire="binary" on its top-level start tag (which is always XML)
+ * sends everything after the start tag as binary frames instead of XML elements.
+ * <p>
+ * Each frame is a length followed by a type code and the fields of the element.
+ * Lengths and numbers are unsigned varints (7 bits per byte, low bits first),
+ * strings are a varint byte count followed by UTF-8.  Users are interned:
+ * the first time a user is mentioned on a stream, a frame defines a small number
+ * for it, which is used from then on.  Timestamps are microseconds since the epoch
+ * (the precision XML timestamps have), zigzag encoded (0, -1, 1, -2 ... as 0, 1, 2, 3 ...)
+ * so that times before the epoch are short too, plus one, so that 0 means none.
+ * (Times over 100,000 years from the epoch are sent as none.)  Optional fields come last, and
+ * are omitted when absent.  Elements without a binary form of their
+ * own are sent as a frame holding their XML.  The end of the top-level element
+ * is a frame of its own.
+ */
+public final class BinaryCodec {
+	public static final String WIRE_ATTRIBUTE = "wire";
+	public static final String BINARY = "binary";
+
+	public static final int MAX_FRAME_SIZE = 1 << 20;
+
+	private static final int END = 0;
+	private static final int USER = 1;
+	private static final int RESPONSE = 2;
+	private static final int CHOICE_QUESTION = 3;
+	private static final int FREE_RESPONSE_QUESTION = 4;
+	private static final int RESPONSE_TIME_DONE = 5;
+	private static final int ERROR = 6;
+	private static final int HEARTBEAT = 7;
+	private static final int XML = 8;
+
+	private static final ZoneId ZONE = ZoneId.systemDefault();
+
+	private BinaryCodec() { }
+
+	/**
+	 * Return whether the attributes of a top-level element ask for binary frames.
+	 * @param attributes attributes of start tag, must not be null
+	 * @return whether binary frames follow the start tag
+	 */
+	public static boolean isBinary(Map<String,String> attributes) {
+		return BINARY.equals(attributes.get(WIRE_ATTRIBUTE));
+	}
+
+	/**
+	 * Return the frame that ends the top-level element.
+	 * @return encoding of end of stream
+	 */
+	public static byte[] endFrame() {
+		Frame f = new Frame(END);
+		return f.finish();
+	}
+
+	/**
+	 * Encode an element that does not depend on any stream state,
+	 * and so can be shared by all streams.
+	 * @param obj element to encode, must not be null
+	 * @return binary encoding
+	 */
+	public static byte[] encodeShared(XMLObject obj) {
+		return new Encoder().encode(obj);
+	}
+
+	/**
+	 * The encoder for one stream.  It remembers which users have been defined.
+	 * Not thread-safe: only the thread writing the stream should use it.
+	 */
+	public static class Encoder {
+		private final Map<User,Integer> userIds = new HashMap<>();
+
+		/**
+		 * Return the binary form of an already encoded element.
+		 * Only responses have to be encoded again: the shared encoding
+		 * of everything else is used as is.
+		 * @param e encoded element, must not be null
+		 * @return bytes to send
+		 */
+		public byte[] encode(EncodedElement e) {
+			if (e.getSource() instanceof Response) return encode(e.getSource());
+			return e.getBinary();
+		}
+
+		/**
+		 * Encode an element in binary.
+		 * @param obj element to encode, must not be null
+		 * @return one or more frames
+		 */
+		public byte[] encode(XMLObject obj) {
+			if (obj instanceof Response) {
+				Response r = (Response)obj;
+				byte[] def = null;
+				Integer id = userIds.get(r.getUser());
+				if (id == null) {
+					id = userIds.size();
+					userIds.put(r.getUser(), id);
+					Frame f = new Frame(USER);
+					f.writeVarint(id);
+					f.writeString(r.getUser().getName());
+					def = f.finish();
+				}
+				Frame f = new Frame(RESPONSE);
+				f.writeVarint(id);
+				f.writeTimestamp(r.getTimestamp());
+				f.writeString(r.getText());
+				if (r.getThinkTime() >= 0) f.writeVarint(r.getThinkTime());
+				byte[] result = f.finish();
+				if (def == null) return result;
+				byte[] both = Arrays.copyOf(def, def.length + result.length);
+				System.arraycopy(result, 0, both, def.length, result.length);
+				return both;
+			} else if (obj instanceof ChoiceQuestion) {
+				ChoiceQuestion q = (ChoiceQuestion)obj;
+				Frame f = new Frame(CHOICE_QUESTION);
+				f.writeString(q.getQuestion());
+				f.writeVarint(q.getChoiceStyle().ordinal());
+				f.writeVarint(q.canSelectMultiple() ? 1 : 0);
+				f.writeVarint(q.numChoices());
+				for (Choice c : q) {
+					f.writeString(c.getText());
+				}
+				return f.finish();
+			} else if (obj instanceof FreeResponseQuestion) {
+				Frame f = new Frame(FREE_RESPONSE_QUESTION);
+				f.writeString(((FreeResponseQuestion)obj).getQuestion());
+				return f.finish();
+			} else if (obj instanceof ResponseTimeDone) {
+				return new Frame(RESPONSE_TIME_DONE).finish();
+			} else if (obj instanceof Error) {
+				Frame f = new Frame(ERROR);
+				f.writeString(((Error)obj).getError());
+				if (((Error)obj).getRetryDelay() >= 0) f.writeVarint(((Error)obj).getRetryDelay());
+				return f.finish();
+			} else if (obj instanceof Heartbeat) {
+				return new Frame(HEARTBEAT).finish();
+			}
+			Frame f = new Frame(XML);
+			f.writeString(obj.toXMLString());
+			return f.finish();
+		}
+	}
+
+	/**
+	 * What the decoder reports.
+	 */
+	public interface Listener {
+		/**
+		 * A complete element has been decoded.
+		 * @param obj element, never null
+		 * @throws IOException if the listener rejects the element
+		 */
+		public void element(XMLObject obj) throws IOException;
+
+		/**
+		 * The top-level element has ended.
+		 * @throws IOException if the listener has a problem with this
+		 */
+		public void end() throws IOException;
+	}
+
+	/**
+	 * The decoder for one stream.  Bytes may be fed in whatever chunks they arrive in.
+	 */
+	public static class Decoder {
+		private final Function<String,User> users;
+		private final Listener listener;
+		private final List<User> userIds = new ArrayList<>();
+		private byte[] buffer = new byte[256];
+		private int length = 0;
+		private boolean done = false;
+
+		/**
+		 * Create a decoder.
+		 * @param lookup how to find the user for a name; may return null
+		 * if the user is not acceptable, or be null if no responses are expected.
+		 * @param l listener to report to, must not be null
+		 */
+		public Decoder(Function<String,User> lookup, Listener l) {
+			users = lookup;
+			listener = l;
+		}
+
+		/**
+		 * Return whether the end frame has been read.  Further bytes are ignored.
+		 * @return whether the stream is finished
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Feed some more bytes to the decoder. Listener calls are made during this call.
+		 * @param buf array holding bytes
+		 * @param off offset to start at
+		 * @param len number of bytes to process
+		 * @throws IOException if a frame is malformed or the listener throws an exception
+		 */
+		public void feed(byte[] buf, int off, int len) throws IOException {
+			if (done) return;
+			if (length + len > buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.max(length + len, buffer.length * 2));
+			}
+			System.arraycopy(buf, off, buffer, length, len);
+			length += len;
+			int start = 0;
+			while (!done) {
+				Reader r = new Reader(buffer, start, length);
+				long size = r.readVarint();
+				if (size < 0) break;
+				if (size > MAX_FRAME_SIZE) throw new IOException("binary frame too large");
+				if (r.pos + size > length) break;
+				start = r.pos + (int)size;
+				decode(new Reader(buffer, r.pos, start));
+			}
+			System.arraycopy(buffer, start, buffer, 0, length - start);
+			length -= start;
+		}
+
+		private void decode(Reader r) throws IOException {
+			int type = (int)r.readField();
+			switch (type) {
+			case END:
+				done = true;
+				listener.end();
+				return;
+			case USER:
+				int id = (int)r.readField();
+				String name = r.readString();
+				if (id != userIds.size()) throw new IOException("users defined out of order");
+				User u = users == null ? null : users.apply(name);
+				if (u == null) throw new IOException("unexpected user in binary frame: " + name);
+				userIds.add(u);
+				return;
+			case RESPONSE:
+				int uid = (int)r.readField();
+				if (uid >= userIds.size()) throw new IOException("undefined user #" + uid);
+				LocalDateTime timestamp = r.readTimestamp();
+				Response response = new Response(userIds.get(uid), r.readString(), timestamp);
+				if (r.pos < r.limit) response.setThinkTime(r.readField());
+				listener.element(response);
+				return;
+			case CHOICE_QUESTION:
+				ChoiceQuestion cq = new ChoiceQuestion();
+				cq.setQuestion(r.readString());
+				int style = (int)r.readField();
+				if (style >= Choice.Style.values().length) throw new IOException("bad choice style " + style);
+				cq.setChoiceStyle(Choice.Style.values()[style]);
+				cq.setSelectMultiple(r.readField() != 0);
+				for (long n = r.readField(); n > 0; --n) {
+					cq.addChoice(r.readString());
+				}
+				listener.element(cq);
+				return;
+			case FREE_RESPONSE_QUESTION:
+				FreeResponseQuestion fq = new FreeResponseQuestion();
+				fq.setQuestion(r.readString());
+				listener.element(fq);
+				return;
+			case RESPONSE_TIME_DONE:
+				listener.element(new ResponseTimeDone());
+				return;
+			case ERROR:
+				String error = r.readString();
+				listener.element(r.pos < r.limit ? new Error(error, r.readField()) : new Error(error));
+				return;
+			case HEARTBEAT:
+				listener.element(new Heartbeat());
+				return;
+			case XML:
+				try {
+					listener.element(XMLObject.fromXML(new XMLTokenizer(new StringReader(r.readString()))));
+				} catch (ParseException e) {
+					throw new IOException("Illegal element in binary frame: " + e.getMessage());
+				}
+				return;
+			default:
+				throw new IOException("unknown binary frame type " + type);
+			}
+		}
+	}
+
+	/** Timestamps must be less than this many microseconds from the epoch (about 146,000 years). */
+	private static final long MAX_MICROS = 1L << 62;
+
+	private static long toMicros(LocalDateTime t) {
+		return ChronoUnit.MICROS.between(Instant.EPOCH, t.atZone(ZONE).toInstant());
+	}
+
+	private static LocalDateTime fromMicros(long micros) {
+		return LocalDateTime.ofInstant(Instant.EPOCH.plus(micros, ChronoUnit.MICROS), ZONE);
+	}
+
+	/**
+	 * Check that the timestamps of responses are decoded as they were encoded,
+	 * including none, the epoch itself and times before it.
+	 * @param args ignored
+	 */
+	public static void main(String[] args) throws IOException {
+		User u = new User.Users().get("u");
+		LocalDateTime[] times = { null, fromMicros(0), fromMicros(-1), fromMicros(1),
+				LocalDateTime.of(1969, 7, 20, 20, 17, 40), LocalDateTime.now().truncatedTo(ChronoUnit.MICROS) };
+		List<XMLObject> decoded = new ArrayList<>();
+		Decoder decoder = new Decoder((name) -> u, new Listener() {
+			@Override
+			public void element(XMLObject obj) {
+				decoded.add(obj);
+			}
+
+			@Override
+			public void end() { }
+		});
+		Encoder encoder = new Encoder();
+		int failures = 0;
+		for (LocalDateTime t : times) {
+			byte[] b = encoder.encode(new Response(u, "a", t));
+			decoder.feed(b, 0, b.length);
+			LocalDateTime back = ((Response)decoded.get(decoded.size() - 1)).getTimestamp();
+			if (!Objects.equals(t, back)) {
+				System.out.println(t + " came back as " + back);
+				++failures;
+			}
+		}
+		System.out.println(failures == 0 ? "OK" : failures + " failures");
+		if (failures > 0) System.exit(1);
+	}
+
+	/**
+	 * A frame being built.
+	 */
+	private static class Frame extends ByteArrayOutputStream {
+		Frame(int type) {
+			writeVarint(type);
+		}
+
+		void writeVarint(long v) {
+			while ((v & ~0x7FL) != 0) {
+				write((int)((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			write((int)v);
+		}
+
+		/**
+		 * Write a timestamp: see the class comment.
+		 * @param t timestamp, or null for none
+		 */
+		void writeTimestamp(LocalDateTime t) {
+			long micros;
+			try {
+				micros = t == null ? MAX_MICROS : toMicros(t);
+			} catch (ArithmeticException e) {
+				micros = MAX_MICROS;
+			}
+			if (micros >= MAX_MICROS || micros < -MAX_MICROS) {
+				writeVarint(0);
+			} else {
+				writeVarint(((micros << 1) ^ (micros >> 63)) + 1);
+			}
+		}
+
+		void writeString(String s) {
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			writeVarint(b.length);
+			write(b, 0, b.length);
+		}
+
+		/**
+		 * Return the frame with its length in front.
+		 */
+		byte[] finish() {
+			Frame result = new Frame(count);
+			result.write(buf, 0, count);
+			return result.toByteArray();
+		}
+	}
+
+	/**
+	 * A cursor over the bytes of a frame.
+	 */
+	private static class Reader {
+		private final byte[] bytes;
+		private final int limit;
+		int pos;
+
+		Reader(byte[] b, int start, int end) {
+			bytes = b;
+			pos = start;
+			limit = end;
+		}
+
+		/**
+		 * Read a varint.
+		 * @return value read, or -1 if the bytes run out first.
+		 */
+		long readVarint() throws IOException {
+			long result = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (pos >= limit) return -1;
+				byte b = bytes[pos++];
+				result |= (long)(b & 0x7F) << shift;
+				if (b >= 0) return result;
+			}
+			throw new IOException("varint too long");
+		}
+
+		/**
+		 * Read a varint that must be present in the frame.
+		 */
+		long readField() throws IOException {
+			long result = readVarint();
+			if (result < 0) throw new IOException("binary frame truncated");
+			return result;
+		}
+
+		/**
+		 * Read a timestamp that must be present in the frame: see the class comment.
+		 * @return timestamp, or null for none
+		 */
+		LocalDateTime readTimestamp() throws IOException {
+			long v = readField();
+			if (v == 0) return null;
+			long zigzag = v - 1;
+			return fromMicros((zigzag >>> 1) ^ -(zigzag & 1));
+		}
+
+		String readString() throws IOException {
+			long n = readField();
+			if (n > limit - pos) throw new IOException("binary frame truncated");
+			String s = new String(bytes, pos, (int)n, StandardCharsets.UTF_8);
+			pos += (int)n;
+			return s;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package edu.uwm.cs552.net;
+
+import edu.uwm.cs552.User;
+import edu.uwm.cs552.XMLObject;
+
+/**
+ * A connection from a single client, as seen by the server.
+ * How the connection is implemented is up to the {@link ServerEngine}.
+ */
+public interface ClientConnection {
+
+	/**
+	 * Return the user logged in on this connection.
+	 * @return user, or null if the handshake has not completed yet.
+	 */
+	public User getUser();
+
+	/**
+	 * Arrange for the given element to be sent to the client (nested in
+	 * the top-level Requests element).  The sending happens in the background.
+	 * @param obj element to send, must not be null
+	 * @return false if the backlog is too great to perform the action.
+	 */
+	public default boolean write(XMLObject obj) {
+		return write(EncodedElement.encode(obj));
+	}
+
+	/**
+	 * Arrange for the already encoded element to be sent to the client.
+	 * The same encoded element may be shared by many connections.
+	 * @param e encoded element, must not be null
+	 * @return false if the backlog is too great to perform the action.
+	 */
+	public boolean write(EncodedElement e);
+
+	/**
+	 * Arrange for the already encoded element to be sent to the client,
+	 * counting any wait for room in the queue from the given time.
+	 * @param e encoded element, must not be null
+	 * @param since when to count the wait from (see {@link ElementQueue#offer(EncodedElement, long)})
+	 * @return false if the backlog is too great to perform the action.
+	 */
+	public default boolean write(EncodedElement e, long since) {
+		return write(e);
+	}
+
+	/**
+	 * Return the queue of elements waiting to be sent to this client,
+	 * which keeps statistics on drops and high-water marks.
+	 * @return output queue, never null
+	 */
+	public ElementQueue getOutputQueue();
+
+	/**
+	 * End the connection: the Requests element is finished and the socket closed
+	 * once everything already written has been sent.
+	 */
+	public void close();
+}
@@ -1,23 +1,24 @@
 package edu.uwm.cs552.net;
 
 import java.io.IOException;
-import java.net.Socket;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 import javax.swing.SwingUtilities;
 
-import edu.uwm.cs.util.XMLTokenizer;
-import edu.uwm.cs.util.XMLWriter;
 import edu.uwm.cs552.Choice;
 import edu.uwm.cs552.ChoiceQuestion;
 import edu.uwm.cs552.FreeResponseQuestion;
+import edu.uwm.cs552.LocalResponseLog;
 import edu.uwm.cs552.Question;
 import edu.uwm.cs552.Response;
 import edu.uwm.cs552.Script;
 import edu.uwm.cs552.User;
 import edu.uwm.cs552.User.Users;
 import edu.uwm.cs552.XMLObject;
-import edu.uwm.cs552.gui.LocalResponseLog;
 import edu.uwm.cs552.net.UserResponses;
 /**
  * A ResponseLog which supports a client
@@ -28,9 +29,16 @@ public class ClientResponseLog extends LocalResponseLog {
 	private final String server;
 	private final int port;
 	
-	private Socket connection;
-	private Thread inputThread;
-	private BackgroundXMLObjectStream outputQueue;
+	private final Map<String,String> options;
+	/** Longest wait between attempts to reconnect. */
+	public static final long MAX_RECONNECT_DELAY_MILLIS = 5000;
+	
+	private volatile ServerConnection connection;
+	// session state, used only on the input thread:
+	private String session;
+	private long sequence = -1;
+	private boolean questionInProgress = false;
+	private volatile long questionReceived;
 	
 	/**
 	 * Constructor for ClientResponseLog
@@ -39,60 +47,144 @@ public class ClientResponseLog extends LocalResponseLog {
 	 * @param p: port 
 	 */
 	public ClientResponseLog(Users client, String s, int p) {
+		this(client, s, p, Collections.emptyMap());
+	}
+
+	/**
+	 * Constructor for ClientResponseLog
+	 * @param client: User.Users class holding the client of this
+	 * @param s: name of the server to connect with
+	 * @param p: port 
+	 * @param options: extra attributes for the handshake, such as
+	 * wire="binary" (see {@link BinaryCodec}) or compress="deflate" (see {@link ElementEncoder})
+	 */
+	public ClientResponseLog(Users client, String s, int p, Map<String,String> options) {
 		super(client);
 		user = client.getElementAt(0);
 		server = s;
 		port = p;
+		this.options = options;
 		try {
-			connection = new Socket(server, port);
-			outputQueue = new BackgroundXMLObjectStream(new XMLWriter(connection.getOutputStream()), "UserResponses", Collections.singletonMap("user", user.getName()));
+			connect();
 		} catch (IOException e) {
 			e.printStackTrace();
-			return;
 		}
-		inputThread = new Thread(() -> doInput());
-		inputThread.start();
+	}
+
+	/**
+	 * Connect to the server, resuming the session if we have one.
+	 */
+	private void connect() throws IOException {
+		Map<String,String> attributes = new LinkedHashMap<>(options);
+		attributes.put(NetworkResponseLog.PREFETCH_ATTRIBUTE, "true");
+		if (session != null) {
+			attributes.put(NetworkResponseLog.SESSION_ATTRIBUTE, session);
+			attributes.put(NetworkResponseLog.SEQUENCE_ATTRIBUTE, Long.toString(sequence));
+		}
+		connection = new ServerConnection(server, port, user.getName(), attributes, new ServerEvents());
+	}
+
+	/**
+	 * Keep trying to connect again, waiting longer each time.
+	 * The waits are randomized so that many clients that lose their
+	 * connections at the same time don't all come back at the same time.
+	 */
+	private void reconnect() {
+		long delay = 100;
+		for (;;) {
+			try {
+				Thread.sleep(delay/2 + ThreadLocalRandom.current().nextLong(delay/2 + 1));
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				connect();
+				return;
+			} catch (IOException e) {
+				System.out.println(user.getName() + " could not reconnect: " + e.getMessage());
+			}
+			delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
+		}
 	}
 
 	@Override
 	public void addResponse(Response r) {
+		r.setThinkTime((System.nanoTime() - questionReceived) / 1000);
 		super.addResponse(r);
-		outputQueue.write(r);
+		connection.write(r);
 	}
 
-	private void doInput() {
-		boolean questionInProgress = false;
-		try {
-			XMLTokenizer xt = new XMLTokenizer(connection.getInputStream());
-			xt.next(); xt.next();
-			for (;;) {
-				if (xt.hasNext()) {
-					XMLObject obj = fromXML(xt);
-					if (obj instanceof Question) {
-						System.out.println(user.getName() + " received a Question from the server.");
-						questionInProgress = true;
-						SwingUtilities.invokeLater(() -> startQuestion((Question) obj));
-					} else if (obj instanceof ResponseTimeDone) {
-						if (!questionInProgress) continue;
-						System.out.println(user.getName() + " received a ResponseTimeDone signal from the server.");
-						questionInProgress = false;
-						SwingUtilities.invokeLater(() -> stopQuestion());
-					} else if (obj instanceof Error) {
-						System.out.print(user.getName() + " received an Error: ");
-						System.out.println(((Error) obj).getError());
-					} else {
-						throw new IOException();
-					}
+	/**
+	 * What the server sends us, as decoded on the input thread.
+	 */
+	private class ServerEvents implements ServerConnection.Listener {
+		/**
+		 * Questions sent ahead of time on this connection, by id.  A new connection
+		 * starts afresh, since the server sends everything outstanding at login.
+		 */
+		private final Map<Long,Question> prefetched = new LinkedHashMap<Long,Question>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long,Question> eldest) {
+				return size() > NetworkResponseLog.MAX_PREFETCH;
+			}
+		};
+
+		@Override
+		public void received(XMLObject obj) throws IOException {
+			if (obj instanceof Session) {
+				Session s = (Session) obj;
+				if (questionInProgress && !(s.getId().equals(session) && s.getSequence() == sequence)) {
+					// we missed the end of our question
+					questionInProgress = false;
+					SwingUtilities.invokeLater(() -> stopQuestion());
 				}
+				session = s.getId();
+				sequence = s.getSequence();
+			} else if (obj instanceof Prefetch) {
+				Prefetch p = (Prefetch) obj;
+				if (prefetched.putIfAbsent(p.getId(), p.getQuestion()) == null) {
+					SwingUtilities.invokeLater(() -> prepareQuestion(p.getQuestion()));
+				}
+			} else if (obj instanceof Reveal) {
+				Question q = prefetched.remove(((Reveal) obj).getId());
+				if (q == null) throw new IOException("Reveal of a question never sent: " + obj);
+				received(q);
+			} else if (obj instanceof Question) {
+				questionReceived = System.nanoTime();
+				++sequence;
+				System.out.println(user.getName() + " received a Question from the server.");
+				boolean stale = questionInProgress;
+				questionInProgress = true;
+				SwingUtilities.invokeLater(() -> {
+					if (stale) stopQuestion();
+					startQuestion((Question) obj);
+				});
+			} else if (obj instanceof ResponseTimeDone) {
+				++sequence;
+				if (!questionInProgress) return;
+				System.out.println(user.getName() + " received a ResponseTimeDone signal from the server.");
+				questionInProgress = false;
+				SwingUtilities.invokeLater(() -> stopQuestion());
+			} else if (obj instanceof Error) {
+				System.out.print(user.getName() + " received an Error: ");
+				System.out.println(((Error) obj).getError());
+			} else {
+				throw new IOException("Unexpected element from server: " + obj);
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (ParseException e) {
-			e.printStackTrace();
 		}
-		outputQueue.close();
-		try { Thread.sleep(100); } catch (InterruptedException e) { }
-		System.exit(0);
+
+		@Override
+		public void disconnected(boolean orderly) {
+			if (!orderly) {
+				System.out.println(user.getName() + " lost the connection: reconnecting.");
+				reconnect();
+				return;
+			}
+			try { Thread.sleep(100); } catch (InterruptedException e) { }
+			System.exit(0);
+		}
 	}
 	
 	public static void main(String[] args) {
@@ -104,6 +196,7 @@ public class ClientResponseLog extends LocalResponseLog {
 		String userName = "guest";
 		String server = "localhost";
 		int port = 53129;
+		Map<String,String> options = new HashMap<>();
 		for (String s : args) {
 			if (s.startsWith("--user=")) {
 				userName = s.substring(7);
@@ -111,13 +204,19 @@ public class ClientResponseLog extends LocalResponseLog {
 				server = s.substring(9);
 			} else if (s.startsWith("--port=")) {
 				port = Integer.parseInt(s.substring(7));
+			} else if (s.startsWith("--wire=")) {
+				options.put(BinaryCodec.WIRE_ATTRIBUTE, s.substring(7));
+			} else if (s.startsWith("--compress=")) {
+				options.put(ElementEncoder.COMPRESS_ATTRIBUTE, s.substring(11));
+			} else if (s.startsWith("--room=")) {
+				options.put(RoomServer.ROOM_ATTRIBUTE, s.substring(7));
 			}
 		}
 		User.Users client = new Users();
 		client.get(userName);
 		try {
 			@SuppressWarnings("unused")
-			ClientResponseLog clientLog = new ClientResponseLog(client, server, port);
+			ClientResponseLog clientLog = new ClientResponseLog(client, server, port, options);
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.exit(0);
@@ -129,6 +228,10 @@ public class ClientResponseLog extends LocalResponseLog {
 		register("Requests", () -> { return new Requests(); });
 		register("ResponseTimeDone", () -> { return new ResponseTimeDone(); });
 		register("Error", () -> { return new Error(); });
+		register("Heartbeat", () -> { return new Heartbeat(); });
+		register("Session", () -> { return new Session(); });
+		register("Prefetch", () -> { return new Prefetch(); });
+		register("Reveal", () -> { return new Reveal(); });
 		register("ChoiceQuestion", () -> { return new ChoiceQuestion(); });
 		register("FreeResponseQuestion", () -> { return new FreeResponseQuestion(); });
 		register("Choice", () -> { return new Choice(); });
@@ -0,0 +1,183 @@
+package edu.uwm.cs552.net;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import edu.uwm.cs.util.XMLElementFramer;
+import edu.uwm.cs.util.XMLTokenizer;
+import edu.uwm.cs552.User;
+import edu.uwm.cs552.XMLObject;
+import edu.uwm.cs552.XMLObject.ParseException;
+
+/**
+ * Decoder for everything one side of a connection sends: the start tag
+ * of the top-level element, and then the nested elements, either as XML or,
+ * if the start tag has wire="binary", as {@link BinaryCodec} frames,
+ * possibly compressed (see {@link ElementEncoder}).
+ * Bytes can be fed in whatever chunks they happen to arrive in.
+ */
+public class ElementDecoder implements XMLElementFramer.Listener, BinaryCodec.Listener {
+
+	/**
+	 * What the decoder reports as it goes along.
+	 */
+	public interface Listener extends BinaryCodec.Listener {
+		/**
+		 * An attribute of the top-level element has been read.
+		 * @param name attribute name, never null
+		 * @param value attribute value, never null
+		 * @throws IOException if the listener rejects the attribute
+		 */
+		public void attribute(String name, String value) throws IOException;
+
+		/**
+		 * The start tag of the top-level element has been completed.
+		 * @throws IOException if the listener rejects the element
+		 */
+		public default void startTagClosed() throws IOException { }
+	}
+
+	private final XMLElementFramer framer = new XMLElementFramer(this);
+	private final Map<String,String> attributes = new HashMap<>();
+	private final Function<String,User> users;
+	private final Listener listener;
+	private BinaryCodec.Decoder binary;
+	private Inflater inflater;
+	private byte[] inflated;
+	private boolean switched = false;
+	private boolean done = false;
+
+	/**
+	 * Create a decoder.
+	 * @param lookup how to find users named in binary responses (see {@link BinaryCodec.Decoder})
+	 * @param l listener to report to, must not be null
+	 */
+	public ElementDecoder(Function<String,User> lookup, Listener l) {
+		users = lookup;
+		listener = l;
+	}
+
+	/**
+	 * Return the name of the top-level element, or null if not yet known.
+	 * @return name of top-level element
+	 */
+	public String getRootName() {
+		return framer.getRootName();
+	}
+
+	/**
+	 * Return the attributes of the top-level element read so far.
+	 * @return unmodifiable map of attributes
+	 */
+	public Map<String,String> getAttributes() {
+		return Collections.unmodifiableMap(attributes);
+	}
+
+	/**
+	 * Return whether the nested elements are in binary.
+	 * @return whether binary frames are being decoded
+	 */
+	public boolean isBinary() {
+		return binary != null;
+	}
+
+	/**
+	 * Return whether the top-level element has ended.
+	 * @return whether the stream is finished
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Feed some more bytes to the decoder.  Listener calls are made during this call.
+	 * @param buf array holding bytes
+	 * @param off offset to start at
+	 * @param len number of bytes to process
+	 * @throws IOException if the input is malformed or the listener throws an exception
+	 */
+	public void feed(byte[] buf, int off, int len) throws IOException {
+		if (!switched) {
+			int n = framer.feed(buf, off, len);
+			if (!switched) return;
+			off += n;
+			len -= n;
+			if (binary == null) framer.resume();
+		}
+		if (done || len == 0) return;
+		if (inflater == null) {
+			body(buf, off, len);
+			return;
+		}
+		inflater.setInput(buf, off, len);
+		try {
+			int n;
+			while (!done && (n = inflater.inflate(inflated)) > 0) {
+				body(inflated, 0, n);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("bad compressed data: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Decode bytes of the nested elements.
+	 */
+	private void body(byte[] buf, int off, int len) throws IOException {
+		if (binary != null) binary.feed(buf, off, len);
+		else framer.feed(buf, off, len);
+	}
+
+	@Override
+	public void attribute(String name, String value) throws IOException {
+		attributes.put(name, value);
+		listener.attribute(name, value);
+	}
+
+	@Override
+	public void startTagClosed() throws IOException {
+		listener.startTagClosed();
+		if (BinaryCodec.isBinary(attributes)) {
+			binary = new BinaryCodec.Decoder(users, this);
+			switched = true;
+		}
+		if (ElementEncoder.isDeflated(attributes)) {
+			inflater = new Inflater(true);
+			inflated = new byte[8192];
+			switched = true;
+		}
+		// the rest of the bytes need to go elsewhere:
+		if (switched) framer.stop();
+	}
+
+	@Override
+	public void element(byte[] buf, int off, int len) throws IOException {
+		XMLObject obj;
+		try {
+			obj = XMLObject.fromXML(new XMLTokenizer(new StringReader(new String(buf, off, len, UTF_8))));
+		} catch (ParseException e) {
+			throw new IOException("Illegal element received: " + e.getMessage());
+		}
+		listener.element(obj);
+	}
+
+	@Override
+	public void element(XMLObject obj) throws IOException {
+		listener.element(obj);
+	}
+
+	@Override
+	public void end() throws IOException {
+		done = true;
+		if (inflater != null) inflater.end();
+		listener.end();
+	}
+}
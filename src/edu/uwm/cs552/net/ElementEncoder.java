@@ -0,0 +1,99 @@
+package edu.uwm.cs552.net;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import edu.uwm.cs552.Response;
+
+/**
+ * The encoder for everything one side of a connection sends after the start tag
+ * of its top-level element.  The start tag's attributes say how the nested elements
+ * are encoded: wire="binary" for {@link BinaryCodec} frames instead of XML,
+ * and compress="deflate" for compression.
+ * <p>
+ * Compressed elements are compressed one at a time, each with a fresh dictionary
+ * and ending with a sync flush.  Thus each element can be decompressed as soon
+ * as it arrives, and the compressed bytes of an element broadcast to many clients
+ * can be computed once and shared (see {@link EncodedElement#getBytes(boolean, boolean)}).
+ * The receiver decompresses the whole stream as one raw DEFLATE stream.
+ * Not thread-safe: only the thread writing the stream should use it.
+ */
+public class ElementEncoder {
+	public static final String COMPRESS_ATTRIBUTE = "compress";
+	public static final String DEFLATE = "deflate";
+
+	private final boolean binary;
+	private final BinaryCodec.Encoder binaryEncoder;
+	private final Deflater deflater;
+
+	/**
+	 * Create an encoder for a stream with the given top-level attributes.
+	 * @param attributes attributes of top-level start tag, must not be null
+	 */
+	public ElementEncoder(Map<String,String> attributes) {
+		binary = BinaryCodec.isBinary(attributes);
+		binaryEncoder = binary ? new BinaryCodec.Encoder() : null;
+		deflater = isDeflated(attributes) ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+	}
+
+	/**
+	 * Return whether the attributes of a top-level element ask for compression.
+	 * @param attributes attributes of start tag, must not be null
+	 * @return whether the nested elements are compressed
+	 */
+	public static boolean isDeflated(Map<String,String> attributes) {
+		return DEFLATE.equals(attributes.get(COMPRESS_ATTRIBUTE));
+	}
+
+	/**
+	 * Return the bytes to send for the given element (which may be an end tag).
+	 * Shared encodings are used whenever possible.
+	 * @param e encoded element, must not be null
+	 * @return bytes to send, must not be modified
+	 */
+	public byte[] encode(EncodedElement e) {
+		if (!(e.getSource() instanceof Response)) {
+			return e.getBytes(binary, deflater != null);
+		}
+		// responses are only ever sent on one stream: don't bother sharing
+		byte[] bytes = binary ? binaryEncoder.encode(e) : e.getBytes(false, false);
+		if (deflater == null) return bytes;
+		deflater.reset();
+		return deflate(deflater, bytes);
+	}
+
+	/**
+	 * Release the resources used by the encoder.
+	 */
+	public void close() {
+		if (deflater != null) deflater.end();
+	}
+
+	/**
+	 * Compress the bytes as a piece of a raw DEFLATE stream that can be
+	 * decompressed without anything that comes before it.
+	 * @param bytes bytes to compress, must not be null
+	 * @return compressed bytes
+	 */
+	public static byte[] deflate(byte[] bytes) {
+		Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			return deflate(d, bytes);
+		} finally {
+			d.end();
+		}
+	}
+
+	private static byte[] deflate(Deflater d, byte[] bytes) {
+		d.setInput(bytes);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 16);
+		byte[] chunk = new byte[Math.max(64, bytes.length + 16)];
+		int n;
+		do {
+			n = d.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+			out.write(chunk, 0, n);
+		} while (n == chunk.length);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,491 @@
+package edu.uwm.cs552.net;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.uwm.cs552.ChoiceQuestion;
+import edu.uwm.cs552.XMLObject;
+
+/**
+ * A queue of encoded elements waiting to be sent to a single client.
+ * The queue is bounded both in number of elements and in bytes; what happens
+ * when it is full is determined by an {@link OverflowPolicy}.
+ * Counters of dropped elements and high-water marks are kept so that 
+ * a slow consumer can be noticed.
+ */
+public class ElementQueue {
+	/** How many control elements may be queued beyond the capacity before the client is given up on. */
+	public static final int CONTROL_OVERFLOW = 64;
+
+	private final int maxElements;
+	private final long maxBytes;
+	private final OverflowPolicy policy;
+	private final long timeout;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final Deque<EncodedElement> elements = new ArrayDeque<>();
+	private long bytes = 0;
+	private boolean closed = false;
+	private boolean overflowed = false;
+
+	private long dropped = 0;
+	private long coalesced = 0;
+	private int highWaterElements = 0;
+	private long highWaterBytes = 0;
+
+	/**
+	 * Create a queue with the given limits and policy.
+	 * @param maxElements maximum number of elements, must be positive
+	 * @param maxBytes maximum number of bytes, must be positive
+	 * (a single element larger than this is still accepted into an empty queue)
+	 * @param p policy when full, must not be null
+	 * @param timeoutMillis how long to wait for room under {@link OverflowPolicy#BLOCK}
+	 */
+	public ElementQueue(int maxElements, long maxBytes, OverflowPolicy p, long timeoutMillis) {
+		if (maxElements <= 0 || maxBytes <= 0) throw new IllegalArgumentException("queue limits must be positive");
+		if (p == null) throw new NullPointerException("policy must not be null");
+		this.maxElements = maxElements;
+		this.maxBytes = maxBytes;
+		policy = p;
+		timeout = timeoutMillis;
+	}
+
+	private boolean fits(EncodedElement e) {
+		if (elements.isEmpty()) return true;
+		return elements.size() < maxElements && bytes + e.size() <= maxBytes;
+	}
+
+	private void add(EncodedElement e) {
+		elements.add(e);
+		bytes += e.size();
+		if (elements.size() > highWaterElements) highWaterElements = elements.size();
+		if (bytes > highWaterBytes) highWaterBytes = bytes;
+		notEmpty.signal();
+	}
+
+	private void removed(EncodedElement e) {
+		bytes -= e.size();
+		notFull.signal();
+	}
+
+	/**
+	 * Give up on the client: everything queued is dropped.
+	 */
+	private void overflow() {
+		overflowed = true;
+		dropped += elements.size();
+		elements.clear();
+		bytes = 0;
+		notEmpty.signalAll();
+		notFull.signalAll();
+	}
+
+	/**
+	 * Add a control element that doesn't fit, beyond the capacity,
+	 * unless {@link #CONTROL_OVERFLOW} elements are already beyond it,
+	 * in which case the queue overflows.
+	 * @param e control element
+	 * @return true if the element was added
+	 */
+	private boolean addBeyond(EncodedElement e) {
+		if (elements.size() >= maxElements + CONTROL_OVERFLOW) {
+			overflow();
+			return false;
+		}
+		add(e);
+		return true;
+	}
+
+	/**
+	 * Add an element to the queue, applying the overflow policy if it is full.
+	 * @param e element to add, must not be null
+	 * @return false if the element was not queued (whether dropped, or because
+	 * the queue is closed or has overflowed).
+	 */
+	public boolean offer(EncodedElement e) {
+		return offer(e, System.nanoTime());
+	}
+
+	/**
+	 * Add an element to the queue, applying the overflow policy if it is full.
+	 * Under {@link OverflowPolicy#BLOCK}, the timeout is counted from the given time
+	 * rather than from now, so that when the same element is offered to many queues
+	 * in turn, the waits for room share one timeout instead of adding up.
+	 * @param e element to add, must not be null
+	 * @param since when to count the timeout from (see {@link System#nanoTime()})
+	 * @return false if the element was not queued (whether dropped, or because
+	 * the queue is closed or has overflowed).
+	 */
+	public boolean offer(EncodedElement e, long since) {
+		lock.lock();
+		try {
+			if (closed || overflowed) return false;
+			if (fits(e)) {
+				add(e);
+				return true;
+			}
+			switch (policy) {
+			case BLOCK:
+				long nanos = since + TimeUnit.MILLISECONDS.toNanos(timeout) - System.nanoTime();
+				try {
+					while (!fits(e) && nanos > 0 && !closed && !overflowed) {
+						nanos = notFull.awaitNanos(nanos);
+					}
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				if (closed || overflowed) return false;
+				if (fits(e)) {
+					add(e);
+					return true;
+				}
+				if (e.isControl() && addBeyond(e)) return true;
+				break;
+			case COALESCE:
+				if (coalesce(e)) return true;
+				if (dropOldest(e)) return true;
+				break;
+			case DROP_OLDEST:
+				if (dropOldest(e)) return true;
+				break;
+			case DISCONNECT:
+				overflow();
+				break;
+			}
+			++dropped;
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drop the oldest elements that are not control elements until the new element fits,
+	 * and then add it.  A control element that still doesn't fit is added beyond the capacity.
+	 * @param e new element
+	 * @return true if the new element was added
+	 */
+	private boolean dropOldest(EncodedElement e) {
+		Iterator<EncodedElement> it = elements.iterator();
+		while (!fits(e) && it.hasNext()) {
+			EncodedElement old = it.next();
+			if (old.isControl()) continue;
+			it.remove();
+			removed(old);
+			++dropped;
+		}
+		if (fits(e)) {
+			add(e);
+			return true;
+		}
+		return e.isControl() && addBeyond(e);
+	}
+
+	/**
+	 * Check whether the new element is made redundant by one already queued:
+	 * a repeated non-control element is simply dropped.  Control elements are
+	 * never coalesced, since clients that resume count them.
+	 * @param e new element
+	 * @return true if the new element itself was redundant
+	 */
+	private boolean coalesce(EncodedElement e) {
+		if (e.isControl()) return false;
+		for (EncodedElement old : elements) {
+			if (!old.isControl() && old.sameBytes(e)) {
+				++coalesced;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remove the next element, waiting until one is available.
+	 * @return next element, or null if the queue has been closed and is empty,
+	 * or has overflowed.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public EncodedElement take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (elements.isEmpty() && !closed && !overflowed) {
+				notEmpty.await();
+			}
+			return poll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove the next element if there is one, without waiting.
+	 * @return next element, or null if none is available.
+	 */
+	public EncodedElement poll() {
+		lock.lock();
+		try {
+			EncodedElement e = elements.poll();
+			if (e != null) removed(e);
+			return e;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove the next element, waiting up to the given time for one to be available.
+	 * @param millis maximum time to wait
+	 * @return next element, or null if none is available in time
+	 * or if the queue is finished.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public EncodedElement poll(long millis) throws InterruptedException {
+		lock.lock();
+		try {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+			while (elements.isEmpty() && !closed && !overflowed && nanos > 0) {
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return poll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove as many elements as are available (up to a limit) without waiting.
+	 * @param l list to add elements to, must not be null
+	 * @param max maximum number of elements to remove
+	 * @return number of elements removed
+	 */
+	public int drainTo(List<EncodedElement> l, int max) {
+		lock.lock();
+		try {
+			int n = 0;
+			EncodedElement e;
+			while (n < max && (e = elements.poll()) != null) {
+				removed(e);
+				l.add(e);
+				++n;
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Indicate that no more elements will be added.
+	 * Elements already in the queue can still be removed.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Return whether an element would be queued now without waiting or dropping anything.
+	 * @param e element, must not be null
+	 * @return whether there is room for the element
+	 */
+	public boolean hasRoomFor(EncodedElement e) {
+		lock.lock();
+		try {
+			return !closed && !overflowed && fits(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Return whether the queue has been closed and everything in it removed.
+	 * @return whether the queue is finished
+	 */
+	public boolean isFinished() {
+		lock.lock();
+		try {
+			return overflowed || closed && elements.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Return true if the queue overflowed under the {@link OverflowPolicy#DISCONNECT}
+	 * policy, or because too many control elements were queued beyond its capacity:
+	 * the client should be disconnected.
+	 * @return whether the queue overflowed
+	 */
+	public boolean isOverflowed() {
+		lock.lock();
+		try {
+			return overflowed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return elements.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getBytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Return the number of elements dropped because the queue was full.
+	 * @return number of elements dropped
+	 */
+	public long getDropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Return the number of elements removed as redundant under {@link OverflowPolicy#COALESCE}.
+	 * @return number of elements coalesced
+	 */
+	public long getCoalesced() {
+		lock.lock();
+		try {
+			return coalesced;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getHighWaterElements() {
+		lock.lock();
+		try {
+			return highWaterElements;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getHighWaterBytes() {
+		lock.lock();
+		try {
+			return highWaterBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Check that control elements are never dropped: fill a queue with other elements
+	 * under each policy that drops, and offer each kind of control element.
+	 * Then check that control elements beyond the capacity are limited,
+	 * and that waits under {@link OverflowPolicy#BLOCK} can share a timeout.
+	 * @param args ignored
+	 */
+	public static void main(String[] args) {
+		ChoiceQuestion q = new ChoiceQuestion();
+		q.setQuestion("Q");
+		q.addChoice("a");
+		XMLObject[] controls = { new Session("s", 0), q, new ResponseTimeDone(), new Prefetch(1, q), new Reveal(1) };
+		int failures = 0;
+		for (OverflowPolicy p : new OverflowPolicy[] { OverflowPolicy.BLOCK, OverflowPolicy.DROP_OLDEST, OverflowPolicy.COALESCE }) {
+			for (XMLObject c : controls) {
+				ElementQueue eq = new ElementQueue(2, Long.MAX_VALUE, p, 0);
+				eq.offer(EncodedElement.encode(new Error("one")));
+				eq.offer(EncodedElement.encode(new Error("two")));
+				EncodedElement e = EncodedElement.encode(c);
+				if (!e.isControl() || !eq.offer(e)) {
+					System.out.println(p + " dropped " + c.getClass().getSimpleName());
+					++failures;
+				}
+			}
+		}
+		for (OverflowPolicy p : new OverflowPolicy[] { OverflowPolicy.BLOCK, OverflowPolicy.DROP_OLDEST, OverflowPolicy.COALESCE }) {
+			ElementQueue eq = new ElementQueue(2, Long.MAX_VALUE, p, 0);
+			EncodedElement e = EncodedElement.encode(new ResponseTimeDone());
+			int queued = 0;
+			while (queued <= 2 + CONTROL_OVERFLOW && eq.offer(e)) ++queued;
+			if (queued != 2 + CONTROL_OVERFLOW || !eq.isOverflowed()) {
+				System.out.println(p + " queued " + queued + " control elements without overflowing");
+				++failures;
+			}
+		}
+		ElementQueue blocking = new ElementQueue(1, Long.MAX_VALUE, OverflowPolicy.BLOCK, 1000);
+		blocking.offer(EncodedElement.encode(new Error("one")));
+		long start = System.nanoTime();
+		if (blocking.offer(EncodedElement.encode(new Error("two")), start - TimeUnit.SECONDS.toNanos(1))
+				|| System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(100)) {
+			System.out.println("BLOCK waited after its timeout had passed");
+			++failures;
+		}
+		System.out.println(failures == 0 ? "OK" : failures + " failures");
+		if (failures > 0) System.exit(1);
+	}
+
+	/**
+	 * Settings used to create the output queues of a server's connections.
+	 */
+	public static class Settings {
+		public static final int DEFAULT_MAX_ELEMENTS = 10;
+
+		private int maxElements = DEFAULT_MAX_ELEMENTS;
+		private long maxBytes = Long.MAX_VALUE;
+		private OverflowPolicy policy = OverflowPolicy.DROP_OLDEST;
+		private long timeout = 0;
+
+		/**
+		 * Set the capacity of new queues.
+		 * @param elements maximum number of queued elements, must be positive
+		 * @param b maximum number of queued bytes, must be positive
+		 */
+		public void setCapacity(int elements, long b) {
+			if (elements <= 0 || b <= 0) throw new IllegalArgumentException("queue limits must be positive");
+			maxElements = elements;
+			maxBytes = b;
+		}
+
+		/**
+		 * Set the overflow policy of new queues.
+		 * @param p policy, must not be null
+		 * @param timeoutMillis time to wait under {@link OverflowPolicy#BLOCK}
+		 */
+		public void setPolicy(OverflowPolicy p, long timeoutMillis) {
+			if (p == null) throw new NullPointerException("policy must not be null");
+			policy = p;
+			timeout = timeoutMillis;
+		}
+
+		/**
+		 * Create a new empty queue with these settings.
+		 * @return new queue
+		 */
+		public ElementQueue create() {
+			return new ElementQueue(maxElements, maxBytes, policy, timeout);
+		}
+	}
+}
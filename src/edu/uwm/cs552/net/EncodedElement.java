@@ -0,0 +1,202 @@
+package edu.uwm.cs552.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import edu.uwm.cs.util.XMLWriter;
+import edu.uwm.cs552.Question;
+import edu.uwm.cs552.XMLObject;
+
+/**
+ * An XML element already encoded as UTF-8 bytes ready to be sent.
+ * Instances are immutable, so that an element broadcast to many clients
+ * can be serialized once and the same bytes shared by every client's output queue.
+ * The {@link BinaryCodec binary} and compressed forms of the element are
+ * computed only if some client wants them, and then shared in the same way.
+ */
+public final class EncodedElement {
+	private static final int HEADER_LENGTH = headerLength();
+
+	private final XMLObject source;
+	private final byte[] bytes;
+	private volatile byte[] binary;
+	private volatile byte[] deflated;
+	private volatile byte[] binaryDeflated;
+
+	private EncodedElement(XMLObject obj, byte[] b, byte[] bin) {
+		source = obj;
+		bytes = b;
+		binary = bin;
+	}
+
+	/**
+	 * Encode the given object as an XML element (without an XML declaration).
+	 * @param obj object to encode, must not be null
+	 * @return encoded element
+	 */
+	public static EncodedElement encode(XMLObject obj) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try {
+			XMLWriter xw = new XMLWriter(baos);
+			obj.toXML(xw);
+			xw.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Shouldn't happen: not using actual I/O", e);
+		}
+		byte[] all = baos.toByteArray();
+		return new EncodedElement(obj, Arrays.copyOfRange(all, HEADER_LENGTH, all.length), null);
+	}
+
+	/**
+	 * Encode the XML declaration and the start tag of a top-level element.
+	 * The start tag is closed immediately (unlike with an {@link XMLWriter})
+	 * so that the other side can see it is complete.
+	 * @param name name of element, must not be null
+	 * @param attr attributes of the element, must not be null
+	 * @return encoded header
+	 */
+	public static EncodedElement startTag(String name, Map<String,String> attr) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try {
+			XMLWriter xw = new XMLWriter(baos);
+			xw.writeElementStart(name);
+			for (Entry<String, String> e : attr.entrySet()) {
+				xw.writeAttr(e.getKey(), e.getValue());
+			}
+			xw.writeElementDone(name);
+			xw.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Shouldn't happen: not using actual I/O", e);
+		}
+		byte[] all = baos.toByteArray();
+		// replace the "/>\n" of the empty element with ">\n",
+		// or with just ">" if something other than XML follows immediately.
+		byte[] result;
+		if (BinaryCodec.isBinary(attr) || ElementEncoder.isDeflated(attr)) {
+			result = Arrays.copyOf(all, all.length-2);
+			result[result.length-1] = '>';
+		} else {
+			result = Arrays.copyOf(all, all.length-1);
+			result[result.length-2] = '>';
+			result[result.length-1] = '\n';
+		}
+		// the start tag is XML even on a binary stream
+		return new EncodedElement(null, result, result);
+	}
+
+	/**
+	 * Encode the end tag of a top-level element.
+	 * @param name name of element, must not be null
+	 * @return encoded end tag.
+	 */
+	public static EncodedElement endTag(String name) {
+		return new EncodedElement(null, ("</" + name + ">\n").getBytes(StandardCharsets.UTF_8), BinaryCodec.endFrame());
+	}
+
+	private static int headerLength() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try {
+			new XMLWriter(baos).flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Shouldn't happen: not using actual I/O", e);
+		}
+		return baos.size();
+	}
+
+	/**
+	 * Return the object that was encoded.
+	 * @return object encoded, or null for start and end tags.
+	 */
+	public XMLObject getSource() {
+		return source;
+	}
+
+	/**
+	 * Return whether this element controls the state of the client:
+	 * the session, a question, the end of a question, or a question sent ahead
+	 * and its reveal.  Control elements must never be dropped.
+	 * @return whether this is a control element
+	 */
+	public boolean isControl() {
+		return source instanceof Question || source instanceof ResponseTimeDone
+				|| source instanceof Prefetch || source instanceof Reveal
+				|| source instanceof Session;
+	}
+
+	/**
+	 * Return whether the other element has exactly the same encoding.
+	 * @param other element to compare with, must not be null
+	 * @return whether the bytes are the same
+	 */
+	public boolean sameBytes(EncodedElement other) {
+		return Arrays.equals(bytes, other.bytes);
+	}
+
+	/**
+	 * Return the number of bytes in the encoding.
+	 * @return number of bytes
+	 */
+	public int size() {
+		return bytes.length;
+	}
+
+	/**
+	 * Write the bytes to the given stream.
+	 * @param os stream to write to, must not be null
+	 * @throws IOException if the stream has a problem
+	 */
+	public void writeTo(OutputStream os) throws IOException {
+		os.write(bytes);
+	}
+
+	/**
+	 * Return the binary encoding of this element, computing it if necessary.
+	 * @return binary encoding (must not be modified)
+	 * @see BinaryCodec.Encoder#encode(EncodedElement)
+	 */
+	public byte[] getBinary() {
+		byte[] result = binary;
+		if (result == null) {
+			// harmless race: every thread computes the same bytes
+			binary = result = BinaryCodec.encodeShared(source);
+		}
+		return result;
+	}
+
+	/**
+	 * Return the encoding of this element in the given format,
+	 * computing it if necessary.
+	 * @param bin whether to use the binary encoding rather than XML
+	 * @param compressed whether the encoding should be compressed
+	 * @return encoding (must not be modified)
+	 * @see ElementEncoder
+	 */
+	public byte[] getBytes(boolean bin, boolean compressed) {
+		if (!compressed) return bin ? getBinary() : bytes;
+		// harmless races as for getBinary()
+		byte[] result;
+		if (bin) {
+			result = binaryDeflated;
+			if (result == null) binaryDeflated = result = ElementEncoder.deflate(getBinary());
+		} else {
+			result = deflated;
+			if (result == null) deflated = result = ElementEncoder.deflate(bytes);
+		}
+		return result;
+	}
+
+	/**
+	 * Return a fresh read-only buffer over the bytes.  The bytes are not copied.
+	 * @return new buffer positioned at the start of the encoding
+	 */
+	public ByteBuffer asByteBuffer() {
+		return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+	}
+}
@@ -6,22 +6,53 @@ import edu.uwm.cs.util.XMLWriter;
 import edu.uwm.cs552.XMLObject;
 /**
  * Information about a problem sent to a client.
+ * An error may say how long the client should wait before trying again
+ * (attribute "retry", in milliseconds), as when it is being throttled.
  */
 public class Error extends XMLObject {
+	public static final String THROTTLED = "Throttled: too many responses.";
 
 	private String errorText = "";
+	private long retry = -1;
 	
 	public Error() { };
 	
 	public Error(String txt) {
 		errorText = txt;
 	}
+
+	/**
+	 * Create an error telling the client to wait before trying again.
+	 * @param txt text of error
+	 * @param retryMillis how long to wait, in milliseconds
+	 */
+	public Error(String txt, long retryMillis) {
+		errorText = txt;
+		retry = retryMillis;
+	}
 	
 	@Override
 	protected String getXMLelementName() {
 		return "Error";
 	}
 
+	@Override
+	protected void writeAttributes(XMLWriter xw) throws IOException {
+		super.writeAttributes(xw);
+		if (retry >= 0) xw.writeAttr("retry", Long.toString(retry));
+	}
+
+	@Override
+	protected void addAttribute(String name, String text) throws ParseException {
+		if (name.equals("retry")) {
+			try {
+				retry = Long.parseLong(text);
+			} catch (NumberFormatException e) {
+				throw new ParseException("bad retry time: " + text);
+			}
+		} else super.addAttribute(name, text);
+	}
+
 	@Override
 	protected void writeContents(XMLWriter xw) throws IOException {
 		super.writeContents(xw);
@@ -36,4 +67,12 @@ public class Error extends XMLObject {
 	public String getError() {
 		return errorText;
 	}
+
+	/**
+	 * Return how long the client should wait before trying again.
+	 * @return time in milliseconds, or -1 if the error doesn't say
+	 */
+	public long getRetryDelay() {
+		return retry;
+	}
 }
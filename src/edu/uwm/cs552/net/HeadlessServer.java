@@ -0,0 +1,311 @@
+package edu.uwm.cs552.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import edu.uwm.cs.util.XMLTokenizer;
+import edu.uwm.cs.util.XMLWriter;
+import edu.uwm.cs552.Choice;
+import edu.uwm.cs552.ChoiceQuestion;
+import edu.uwm.cs552.FreeResponseQuestion;
+import edu.uwm.cs552.Question;
+import edu.uwm.cs552.ResponseJournal;
+import edu.uwm.cs552.Script;
+import edu.uwm.cs552.XMLObject;
+import edu.uwm.cs552.XMLObject.ParseException;
+
+/**
+ * A server without a GUI, for a machine without a display.
+ * It reads a script (or a single question) and then runs commands,
+ * one per line, from a command file or standard input:
+ * <dl>
+ * <dt>ask <i>n</i></dt><dd>ask question <i>n</i> of the script (1-based),
+ * stopping the current question first</dd>
+ * <dt>next</dt><dd>ask the question after the last one asked</dd>
+ * <dt>stop</dt><dd>stop the current question, logging its responses</dd>
+ * <dt>abort</dt><dd>stop the current question without logging it</dd>
+ * <dt>wait <i>ms</i></dt><dd>do nothing for a while (for command files)</dd>
+ * <dt>status</dt><dd>print the number of clients and of responses so far</dd>
+ * <dt>write [<i>file</i>]</dt><dd>write the response log (to the log file by default)</dd>
+ * <dt>quit</dt><dd>stop the current question, write the log and exit</dd>
+ * </dl>
+ * Blank lines and lines starting with # are ignored.  The log is also written
+ * when the commands run out.  With --prefetch=<i>k</i>, the <i>k</i> questions after
+ * the last one asked are sent ahead of time to clients that want them.
+ * With --journal=<i>file</i>, every change to the log is also appended to the journal
+ * as it happens (synced as given by --fsync=<i>policy</i>), and whatever the journal
+ * holds from an earlier run is put back in the log first.
+ * Clients are served by a thread each (--threads=platform or virtual, platform by default)
+ * or by a selector (--selector).
+ * <p>
+ * Nothing here uses the Swing event thread: commands run on the main thread,
+ * and the log (whose methods are synchronized) is changed directly.
+ */
+public class HeadlessServer {
+	private final RoomServer server;
+	private final NetworkResponseLog log;
+	private final List<Question> questions;
+	private final String logFile;
+	private final PrintStream out;
+	private int lastAsked = 0;
+	private boolean questionInProgress = false;
+	private int prefetchCount = 0;
+	private ResponseJournal journal;
+
+	/**
+	 * Start serving a script.
+	 * @param engine engine to use, must not have been started already
+	 * @param qs questions that can be asked, must not be null
+	 * @param file where to write the log, or null to write to standard output
+	 * @param o where to print messages, must not be null
+	 * @throws IOException if the engine cannot be started
+	 */
+	public HeadlessServer(ServerEngine engine, List<Question> qs, String file, PrintStream o) throws IOException {
+		server = new RoomServer(engine);
+		log = server.openRoom(RoomServer.DEFAULT_ROOM);
+		questions = qs;
+		logFile = file;
+		out = o;
+		server.start();
+	}
+
+	/**
+	 * Set how many questions after the last one asked (or the first questions,
+	 * if none has been asked) are sent ahead of time to clients.
+	 * @param k number of questions to prefetch, 0 for none
+	 */
+	public void setPrefetch(int k) {
+		prefetchCount = k;
+		prefetchAfter(lastAsked);
+	}
+
+	private void prefetchAfter(int n) {
+		for (int i = n + 1; i <= n + prefetchCount && i <= questions.size(); ++i) {
+			log.prefetch(questions.get(i-1));
+		}
+	}
+
+	/**
+	 * Journal the log, after restoring whatever the journal already holds.
+	 * Must be called before any question is asked.
+	 * @param f journal file, must not be null
+	 * @param s sync policy, must not be null
+	 * @throws IOException if the journal cannot be read or written
+	 */
+	public void openJournal(File f, ResponseJournal.Sync s) throws IOException {
+		journal = ResponseJournal.open(f, s, log);
+		if (!log.isEmpty()) {
+			int count = 0;
+			for (Question q : log.getQuestions()) {
+				count += log.getResponseCount(q);
+			}
+			out.println("restored " + log.getQuestions().size() + " questions and " + count + " responses from " + f);
+		}
+	}
+
+	/**
+	 * Return the log of responses.
+	 * @return log, never null
+	 */
+	public NetworkResponseLog getLog() {
+		return log;
+	}
+
+	/**
+	 * Read a script, or a file holding a single question.
+	 * @param in stream to read from, must not be null
+	 * @return questions in the file
+	 * @throws ParseException if the file is not a script or question
+	 */
+	public static List<Question> readScript(InputStream in) throws ParseException {
+		XMLObject obj = XMLObject.fromXML(new XMLTokenizer(in));
+		if (obj instanceof Question) return Collections.singletonList((Question)obj);
+		if (obj instanceof Script) return ((Script)obj).clear();
+		throw new ParseException("not a script or question: " + obj);
+	}
+
+	/**
+	 * Run commands until there are no more, or "quit".
+	 * @param r where to read commands from, must not be null
+	 * @throws IOException if commands cannot be read
+	 */
+	public void run(Reader r) throws IOException {
+		BufferedReader br = new BufferedReader(r);
+		String line;
+		while ((line = br.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) continue;
+			String[] words = line.split("\\s+", 2);
+			String arg = words.length > 1 ? words[1] : null;
+			try {
+				if (!execute(words[0], arg)) return;
+			} catch (RuntimeException e) {
+				out.println("error: " + e.getMessage());
+			}
+		}
+		finish();
+	}
+
+	/**
+	 * Run a single command.
+	 * @return false if the command was "quit"
+	 */
+	private boolean execute(String command, String arg) throws IOException {
+		switch (command) {
+		case "ask":
+			ask(Integer.parseInt(arg));
+			break;
+		case "next":
+			ask(lastAsked + 1);
+			break;
+		case "stop":
+			if (!questionInProgress) throw new IllegalStateException("no question in progress");
+			log.stopQuestion();
+			questionInProgress = false;
+			out.println("stopped question " + lastAsked + ": " + log.getResponseCount(questions.get(lastAsked-1)) + " responses");
+			break;
+		case "abort":
+			if (!questionInProgress) throw new IllegalStateException("no question in progress");
+			log.abortQuestion();
+			questionInProgress = false;
+			out.println("aborted question " + lastAsked);
+			break;
+		case "wait":
+			try {
+				Thread.sleep(Long.parseLong(arg));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			break;
+		case "status":
+			int count = questionInProgress ? log.getResponseCount(questions.get(lastAsked-1)) : 0;
+			out.println(server.getEngine().getConnectionCount() + " connections, " + log.getRoster().size() + " users, "
+					+ (questionInProgress ? "question " + lastAsked + " has " + count + " responses" : "no question in progress"));
+			break;
+		case "write":
+			writeLog(arg == null ? logFile : arg);
+			break;
+		case "quit":
+			finish();
+			return false;
+		default:
+			throw new IllegalArgumentException("unknown command: " + command);
+		}
+		return true;
+	}
+
+	private void ask(int n) {
+		if (n < 1 || n > questions.size()) throw new IllegalArgumentException("no question " + n);
+		if (questionInProgress) log.stopQuestion();
+		Question q = questions.get(n-1);
+		log.startQuestion(q);
+		questionInProgress = true;
+		lastAsked = n;
+		out.println("asking question " + n + ": " + q.getQuestion());
+		prefetchAfter(n);
+	}
+
+	/**
+	 * Stop any question in progress, write the log and close the server.
+	 */
+	private void finish() throws IOException {
+		if (questionInProgress) log.stopQuestion();
+		questionInProgress = false;
+		writeLog(logFile);
+		if (journal != null) journal.close();
+		server.close();
+	}
+
+	private void writeLog(String file) throws IOException {
+		OutputStream os = file == null ? System.out : new BufferedOutputStream(new FileOutputStream(file));
+		XMLWriter xw = new XMLWriter(os);
+		log.toXML(xw);
+		if (file == null) xw.flush();
+		else xw.close();
+		if (file != null) out.println("wrote log to " + file);
+	}
+
+	public static void main(String[] args) {
+		String scriptFile = null, logFile = null, commandFile = null;
+		int port = NetworkResponseLog.PORT;
+		boolean selector = false;
+		String threads = null;
+		int prefetch = 0;
+		String journalFile = null;
+		ResponseJournal.Sync sync = ResponseJournal.Sync.BATCH;
+		List<String> rest = new ArrayList<>();
+		for (String s : args) {
+			if (s.startsWith("--script=")) {
+				scriptFile = s.substring(9);
+			} else if (s.startsWith("--log=")) {
+				logFile = s.substring(6);
+			} else if (s.startsWith("--commands=")) {
+				commandFile = s.substring(11);
+			} else if (s.startsWith("--port=")) {
+				port = Integer.parseInt(s.substring(7));
+			} else if (s.equals("--selector")) {
+				selector = true;
+			} else if (s.startsWith("--threads=")) {
+				threads = s.substring(10);
+			} else if (s.startsWith("--prefetch=")) {
+				prefetch = Integer.parseInt(s.substring(11));
+			} else if (s.startsWith("--journal=")) {
+				journalFile = s.substring(10);
+			} else if (s.startsWith("--fsync=")) {
+				sync = ResponseJournal.Sync.valueOf(s.substring(8).toUpperCase());
+			} else if (s.startsWith("--metrics-port=")) {
+				System.setProperty(Metrics.PORT_PROPERTY, s.substring(15));
+			} else {
+				rest.add(s);
+			}
+		}
+		if (scriptFile == null || !rest.isEmpty() || selector && threads != null) {
+			System.err.println("usage: HeadlessServer --script=FILE [--log=FILE] [--commands=FILE] [--port=N] [--selector|--threads=platform|virtual] [--prefetch=K]"
+					+ " [--journal=FILE [--fsync=never|interval|batch|always]] [--metrics-port=N]");
+			System.exit(1);
+		}
+		try {
+			List<Question> questions;
+			try (InputStream in = new BufferedInputStream(new FileInputStream(scriptFile))) {
+				questions = readScript(in);
+			}
+			long start = System.nanoTime();
+			ServerEngine engine = selector ? new SelectorServerEngine(port)
+					: new ThreadedServerEngine(port, ThreadedServerEngine.threadFactory(threads == null ? ThreadedServerEngine.PLATFORM : threads));
+			// messages go to stderr when the log goes to stdout
+			PrintStream out = logFile == null ? System.err : System.out;
+			HeadlessServer hs = new HeadlessServer(engine, questions, logFile, out);
+			if (journalFile != null) hs.openJournal(new File(journalFile), sync);
+			hs.setPrefetch(prefetch);
+			out.printf("serving %d questions on port %d (started in %.1f ms)%n", questions.size(), port, (System.nanoTime() - start) / 1e6);
+			try (Reader r = commandFile == null ? new InputStreamReader(System.in) : new FileReader(commandFile)) {
+				hs.run(r);
+			}
+		} catch (IOException|ParseException|IllegalArgumentException|UnsupportedOperationException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	static {
+		XMLObject.register("Choice", () -> { return new Choice(); });
+		XMLObject.register("ChoiceQuestion", () -> { return new ChoiceQuestion(); });
+		XMLObject.register("FreeResponseQuestion", () -> { return new FreeResponseQuestion(); });
+		XMLObject.register("Script", () -> { return new Script(); });
+	}
+}
@@ -0,0 +1,15 @@
+package edu.uwm.cs552.net;
+
+import edu.uwm.cs552.XMLObject;
+/**
+ * An element with no meaning other than that the sender is still there.
+ * It is only sent to peers that said they understand it, using the
+ * "heartbeat" attribute of the top-level element.
+ */
+public class Heartbeat extends XMLObject {
+
+	@Override
+	protected String getXMLelementName() {
+		return "Heartbeat";
+	}
+}
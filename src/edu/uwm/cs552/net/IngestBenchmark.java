@@ -0,0 +1,319 @@
+package edu.uwm.cs552.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.uwm.cs552.ChoiceQuestion;
+import edu.uwm.cs552.Response;
+import edu.uwm.cs552.ResponseJournal;
+import edu.uwm.cs552.User;
+
+/**
+ * Benchmarks of a room taking responses, without the network: responses are
+ * handed to the room in batches as the server's ingester would, from clients
+ * that are logged in but send nothing.
+ * <dl>
+ * <dt>metrics [--rate=N] [--seconds=S]</dt>
+ * <dd>the cost of metrics when the room takes N responses a second (10,000 by default):
+ * the counters updated for every response, and serving the metrics as text once a second.
+ * Both are given as a fraction of the CPU time spent taking the responses.</dd>
+ * <dt>count [--responses=N]</dt>
+ * <dd>the time to take N responses (10,000 by default) one at a time, counting the responses
+ * to the question after each, as the master question dialog does: by
+ * {@link edu.uwm.cs552.ResponseLog#getResponseCount getResponseCount},
+ * by the size of {@link edu.uwm.cs552.ResponseLog#getResponseView getResponseView},
+ * and by the size of the copy returned by {@link edu.uwm.cs552.ResponseLog#getResponses getResponses}.</dd>
+ * <dt>journal [--seconds=S]</dt>
+ * <dd>how many responses a second the room takes for S seconds, in batches of {@value #BATCH},
+ * when journaled with each {@link ResponseJournal.Sync sync policy} to a temporary file,
+ * and the longest that counting the responses (every millisecond, as the Swing thread
+ * might) waits for the log meanwhile.</dd>
+ * </dl>
+ * The CPU time of the process is measured, so other load on the machine matters less
+ * than for wall-clock time (but the JIT compiler and garbage collector are included).
+ */
+public class IngestBenchmark {
+	private static final int CLIENTS = 1000;
+	private static final int TICKS_PER_SECOND = 100;
+	private static final int SCRAPES = 200;
+	private static final int BATCH = 64;
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private final NetworkResponseLog room;
+	private final ChoiceQuestion question = new ChoiceQuestion();
+	private final ResponseJournal journal;
+	private final List<ClientConnection> clients = new ArrayList<>();
+	private int next = 0;
+
+	/**
+	 * A client that is logged in but never sent anything.
+	 */
+	private static class Idle implements ClientConnection {
+		private final ElementQueue queue = new ElementQueue(Integer.MAX_VALUE, Long.MAX_VALUE, OverflowPolicy.DROP_OLDEST, 0);
+		User user;
+
+		@Override
+		public User getUser() {
+			return user;
+		}
+
+		@Override
+		public boolean write(EncodedElement e) {
+			return true;
+		}
+
+		@Override
+		public ElementQueue getOutputQueue() {
+			return queue;
+		}
+
+		@Override
+		public void close() { }
+	}
+
+	IngestBenchmark(String name) throws IOException {
+		this(name, null, null);
+	}
+
+	/**
+	 * Set up a room whose changes are journaled.
+	 * @param name name of the room
+	 * @param f journal file, or null for none
+	 * @param sync sync policy of the journal
+	 */
+	IngestBenchmark(String name, File f, ResponseJournal.Sync sync) throws IOException {
+		RoomServer server = new RoomServer(new SelectorServerEngine(0));
+		room = server.openRoom(name);
+		journal = f == null ? null : ResponseJournal.open(f, sync, room);
+		for (int i = 0; i < CLIENTS; ++i) {
+			Idle c = new Idle();
+			Map<String,String> attributes = new HashMap<>();
+			attributes.put("user", "u" + i);
+			c.user = room.login(c, attributes);
+			clients.add(c);
+		}
+		question.setQuestion("Benchmark");
+		question.addChoice("yes");
+		question.addChoice("no");
+		room.startQuestion(question);
+	}
+
+	/**
+	 * Hand the room a batch of responses, from the clients in turn.
+	 * @param n number of responses
+	 */
+	void ingest(int n) {
+		List<RoomServer.Delivery> batch = new ArrayList<>(n);
+		for (int i = 0; i < n; ++i) {
+			ClientConnection c = clients.get(next++ % CLIENTS);
+			batch.add(new RoomServer.Delivery(room, c, new Response(c.getUser(), (next & 1) == 0 ? "yes" : "no", null)));
+		}
+		room.handleResponses(batch);
+	}
+
+	/**
+	 * Return the CPU time used by this process so far.
+	 * @return CPU time in nanoseconds
+	 */
+	static long processCpuTime() {
+		return ((com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+	}
+
+	/**
+	 * Take responses at a steady rate for a while.
+	 * @return CPU time used by the process meanwhile, in nanoseconds
+	 */
+	long ingestAtRate(int rate, int seconds) throws InterruptedException {
+		int perTick = rate / TICKS_PER_SECOND;
+		long tick = 1_000_000_000L / TICKS_PER_SECOND;
+		long cpu = processCpuTime();
+		long due = System.nanoTime();
+		for (int t = 0; t < seconds * TICKS_PER_SECOND; ++t) {
+			ingest(perTick);
+			due += tick;
+			long wait = due - System.nanoTime();
+			if (wait > 0) Thread.sleep(wait / 1_000_000, (int)(wait % 1_000_000));
+		}
+		return processCpuTime() - cpu;
+	}
+
+	/**
+	 * Increment a counter many times, as the room does for each response.
+	 */
+	private static void count(Metrics.Counter c, int n) {
+		for (int i = 0; i < n; ++i) {
+			c.increment();
+		}
+	}
+
+	/**
+	 * Read the metrics served on the given port, as a monitoring system would.
+	 */
+	private static void scrape(int port) throws IOException {
+		try (InputStream in = new URL("http://localhost:" + port + "/metrics").openStream()) {
+			in.readAllBytes();
+		}
+	}
+
+	private static void metrics(int rate, int seconds) throws IOException, InterruptedException {
+		IngestBenchmark b = new IngestBenchmark("metrics-benchmark");
+		Metrics m = Metrics.getDefault();
+		m.startHttpServer(0);
+		b.ingestAtRate(rate, seconds); // warm up
+		long plain = b.ingestAtRate(rate, seconds);
+
+		// the counters: as many increments as responses were taken
+		Metrics.Counter c = new Metrics.Counter();
+		count(c, rate * seconds); // warm up
+		long cpu = threads.getCurrentThreadCpuTime();
+		count(c, rate * seconds);
+		long counting = threads.getCurrentThreadCpuTime() - cpu;
+
+		// serving the metrics once a second, as a monitoring system would read them:
+		// the cost of one read, measured over many, times the number of seconds.
+		// The reading is done by this thread, whose CPU time is not counted.
+		int port = m.getHttpPort();
+		for (int i = 0; i < SCRAPES; ++i) scrape(port); // warm up
+		cpu = processCpuTime() - threads.getCurrentThreadCpuTime();
+		for (int i = 0; i < SCRAPES; ++i) scrape(port);
+		long scraping = (processCpuTime() - threads.getCurrentThreadCpuTime() - cpu) * seconds / SCRAPES;
+		m.stopHttpServer();
+
+		System.out.printf("taking %d responses/s for %d s: %.1f ms CPU%n", rate, seconds, plain / 1e6);
+		System.out.printf("counters: %.2f ms CPU, %.2f%%%n", counting / 1e6, 100.0 * counting / plain);
+		System.out.printf("scraping once a second: %.2f ms CPU, %.2f%%%n", scraping / 1e6, 100.0 * scraping / plain);
+		System.out.printf("metrics overhead: %.2f%% of taking the responses, %.3f%% of one core%n",
+				100.0 * (counting + scraping) / plain, 100.0 * (counting + scraping) / (seconds * 1e9));
+	}
+
+	/**
+	 * Ways of counting the responses to a question.
+	 */
+	private enum Counting {
+		COUNT {
+			@Override
+			int count(NetworkResponseLog log, ChoiceQuestion q) {
+				return log.getResponseCount(q);
+			}
+		},
+		VIEW {
+			@Override
+			int count(NetworkResponseLog log, ChoiceQuestion q) {
+				return log.getResponseView(q).size();
+			}
+		},
+		COPY {
+			@Override
+			int count(NetworkResponseLog log, ChoiceQuestion q) {
+				return log.getResponses(q).size();
+			}
+		};
+
+		abstract int count(NetworkResponseLog log, ChoiceQuestion q);
+	}
+
+	/**
+	 * Take responses one at a time, counting them after each.
+	 * @return CPU time used by this thread, in nanoseconds
+	 */
+	private static long ingestAndCount(Counting way, int responses) throws IOException {
+		IngestBenchmark b = new IngestBenchmark("count-benchmark");
+		long cpu = threads.getCurrentThreadCpuTime();
+		for (int i = 1; i <= responses; ++i) {
+			b.ingest(1);
+			if (way.count(b.room, b.question) != i) throw new IllegalStateException("miscounted after " + i + " responses");
+		}
+		return threads.getCurrentThreadCpuTime() - cpu;
+	}
+
+	private static void count(int responses) throws IOException {
+		for (Counting way : Counting.values()) {
+			ingestAndCount(way, responses); // warm up
+		}
+		for (Counting way : Counting.values()) {
+			long cpu = ingestAndCount(way, responses);
+			System.out.printf("%d responses, counted by %s after each: %.1f ms CPU, %.2f us per response%n",
+					responses, way.name().toLowerCase(), cpu / 1e6, cpu / 1e3 / responses);
+		}
+	}
+
+	private static void journal(int seconds) throws IOException, InterruptedException {
+		for (ResponseJournal.Sync sync : ResponseJournal.Sync.values()) {
+			File f = File.createTempFile("journal-benchmark", ".journal");
+			f.delete();
+			IngestBenchmark b = new IngestBenchmark("journal-benchmark", f, sync);
+			long[] worst = { 0 };
+			Thread reader = new Thread(() -> {
+				try {
+					while (true) {
+						long start = System.nanoTime();
+						b.room.getResponseCount(b.question);
+						worst[0] = Math.max(worst[0], System.nanoTime() - start);
+						Thread.sleep(1);
+					}
+				} catch (InterruptedException e) {
+					// done
+				}
+			});
+			reader.start();
+			int n = 0;
+			long start = System.nanoTime(), end = start + seconds * 1_000_000_000L;
+			while (System.nanoTime() < end) {
+				b.ingest(BATCH);
+				n += BATCH;
+			}
+			double elapsed = (System.nanoTime() - start) / 1e9;
+			reader.interrupt();
+			reader.join();
+			b.journal.close();
+			System.out.printf("%-8s %8.0f responses/s, %.1f MB journaled, longest wait to count %.1f ms%n",
+					sync, n / elapsed, f.length() / 1e6, worst[0] / 1e6);
+			if (b.journal.getLost() > 0) System.out.println("  " + b.journal.getLost() + " records lost");
+			f.delete();
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String mode = args.length == 0 ? "" : args[0];
+		int rate = 10_000;
+		int seconds = 10;
+		int responses = 10_000;
+		for (int i = 1; i < args.length; ++i) {
+			String s = args[i];
+			if (s.startsWith("--rate=")) {
+				rate = Integer.parseInt(s.substring(7));
+			} else if (s.startsWith("--seconds=")) {
+				seconds = Integer.parseInt(s.substring(10));
+			} else if (s.startsWith("--responses=")) {
+				responses = Integer.parseInt(s.substring(12));
+			} else {
+				mode = "";
+			}
+		}
+		switch (mode) {
+		case "metrics":
+			metrics(rate, seconds);
+			break;
+		case "count":
+			count(responses);
+			break;
+		case "journal":
+			journal(seconds);
+			break;
+		default:
+			System.err.println("usage: IngestBenchmark metrics [--rate=N] [--seconds=S]");
+			System.err.println("   or: IngestBenchmark count [--responses=N]");
+			System.err.println("   or: IngestBenchmark journal [--seconds=S]");
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
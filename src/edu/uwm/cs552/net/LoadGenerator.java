@@ -0,0 +1,639 @@
+package edu.uwm.cs552.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+import edu.uwm.cs.util.LatencyHistogram;
+import edu.uwm.cs552.Choice;
+import edu.uwm.cs552.ChoiceQuestion;
+import edu.uwm.cs552.FreeResponseQuestion;
+import edu.uwm.cs552.Question;
+import edu.uwm.cs552.Response;
+import edu.uwm.cs552.User;
+import edu.uwm.cs552.XMLObject;
+
+/**
+ * A headless load generator for the quiz server.  It simulates many clients,
+ * all on one thread using non-blocking sockets: each does the UserResponses handshake,
+ * receives questions and answers them after a random "think time".
+ * At the end, it reports throughput, connect latency, question delivery latency
+ * and error counts.
+ * <p>
+ * Clients connect according to a profile: "sustained" (all at once), "ramp"
+ * (evenly over the ramp time) or "burst" (ramp, then every so often every client
+ * drops its connection and reconnects at once, resuming its session).
+ * With --local, the generator runs its own server on the loopback interface and
+ * puts questions to the clients itself; then delivery latency is measured from
+ * when the question was started, rather than from when the first client received it.
+ * The local server uses a selector, or a thread per client with --threaded
+ * (or --threads=platform or virtual, to choose the kind of thread).
+ * Each question is also prefetched one interval ahead, so that with --prefetch
+ * (clients that ask for prefetching) asking it sends only a small Reveal.
+ * Simulating thousands of clients may need a higher limit on open files (ulimit -n).
+ */
+public class LoadGenerator {
+	public static final String SUSTAINED = "sustained";
+	public static final String RAMP = "ramp";
+	public static final String BURST = "burst";
+	private static final long MILLION = 1_000_000L;
+
+	// settings
+	private final InetSocketAddress address;
+	private final int numClients;
+	private final String profile;
+	private final long rampMillis;
+	private final long burstPeriodMillis;
+	private final long durationMillis;
+	private final LongSupplier thinkTime;
+	private final AnswerMix answers;
+	private final Map<String,String> options;
+	private final Random random;
+
+	// state, used only on the generator's thread (except as noted)
+	private final Selector selector;
+	private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+	private final List<SimClient> clients = new ArrayList<>();
+	private final User.Users users = new User.Users();
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(65536);
+	private boolean running = true;
+	private long startNanos;
+
+	/** When each question was started, if we are asking them (written by the asking thread). */
+	private final Map<String,Long> questionStarts = new ConcurrentHashMap<>();
+	/** When each question was first delivered to any client. */
+	private final Map<String,Long> firstDeliveries = new HashMap<>();
+
+	// statistics
+	private final LatencyHistogram connectLatency = new LatencyHistogram();
+	private final LatencyHistogram reconnectLatency = new LatencyHistogram();
+	private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+	private int connected, failed, lost, reconnects, errors, questions, sent, unanswered;
+	private int lastSent;
+
+	/**
+	 * Create a load generator.  Nothing happens until {@link #run()} is called.
+	 * @param address address of server
+	 * @param n number of clients to simulate
+	 * @param profile how clients connect: {@link #SUSTAINED}, {@link #RAMP} or {@link #BURST}
+	 * @param ramp time (in milliseconds) over which to connect clients (for ramp and burst)
+	 * @param burstPeriod time (in milliseconds) between bursts of reconnections
+	 * @param duration time (in milliseconds) to run for
+	 * @param think think time (in milliseconds) before each answer
+	 * @param mix how to pick answers
+	 * @param options extra attributes for the handshake (e.g. wire="binary")
+	 * @param seed seed for random choices
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public LoadGenerator(InetSocketAddress address, int n, String profile, long ramp, long burstPeriod,
+			long duration, LongSupplier think, AnswerMix mix, Map<String,String> options, long seed) throws IOException {
+		this.address = address;
+		numClients = n;
+		this.profile = profile;
+		rampMillis = profile.equals(SUSTAINED) ? 0 : ramp;
+		burstPeriodMillis = burstPeriod;
+		durationMillis = duration;
+		thinkTime = think;
+		answers = mix;
+		this.options = options;
+		random = new Random(seed);
+		selector = Selector.open();
+	}
+
+	/**
+	 * Note the start of a question, so that delivery latency can be measured from it.
+	 * May be called from any thread.
+	 * @param q question being started, must not be null
+	 */
+	public void questionStarted(Question q) {
+		questionStarts.put(q.getQuestion(), System.nanoTime());
+	}
+
+	/**
+	 * Run the simulation to completion, and print a report.
+	 * @throws IOException if the selector fails
+	 */
+	public void run() throws IOException {
+		startNanos = System.nanoTime();
+		for (int i = 0; i < numClients; ++i) {
+			SimClient c = new SimClient(users.get("load" + i));
+			clients.add(c);
+			schedule(numClients <= 1 ? 0 : rampMillis * i / (numClients - 1), () -> c.connect());
+		}
+		if (profile.equals(BURST) && burstPeriodMillis > 0) {
+			scheduleBursts(rampMillis + burstPeriodMillis);
+		}
+		scheduleProgress(5000);
+		schedule(durationMillis, () -> running = false);
+		while (running) {
+			long now = System.nanoTime();
+			while (!timers.isEmpty() && timers.peek().when <= now) {
+				timers.poll().task.run();
+			}
+			long wait = timers.isEmpty() ? 0 : Math.max(1, (timers.peek().when - now) / MILLION);
+			selector.select(wait);
+			for (SelectionKey key : selector.selectedKeys()) {
+				SimClient c = (SimClient) key.attachment();
+				if (!key.isValid()) continue;
+				if (key.isConnectable()) c.finishConnect();
+				else {
+					if (key.isWritable()) c.flush();
+					if (key.isValid() && key.isReadable()) c.read();
+				}
+			}
+			selector.selectedKeys().clear();
+		}
+		for (SimClient c : clients) {
+			c.finish();
+		}
+		selector.close();
+		report();
+	}
+
+	private void schedule(long delayMillis, Runnable task) {
+		timers.add(new Timer(System.nanoTime() + delayMillis * MILLION, task));
+	}
+
+	private void scheduleBursts(long delayMillis) {
+		schedule(delayMillis, () -> {
+			for (SimClient c : clients) {
+				if (c.isLoggedIn()) {
+					++reconnects;
+					c.drop();
+					c.connect();
+				}
+			}
+			scheduleBursts(burstPeriodMillis);
+		});
+	}
+
+	private void scheduleProgress(long periodMillis) {
+		schedule(periodMillis, () -> {
+			System.out.printf("%6.1f s: %d connected, %d responses (%.1f/s), %d errors%n",
+					elapsedSeconds(), connected, sent, (sent - lastSent) * 1000.0 / periodMillis, errors);
+			lastSent = sent;
+			scheduleProgress(periodMillis);
+		});
+	}
+
+	private double elapsedSeconds() {
+		return (System.nanoTime() - startNanos) / 1e9;
+	}
+
+	private void report() {
+		double elapsed = elapsedSeconds();
+		System.out.printf("%d clients, profile %s, %.1f s%n", numClients, profile, elapsed);
+		System.out.printf("connected: %d, failed: %d, lost: %d, reconnects: %d%n", connected, failed, lost, reconnects);
+		System.out.println("connect latency: " + connectLatency);
+		if (reconnects > 0) System.out.println("reconnect latency: " + reconnectLatency);
+		System.out.println((questionStarts.isEmpty() ? "question delivery latency (from first delivery): "
+				: "question delivery latency (from start): ") + deliveryLatency);
+		System.out.printf("questions: %d received, %d unanswered%n", questions, unanswered);
+		System.out.printf("responses: %d sent, %.1f/s%n", sent, sent / elapsed);
+		System.out.printf("errors from server: %d%n", errors);
+	}
+
+	/**
+	 * A task to be run on the generator's thread at a given time.
+	 */
+	private static class Timer implements Comparable<Timer> {
+		final long when;
+		final Runnable task;
+
+		Timer(long w, Runnable t) {
+			when = w;
+			task = t;
+		}
+
+		@Override
+		public int compareTo(Timer o) {
+			return Long.compare(when, o.when);
+		}
+	}
+
+	/**
+	 * How simulated clients answer questions: choices are picked with the given
+	 * weights (the first weight is for the first choice), and free responses
+	 * are picked uniformly from the given texts.
+	 */
+	public static class AnswerMix {
+		private final double[] weights;
+		private final String[] texts;
+
+		/**
+		 * Create an answer mix.
+		 * @param weights relative weights of the choices, must not be empty
+		 * @param texts free response answers, must not be empty
+		 */
+		public AnswerMix(double[] weights, String[] texts) {
+			this.weights = weights.clone();
+			this.texts = texts.clone();
+		}
+
+		/**
+		 * Pick an answer for the given question.
+		 * @param q question to answer, must not be null
+		 * @param r source of randomness
+		 * @return text of answer
+		 */
+		public String pick(Question q, Random r) {
+			if (!(q instanceof ChoiceQuestion)) return texts[r.nextInt(texts.length)];
+			int n = Math.min(weights.length, ((ChoiceQuestion) q).numChoices());
+			if (n == 0) return "";
+			double total = 0;
+			for (int i = 0; i < n; ++i) total += weights[i];
+			double x = r.nextDouble() * total;
+			int i = 0;
+			while (i < n-1 && (x -= weights[i]) >= 0) ++i;
+			return Integer.toString(i+1);
+		}
+	}
+
+	/**
+	 * Parse a think time distribution: "fixed:MS", "uniform:MIN:MAX" or "exp:MEAN"
+	 * (all in milliseconds).
+	 * @param spec description of distribution
+	 * @param r source of randomness
+	 * @return supplier of think times
+	 * @throws IllegalArgumentException if the description is not understood
+	 */
+	public static LongSupplier parseThinkTime(String spec, Random r) {
+		String[] parts = spec.split(":");
+		switch (parts[0]) {
+		case "fixed":
+			long fixed = Long.parseLong(parts[1]);
+			return () -> fixed;
+		case "uniform":
+			long min = Long.parseLong(parts[1]);
+			long max = Long.parseLong(parts[2]);
+			return () -> min + (long)(r.nextDouble() * (max - min));
+		case "exp":
+			double mean = Double.parseDouble(parts[1]);
+			return () -> (long)(-mean * Math.log(1 - r.nextDouble()));
+		default:
+			throw new IllegalArgumentException("unknown think time distribution: " + spec);
+		}
+	}
+
+	/**
+	 * One simulated client.
+	 */
+	private class SimClient implements ElementDecoder.Listener {
+		private final User user;
+		private SocketChannel channel;
+		private SelectionKey key;
+		private ElementDecoder decoder;
+		private ElementEncoder encoder;
+		private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+		private long connectStart;
+		private boolean loggedIn, resuming;
+		private String session;
+		private long sequence;
+		private int question; // counts questions, so stale answers can be ignored
+		private boolean answered = true;
+		private final Map<Long,Question> prefetched = new HashMap<>();
+
+		SimClient(User u) {
+			user = u;
+		}
+
+		boolean isLoggedIn() {
+			return loggedIn;
+		}
+
+		void connect() {
+			connectStart = System.nanoTime();
+			resuming = session != null;
+			Map<String,String> attributes = new LinkedHashMap<>(options);
+			if (resuming) {
+				attributes.put(NetworkResponseLog.SESSION_ATTRIBUTE, session);
+				attributes.put(NetworkResponseLog.SEQUENCE_ATTRIBUTE, Long.toString(sequence));
+			}
+			attributes.put("user", user.getName());
+			decoder = new ElementDecoder(null, this);
+			encoder = new ElementEncoder(attributes);
+			output.clear();
+			prefetched.clear(); // the server sends them again
+			output.add(EncodedElement.startTag("UserResponses", attributes).asByteBuffer());
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				if (channel.connect(address)) {
+					key = channel.register(selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ, this);
+				} else {
+					key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+				}
+			} catch (IOException e) {
+				++failed;
+				drop();
+			}
+		}
+
+		void finishConnect() {
+			try {
+				channel.finishConnect();
+				key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+			} catch (IOException e) {
+				++failed;
+				drop();
+			}
+		}
+
+		void send(XMLObject obj) {
+			if (channel == null) return;
+			output.add(ByteBuffer.wrap(encoder.encode(EncodedElement.encode(obj))));
+			flush();
+		}
+
+		void flush() {
+			try {
+				while (!output.isEmpty()) {
+					ByteBuffer b = output.peek();
+					channel.write(b);
+					if (b.hasRemaining()) break;
+					output.poll();
+				}
+				if (key.isValid()) {
+					key.interestOps(output.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			} catch (IOException e) {
+				lostConnection();
+			}
+		}
+
+		void read() {
+			readBuffer.clear();
+			try {
+				int n = channel.read(readBuffer);
+				if (n < 0) {
+					lostConnection();
+					return;
+				}
+				decoder.feed(readBuffer.array(), 0, n);
+			} catch (IOException e) {
+				lostConnection();
+			}
+		}
+
+		private void lostConnection() {
+			if (channel == null) return;
+			if (loggedIn) ++lost;
+			else ++failed;
+			drop();
+		}
+
+		/**
+		 * Close the connection abruptly, as if the network had failed.
+		 */
+		void drop() {
+			if (loggedIn) --connected;
+			loggedIn = false;
+			++question;
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// muffle
+				}
+			}
+			channel = null;
+			if (encoder != null) encoder.close();
+		}
+
+		/**
+		 * End the UserResponses element and close the connection.
+		 */
+		void finish() {
+			if (channel == null) return;
+			output.add(ByteBuffer.wrap(encoder.encode(EncodedElement.endTag("UserResponses"))));
+			if (channel.isConnected()) flush();
+			// the count of connected clients is kept for the report
+			loggedIn = false;
+			drop();
+		}
+
+		private void answer(int q, Question qn, long received) {
+			if (q != question || channel == null) return;
+			answered = true;
+			++sent;
+			Response r = new Response(user, answers.pick(qn, random));
+			r.setThinkTime((System.nanoTime() - received) / 1000);
+			send(r);
+		}
+
+		@Override
+		public void attribute(String name, String value) throws IOException {
+			// nothing to do
+		}
+
+		@Override
+		public void startTagClosed() throws IOException {
+			if (!"Requests".equals(decoder.getRootName())) {
+				throw new IOException("Server did not send requests");
+			}
+		}
+
+		@Override
+		public void element(XMLObject obj) throws IOException {
+			if (obj instanceof Session) {
+				Session s = (Session) obj;
+				session = s.getId();
+				sequence = s.getSequence();
+				loggedIn = true;
+				++connected;
+				(resuming ? reconnectLatency : connectLatency).record(System.nanoTime() - connectStart);
+			} else if (obj instanceof Prefetch) {
+				Prefetch p = (Prefetch) obj;
+				prefetched.put(p.getId(), p.getQuestion());
+			} else if (obj instanceof Reveal) {
+				Question q = prefetched.remove(((Reveal) obj).getId());
+				if (q == null) throw new IOException("Reveal of a question never sent: " + obj);
+				element(q);
+			} else if (obj instanceof Question) {
+				long now = System.nanoTime();
+				++sequence;
+				++questions;
+				if (!answered) ++unanswered;
+				Question qn = (Question) obj;
+				Long started = questionStarts.get(qn.getQuestion());
+				if (started == null) started = firstDeliveries.computeIfAbsent(qn.getQuestion(), (k) -> now);
+				deliveryLatency.record(now - started);
+				int q = ++question;
+				answered = false;
+				schedule(thinkTime.getAsLong(), () -> answer(q, qn, now));
+			} else if (obj instanceof ResponseTimeDone) {
+				++sequence;
+				++question;
+			} else if (obj instanceof Error) {
+				++errors;
+			}
+		}
+
+		@Override
+		public void end() throws IOException {
+			lostConnection();
+		}
+	}
+
+	/**
+	 * Put questions to the clients of a log, one after another,
+	 * prefetching each one before it is asked.
+	 * @param generator generator to tell when each question starts, or null
+	 */
+	static void askQuestions(NetworkResponseLog log, LoadGenerator generator, long interval, long open) {
+		Thread t = new Thread(() -> {
+			try {
+				for (int n = 1; ; ++n) {
+					Question q;
+					if (n % 2 == 1) {
+						ChoiceQuestion cq = new ChoiceQuestion();
+						for (int i = 1; i <= 4; ++i) cq.addChoice("Choice " + i);
+						q = cq;
+					} else {
+						q = new FreeResponseQuestion();
+					}
+					q.setQuestion("Question " + n);
+					log.prefetch(q);
+					Thread.sleep(interval);
+					if (generator != null) generator.questionStarted(q);
+					log.startQuestion(q);
+					Thread.sleep(open);
+					log.stopQuestion();
+				}
+			} catch (InterruptedException e) {
+				// done
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}, "asker");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public static void main(String[] args) throws IOException {
+		String server = "localhost";
+		int port = NetworkResponseLog.PORT;
+		int n = 1000;
+		String profile = RAMP;
+		long ramp = 10000, burstPeriod = 20000, duration = 60000;
+		String think = "uniform:1000:5000";
+		double[] weights = { 1, 1, 1, 1 };
+		String[] texts = { "yes", "no", "maybe" };
+		boolean local = false;
+		boolean selector = true;
+		String threads = ThreadedServerEngine.PLATFORM;
+		long interval = 2000, open = 8000;
+		long seed = 552;
+		Map<String,String> options = new HashMap<>();
+		for (String s : args) {
+			if (s.startsWith("--server=")) {
+				server = s.substring(9);
+			} else if (s.startsWith("--port=")) {
+				port = Integer.parseInt(s.substring(7));
+			} else if (s.startsWith("--clients=")) {
+				n = Integer.parseInt(s.substring(10));
+			} else if (s.startsWith("--profile=")) {
+				profile = s.substring(10);
+			} else if (s.startsWith("--ramp=")) {
+				ramp = Long.parseLong(s.substring(7));
+			} else if (s.startsWith("--burst-period=")) {
+				burstPeriod = Long.parseLong(s.substring(15));
+			} else if (s.startsWith("--duration=")) {
+				duration = Long.parseLong(s.substring(11));
+			} else if (s.startsWith("--think=")) {
+				think = s.substring(8);
+			} else if (s.startsWith("--choices=")) {
+				String[] ws = s.substring(10).split(",");
+				weights = new double[ws.length];
+				for (int i = 0; i < ws.length; ++i) weights[i] = Double.parseDouble(ws[i]);
+			} else if (s.startsWith("--texts=")) {
+				texts = s.substring(8).split(",");
+			} else if (s.startsWith("--seed=")) {
+				seed = Long.parseLong(s.substring(7));
+			} else if (s.startsWith("--wire=")) {
+				options.put(BinaryCodec.WIRE_ATTRIBUTE, s.substring(7));
+			} else if (s.startsWith("--compress=")) {
+				options.put(ElementEncoder.COMPRESS_ATTRIBUTE, s.substring(11));
+			} else if (s.startsWith("--room=")) {
+				options.put(RoomServer.ROOM_ATTRIBUTE, s.substring(7));
+			} else if (s.startsWith("--metrics-port=")) {
+				System.setProperty(Metrics.PORT_PROPERTY, s.substring(15));
+			} else if (s.equals("--prefetch")) {
+				options.put(NetworkResponseLog.PREFETCH_ATTRIBUTE, "true");
+			} else if (s.equals("--local")) {
+				local = true;
+			} else if (s.equals("--threaded")) {
+				selector = false;
+			} else if (s.startsWith("--threads=")) {
+				selector = false;
+				threads = s.substring(10);
+			} else if (s.startsWith("--interval=")) {
+				interval = Long.parseLong(s.substring(11));
+			} else if (s.startsWith("--open=")) {
+				open = Long.parseLong(s.substring(7));
+			} else {
+				System.err.println("Unknown argument: " + s);
+				System.exit(1);
+			}
+		}
+		if (!profile.equals(SUSTAINED) && !profile.equals(RAMP) && !profile.equals(BURST)) {
+			System.err.println("Unknown profile: " + profile);
+			System.exit(1);
+		}
+		Random random = new Random(seed);
+		LoadGenerator generator = new LoadGenerator(new InetSocketAddress(server, port), n, profile, ramp, burstPeriod,
+				duration, parseThinkTime(think, random), new AnswerMix(weights, texts), options, seed);
+		NetworkResponseLog log = null;
+		if (local) {
+			try {
+				log = new NetworkResponseLog(selector ? new SelectorServerEngine(port)
+						: new ThreadedServerEngine(port, ThreadedServerEngine.threadFactory(threads)));
+			} catch (IllegalArgumentException|UnsupportedOperationException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+			askQuestions(log, generator, interval, open);
+		}
+		generator.run();
+		if (log != null) {
+			int logged = 0;
+			for (Question q : log.getQuestions()) {
+				logged += log.getResponseCount(q);
+			}
+			System.out.println("responses logged by server: " + logged);
+			List<Question> asked = log.getQuestions();
+			if (!asked.isEmpty()) {
+				Question last = asked.get(asked.size()-1);
+				System.out.println("server timing for " + last.getQuestion() + ":");
+				System.out.println(log.getTimingSummary(last));
+			}
+		}
+		System.exit(0);
+	}
+
+	static {
+		XMLObject.register("Requests", () -> { return new Requests(); });
+		XMLObject.register("ResponseTimeDone", () -> { return new ResponseTimeDone(); });
+		XMLObject.register("Error", () -> { return new Error(); });
+		XMLObject.register("Heartbeat", () -> { return new Heartbeat(); });
+		XMLObject.register("Session", () -> { return new Session(); });
+		XMLObject.register("Prefetch", () -> { return new Prefetch(); });
+		XMLObject.register("Reveal", () -> { return new Reveal(); });
+		XMLObject.register("ChoiceQuestion", () -> { return new ChoiceQuestion(); });
+		XMLObject.register("FreeResponseQuestion", () -> { return new FreeResponseQuestion(); });
+		XMLObject.register("Choice", () -> { return new Choice(); });
+	}
+}
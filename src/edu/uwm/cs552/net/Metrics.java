@@ -0,0 +1,325 @@
+package edu.uwm.cs552.net;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.swing.SwingUtilities;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A registry of counters and gauges for the server, cheap enough to leave on.
+ * Counters are {@link LongAdder}s, so threads incrementing them don't contend;
+ * gauges are computed only when read.  Metrics are named like
+ * <code>quiz_connections{port="53129"}</code>: a family name and optional labels.
+ * <p>
+ * The metrics of the {@link #getDefault() default registry} can be read as attributes
+ * of a JMX MBean named {@link #OBJECT_NAME}, and, once {@link #startHttpServer(int)}
+ * has been called, as plain text from <code>http://localhost:PORT/metrics</code>.
+ */
+public class Metrics {
+	public static final String OBJECT_NAME = "edu.uwm.cs552:type=Metrics";
+	/** System property giving the port of the text endpoint for servers to start. */
+	public static final String PORT_PROPERTY = "edu.uwm.cs552.metrics.port";
+
+	private static final Metrics DEFAULT = new Metrics(true);
+
+	/**
+	 * Return the registry for this process.
+	 * @return default registry
+	 */
+	public static Metrics getDefault() {
+		return DEFAULT;
+	}
+
+	private final Map<String,Metric> metrics = new ConcurrentSkipListMap<>();
+	private HttpServer http;
+	private ScheduledExecutorService probe;
+
+	/**
+	 * Create a registry.
+	 * @param jmx whether to make the metrics available as a platform MBean
+	 */
+	public Metrics(boolean jmx) {
+		if (jmx) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName(OBJECT_NAME));
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * A metric: something that can be read as a number.
+	 */
+	private static class Metric {
+		final String family;
+		final String help;
+		final String type;
+		final LongSupplier value;
+		final Counter counter;
+
+		Metric(String f, String h, LongSupplier v) {
+			family = f;
+			help = h;
+			type = "gauge";
+			value = v;
+			counter = null;
+		}
+
+		Metric(String f, String h, Counter c) {
+			family = f;
+			help = h;
+			type = "counter";
+			value = () -> c.get();
+			counter = c;
+		}
+	}
+
+	/**
+	 * A count that only goes up.
+	 */
+	public static class Counter {
+		private final LongAdder adder = new LongAdder();
+
+		public void increment() {
+			adder.increment();
+		}
+
+		public void add(long n) {
+			adder.add(n);
+		}
+
+		public long get() {
+			return adder.sum();
+		}
+	}
+
+	private static String name(String family, String labels) {
+		return labels == null || labels.isEmpty() ? family : family + "{" + labels + "}";
+	}
+
+	/**
+	 * Return the counter with the given name, creating it if necessary.
+	 * @param family name of metric, must not be null
+	 * @param labels labels such as <code>port="53129"</code>, or null for none
+	 * @param help description of metric
+	 * @return counter, never null
+	 * @throws IllegalStateException if there is a gauge of this name
+	 */
+	public Counter counter(String family, String labels, String help) {
+		Metric m = metrics.computeIfAbsent(name(family, labels), (n) -> new Metric(family, help, new Counter()));
+		if (m.counter == null) throw new IllegalStateException("not a counter: " + name(family, labels));
+		return m.counter;
+	}
+
+	/**
+	 * Add a gauge, replacing any with the same name.
+	 * The supplier is called whenever the metric is read, on whatever thread reads it.
+	 * @param family name of metric, must not be null
+	 * @param labels labels such as <code>port="53129"</code>, or null for none
+	 * @param help description of metric
+	 * @param value how to compute the current value, must not be null
+	 */
+	public void gauge(String family, String labels, String help, LongSupplier value) {
+		metrics.put(name(family, labels), new Metric(family, help, value));
+	}
+
+	/**
+	 * Add a gauge giving the rate (per second) at which a counter has gone up,
+	 * averaged since the gauge was last read (but over at least a second).
+	 * @param family name of metric, must not be null
+	 * @param labels labels, or null for none
+	 * @param help description of metric
+	 * @param c counter to measure, must not be null
+	 */
+	public void rate(String family, String labels, String help, Counter c) {
+		AtomicLong lastTime = new AtomicLong(System.nanoTime());
+		AtomicLong lastCount = new AtomicLong(c.get());
+		AtomicLong rate = new AtomicLong();
+		gauge(family, labels, help, () -> {
+			long now = System.nanoTime();
+			long then = lastTime.get();
+			if (now - then >= 1_000_000_000L && lastTime.compareAndSet(then, now)) {
+				long count = c.get();
+				rate.set((count - lastCount.getAndSet(count)) * 1_000_000_000L / (now - then));
+			}
+			return rate.get();
+		});
+	}
+
+	/**
+	 * Remove all metrics with the given labels (e.g. for a server that has closed).
+	 * @param labels labels to remove metrics for, must not be null
+	 */
+	public void removeAll(String labels) {
+		metrics.keySet().removeIf((n) -> n.endsWith("{" + labels + "}"));
+	}
+
+	/**
+	 * Return the current value of a metric.
+	 * @param name full name of metric (with labels)
+	 * @return value, or null if there is no such metric
+	 */
+	public Long get(String name) {
+		Metric m = metrics.get(name);
+		return m == null ? null : m.value.getAsLong();
+	}
+
+	/**
+	 * Return the metrics as text: each metric on a line of its own,
+	 * name then value, with comments giving the help and type of each family.
+	 * @return text of all metrics
+	 */
+	public String toText() {
+		StringBuilder sb = new StringBuilder();
+		String lastFamily = null;
+		for (Map.Entry<String,Metric> e : metrics.entrySet()) {
+			Metric m = e.getValue();
+			if (!m.family.equals(lastFamily)) {
+				lastFamily = m.family;
+				sb.append("# HELP ").append(m.family).append(' ').append(m.help).append('\n');
+				sb.append("# TYPE ").append(m.family).append(' ').append(m.type).append('\n');
+			}
+			sb.append(e.getKey()).append(' ').append(m.value.getAsLong()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Serve the metrics as text on the loopback interface, path /metrics.
+	 * Does nothing if already serving.
+	 * @param port port to listen on
+	 * @throws IOException if the port cannot be used
+	 */
+	public synchronized void startHttpServer(int port) throws IOException {
+		if (http != null) return;
+		http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		http.createContext("/metrics", (exchange) -> {
+			byte[] body = toText().getBytes(UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(body);
+			}
+		});
+		http.start();
+	}
+
+	/**
+	 * Return the port on which the metrics are served as text.
+	 * @return port, or -1 if not serving
+	 */
+	public synchronized int getHttpPort() {
+		return http == null ? -1 : http.getAddress().getPort();
+	}
+
+	/**
+	 * Stop serving metrics as text.
+	 */
+	public synchronized void stopHttpServer() {
+		if (http != null) http.stop(0);
+		http = null;
+	}
+
+	/**
+	 * Start measuring how far behind the Swing event thread is, by posting
+	 * an empty task every second.  The result is the gauge <code>swing_event_lag_micros</code>:
+	 * how long the last such task waited (or, if it is still waiting, how long so far).
+	 * Does nothing if already measuring.
+	 */
+	public synchronized void startEventQueueProbe() {
+		if (probe != null) return;
+		probe = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "event-queue-probe");
+			t.setDaemon(true);
+			return t;
+		});
+		AtomicLong posted = new AtomicLong();
+		AtomicLong lag = new AtomicLong();
+		AtomicBoolean waiting = new AtomicBoolean();
+		probe.scheduleWithFixedDelay(() -> {
+			if (!waiting.compareAndSet(false, true)) return;
+			long t = System.nanoTime();
+			posted.set(t);
+			SwingUtilities.invokeLater(() -> {
+				lag.set((System.nanoTime() - t) / 1000);
+				waiting.set(false);
+			});
+		}, 0, 1, TimeUnit.SECONDS);
+		gauge("swing_event_lag_micros", null, "How long a task posted to the Swing event thread waits.",
+				() -> waiting.get() ? Math.max(lag.get(), (System.nanoTime() - posted.get()) / 1000) : lag.get());
+	}
+
+	/**
+	 * The JMX view: every metric is a read-only attribute.
+	 */
+	private class MBean implements DynamicMBean {
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Long value = get(attribute);
+			if (value == null) throw new AttributeNotFoundException(attribute);
+			return value;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("metrics are read-only");
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList result = new AttributeList();
+			for (String a : attributes) {
+				Long value = get(a);
+				if (value != null) result.add(new Attribute(a, value));
+			}
+			return result;
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException("no operations");
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<>();
+			for (Map.Entry<String,Metric> e : metrics.entrySet()) {
+				attributes.add(new MBeanAttributeInfo(e.getKey(), "long", e.getValue().help, true, false, false));
+			}
+			return new MBeanInfo(Metrics.class.getName(), "Quiz server metrics",
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+		}
+	}
+}
@@ -1,18 +1,22 @@
 package edu.uwm.cs552.net;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.security.SecureRandom;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import javax.swing.SwingUtilities;
-
-import edu.uwm.cs.util.XMLTokenType;
-import edu.uwm.cs.util.XMLTokenizer;
-import edu.uwm.cs.util.XMLWriter;
+import edu.uwm.cs.util.LatencyHistogram;
 import edu.uwm.cs552.Choice;
 import edu.uwm.cs552.ChoiceQuestion;
 import edu.uwm.cs552.FreeResponseQuestion;
@@ -23,136 +27,557 @@ import edu.uwm.cs552.Script;
 import edu.uwm.cs552.User;
 import edu.uwm.cs552.XMLObject;
 
+/**
+ * A response log that puts questions to clients over the network
+ * and logs the responses they send back.  Each log is one room of a
+ * {@link RoomServer}, which handles the network.  A log created
+ * on its own is the only (default) room of a server of its own.
+ * A client that logs in with relay="true" (see {@link Relay}) may send
+ * responses on behalf of other users, who are added to the roster.
+ * <p>
+ * Questions and ends of questions are numbered, and the most recent are kept
+ * (already encoded) for replay.  When a client logs in, it is sent a {@link Session}
+ * element and then whatever it missed: a new client gets the current question (if any),
+ * and a client resuming a session gets what was sent since it was disconnected.
+ * The session id sent is a token for that user alone, so that a client
+ * can only resume (and so take over the connection of) its own user.
+ * <p>
+ * Clients that log in with prefetch="true" can be sent questions before they
+ * are asked (see {@link #prefetch(Question)}); when such a question is started,
+ * they are sent only a small {@link Reveal} instead of the whole question.
+ * Replay always uses the whole question.
+ * <p>
+ * Responses are ordered by when the server received them, not by the client's
+ * timestamp (clients' clocks may be wrong): each accepted response is stamped
+ * with a sequence number and time of receipt (see {@link Response#stamp(long, long)}),
+ * and a response is accepted for a question only if it arrived after the question started.
+ */
 public class NetworkResponseLog extends ResponseLog {
 	public static final int PORT = 53129;
-	private ServerSocket serverSocket;
-	private Thread serverThread;
+	public static final String RELAY_ATTRIBUTE = "relay";
+	public static final String SESSION_ATTRIBUTE = "session";
+	public static final String SEQUENCE_ATTRIBUTE = "seq";
+	public static final String PREFETCH_ATTRIBUTE = "prefetch";
+	/** How many of the most recent questions and ends of questions are kept for replay. */
+	public static final int REPLAY_SIZE = 16;
+	/** How many questions may be prefetched and not yet asked; older ones are forgotten. */
+	public static final int MAX_PREFETCH = 8;
+	private final String room;
 	
+	/**
+	 * Create a network response log on the standard port using the
+	 * thread-per-client engine.
+	 */
 	public NetworkResponseLog() {
-		super();
+		this(new ThreadedServerEngine(PORT));
+	}
+	
+	/**
+	 * Create a network response log using the given engine, 
+	 * for which it is the only room.
+	 * @param e engine to use, must not have been started already
+	 */
+	public NetworkResponseLog(ServerEngine e) {
+		this(RoomServer.DEFAULT_ROOM);
+		RoomServer server = new RoomServer(e);
+		server.addRoom(this);
 		try {
-			serverSocket = new ServerSocket(PORT);
-			serverThread = new Thread(() -> runServer());
-			serverThread.start();
-		} catch (IOException e) {
-			e.printStackTrace();
+			server.start();
+		} catch (IOException ex) {
+			ex.printStackTrace();
 		}
 	}
+
+	/**
+	 * Create the log for a room of a room server.
+	 * @param name name of room, must not be null
+	 */
+	NetworkResponseLog(String name) {
+		super();
+		room = name;
+		metricLabels = "room=\"" + name + "\"";
+		Metrics m = Metrics.getDefault();
+		accepted = m.counter("quiz_responses_total", metricLabels, "Responses added to the log.");
+		rejected = m.counter("quiz_responses_rejected_total", metricLabels,
+				"Responses refused (no question, out of order or unknown user).");
+		m.rate("quiz_responses_per_second", metricLabels, "Rate at which responses are added to the log.", accepted);
+		m.gauge("quiz_clients", metricLabels, "Clients logged in to the room.", () -> getClientCount());
+		m.gauge("quiz_question_in_progress", metricLabels, "1 if a question is being asked, else 0.",
+				() -> isQuestionInProgress() ? 1 : 0);
+		m.gauge("quiz_log_responses", metricLabels, "Responses in the room's log.", () -> getTotalResponseCount());
+		m.gauge("quiz_log_bytes", metricLabels, "Rough estimate of the heap used by the responses in the room's log.",
+				() -> getEstimatedSize());
+	}
+
+	/**
+	 * Remove this room's metrics from the registry.
+	 */
+	void removeMetrics() {
+		Metrics.getDefault().removeAll(metricLabels);
+	}
+
+	/**
+	 * Return the name of this log's room.
+	 * @return room name, never null
+	 */
+	public String getRoomName() {
+		return room;
+	}
 	
 	private boolean questionInProgress = false;
-	private LocalDateTime questionTimestamp;
+	// held while broadcasting, so that clients get broadcasts in order without the room being locked
+	private final Object broadcastLock = new Object();
+	private final SecureRandom random = new SecureRandom();
+	private final String session = Long.toHexString(random.nextLong());
+	/** each user's token for resuming the session */
+	private final Map<String,String> resumeTokens = new HashMap<>();
+	private long sequence = 0;
+	private final Deque<EncodedElement> replay = new ArrayDeque<>();
+	private long questionNanos;
+	private Question lastQuestion;
+	private QuestionTiming timing;
+	private final Map<Question,QuestionTiming> timings = new IdentityHashMap<>();
+	// the server's clock for stamping responses, shared by all rooms
+	private static final long NANO_BASE = System.nanoTime();
+	private static final long EPOCH_BASE_MICROS = System.currentTimeMillis() * 1000;
+	private static final Object CLOCK_LOCK = new Object();
+	private static long lastStamp = -1;
+	private static long sequenceOffset = 0; // so that sequence numbers follow those restored
+	private final String metricLabels;
+	private final Metrics.Counter accepted;
+	private final Metrics.Counter rejected;
+
+	private synchronized int getClientCount() {
+		return clients.size();
+	}
+
+	private synchronized boolean isQuestionInProgress() {
+		return questionInProgress;
+	}
 	
+	/**
+	 * Send a question that will be asked soon to the clients that want it ahead of time.
+	 * Does nothing if the question has already been prefetched.
+	 * @param q question to be asked, must not be null
+	 */
+	public void prefetch(Question q) {
+		synchronized (broadcastLock) {
+			EncodedElement e;
+			List<ClientConnection> to;
+			synchronized (this) {
+				if (prefetched.containsKey(q)) return;
+				long id = ++prefetchId;
+				e = EncodedElement.encode(new Prefetch(id, q));
+				prefetched.put(q, id);
+				prefetches.put(id, e);
+				if (prefetches.size() > MAX_PREFETCH) {
+					long oldest = prefetches.keySet().iterator().next();
+					prefetches.remove(oldest);
+					prefetched.values().removeIf((v) -> v == oldest);
+				}
+				to = new ArrayList<>(prefetchers);
+			}
+			Map<ClientConnection,EncodedElement> sends = new LinkedHashMap<>();
+			for (ClientConnection ch : to) sends.put(ch, e);
+			send(sends);
+		}
+	}
+
 	@Override
 	public void startQuestion(Question q) {
-		super.startQuestion(q);
-		questionInProgress = true;
-		questionTimestamp = LocalDateTime.now();
-		writeToClients(q);
+		synchronized (broadcastLock) {
+			Runnable send;
+			synchronized (this) {
+				super.startQuestion(q);
+				questionInProgress = true;
+				questionNanos = System.nanoTime();
+				lastQuestion = q;
+				timing = new QuestionTiming(LocalDateTime.now(), questionNanos);
+				timings.put(q, timing);
+				Long id = prefetched.remove(q);
+				if (id == null) {
+					send = writeToClients(q, null);
+				} else {
+					prefetches.remove(id);
+					send = writeToClients(q, new Reveal(id));
+				}
+			}
+			awaitJournal();
+			send.run();
+		}
+	}
+
+	@Override
+	public void abortQuestion() {
+		synchronized (broadcastLock) {
+			Runnable send = null;
+			synchronized (this) {
+				super.abortQuestion();
+				timings.remove(lastQuestion);
+				if (questionInProgress) {
+					// clients (and the replay) must not go on thinking the question is open
+					questionInProgress = false;
+					send = writeToClients(new ResponseTimeDone(), null);
+				}
+			}
+			awaitJournal();
+			if (send != null) send.run();
+		}
 	}
 
 	@Override
 	public void stopQuestion() {
-		super.stopQuestion();
-		questionInProgress = false;
-		writeToClients(new ResponseTimeDone());
+		synchronized (broadcastLock) {
+			Runnable send;
+			synchronized (this) {
+				super.stopQuestion();
+				questionInProgress = false;
+				send = writeToClients(new ResponseTimeDone(), null);
+			}
+			awaitJournal();
+			send.run();
+		}
 	}
 	
-	private void writeToClient(ClientHandler ch, XMLObject obj) {
-		clients.get(clients.indexOf(ch)).write(obj);
+	/**
+	 * Prepare to send an element to every client, and keep it for replay.  The element is
+	 * serialized once and the same bytes are queued for every client.
+	 * Must be called with the room locked, but the sending it returns should be run
+	 * after unlocking (holding only the broadcast lock), so that clients slow to take
+	 * the element don't hold up logins and responses.
+	 * @param obj element to broadcast
+	 * @param brief what to send instead to clients that prefetch, or null to send them the element too
+	 * @return what sends the element to the clients logged in now
+	 */
+	private Runnable writeToClients(XMLObject obj, XMLObject brief) {
+		EncodedElement e = EncodedElement.encode(obj);
+		EncodedElement b = brief == null ? e : EncodedElement.encode(brief);
+		++sequence;
+		replay.addLast(e);
+		if (replay.size() > REPLAY_SIZE) replay.removeFirst();
+		Map<ClientConnection,EncodedElement> sends = new LinkedHashMap<>();
+		for (ClientConnection ch : clients) {
+			sends.put(ch, prefetchers.contains(ch) ? b : e);
+		}
+		return () -> send(sends);
+	}
+
+	/**
+	 * Send elements to clients: first to those with room for them, then to the rest.
+	 * The waits for room (under {@link OverflowPolicy#BLOCK}) share one timeout,
+	 * so however many clients are slow, the others are held up by no more than that.
+	 * @param sends each client, and the element to send it
+	 */
+	private static void send(Map<ClientConnection,EncodedElement> sends) {
+		List<ClientConnection> slow = new ArrayList<>();
+		for (Map.Entry<ClientConnection,EncodedElement> s : sends.entrySet()) {
+			if (s.getKey().getOutputQueue().hasRoomFor(s.getValue())) s.getKey().write(s.getValue());
+			else slow.add(s.getKey());
+		}
+		long since = System.nanoTime();
+		for (ClientConnection ch : slow) {
+			ch.write(sends.get(ch), since);
+		}
 	}
 
-	private void writeToClients(XMLObject obj) {
-		for (ClientHandler ch : clients) {
-			ch.write(obj);
+	/**
+	 * Log a batch of responses.  Called on the server's ingester thread.
+	 * @param batch responses along with the connection each arrived on
+	 */
+	void handleResponses(List<RoomServer.Delivery> batch) {
+		synchronized (this) {
+			for (RoomServer.Delivery d : batch) {
+				handleResponse(d.connection, d.response, d.arrived);
+			}
 		}
+		// once for the whole batch, with the room unlocked
+		awaitJournal();
 	}
 
-	protected void handleResponse(ClientHandler ch, Response r) {
-		if (!questionInProgress)
-			writeToClient(ch, new Error("Response received with no question in progress."));
-		else if (r.getTimestamp().isBefore(questionTimestamp))
-			writeToClient(ch, new Error("Response received out of order."));
-		else
+	/**
+	 * Check a response and add it to the log if it is acceptable.
+	 * @param ch connection the response arrived on
+	 * @param r response
+	 * @param arrived when the response arrived (see {@link System#nanoTime()})
+	 */
+	protected synchronized void handleResponse(ClientConnection ch, Response r, long arrived) {
+		long handled = System.nanoTime();
+		boolean relay = relays.contains(ch);
+		if (!relay && (ch.getUser() == null || !ch.getUser().getName().equals(r.getUser().getName()))) {
+			// only a relay may respond for someone else
+			rejected.increment();
+			ch.write(new Error("Response for a user other than the one logged in."));
+			return;
+		}
+		User u = roster.find(r.getUser().getName());
+		if (u == null && relay) u = roster.get(r.getUser().getName());
+		if (u == null) {
+			rejected.increment();
+			ch.write(new Error("Response from a user not in this room."));
+			return;
+		}
+		if (u != r.getUser()) {
+			// parsed with the shared parsing registry: use our own user
+			r = new Response(u, r);
+		}
+		if (!questionInProgress) {
+			rejected.increment();
+			ch.write(new Error("Response received with no question in progress."));
+		} else if (arrived - questionNanos < 0) {
+			rejected.increment();
+			ch.write(new Error("Response received out of order."));
+		} else {
+			stamp(r, arrived);
 			addResponse(r);
+			accepted.increment();
+			timing.record(r, arrived, handled);
+		}
 	}
 
-	private static final User.Users users = new User.Users();
-	private List<ClientHandler> clients = new ArrayList<>();
-	
-	private void runServer() {
-		for (;;) {
-			try {
-				Socket client = serverSocket.accept();
-				SwingUtilities.invokeLater(() -> clients.add(new ClientHandler(client)));
-			} catch (IOException e) {
-				e.printStackTrace();
+	/**
+	 * Stamp a response with the next sequence number and the time it arrived.
+	 * Sequence numbers are based on {@link System#nanoTime()} (so they say roughly
+	 * how far apart responses arrived) but are strictly increasing.
+	 * @param r response to stamp
+	 * @param arrived when it arrived (see {@link System#nanoTime()})
+	 */
+	private static void stamp(Response r, long arrived) {
+		long seq, offset;
+		synchronized (CLOCK_LOCK) {
+			offset = sequenceOffset;
+			seq = Math.max(arrived - NANO_BASE + offset, lastStamp + 1);
+			lastStamp = seq;
+		}
+		r.stamp(seq, EPOCH_BASE_MICROS + (seq - offset) / 1000);
+	}
+
+	/**
+	 * Return when the response with the given sequence number arrived.
+	 * @param seq sequence number stamped by this server (not restored)
+	 * @return arrival time (see {@link System#nanoTime()})
+	 */
+	private static long arrivalOf(long seq) {
+		synchronized (CLOCK_LOCK) {
+			return NANO_BASE + seq - sequenceOffset;
+		}
+	}
+
+	/**
+	 * Make sure that responses are stamped with larger sequence numbers than the given one,
+	 * such as one restored from a journal written before the server restarted:
+	 * sequence numbers are shifted to follow it, still counting nanoseconds.
+	 * @param seq sequence number to follow
+	 */
+	private static void continueSequence(long seq) {
+		synchronized (CLOCK_LOCK) {
+			long next = System.nanoTime() - NANO_BASE + sequenceOffset;
+			if (seq >= next) sequenceOffset += seq + 1 - next;
+			if (seq > lastStamp) lastStamp = seq;
+		}
+	}
+
+	@Override
+	protected void restored() {
+		long last = -1;
+		for (Question q : getQuestions()) {
+			for (Response r : getResponses(q)) {
+				last = Math.max(last, r.getSequence());
 			}
 		}
+		continueSequence(last);
 	}
-	
-	private class ClientHandler {
-		private final Socket connection;
-		private BackgroundXMLObjectStream outputQueue;
-		private Thread inputThread;
-		private User user;
-		
-		public ClientHandler(Socket client){
-			connection = client;
-			try {
-				outputQueue = new BackgroundXMLObjectStream(new XMLWriter(connection.getOutputStream()), "Requests", Collections.emptyMap());
-			} catch (IOException e) {
-				e.printStackTrace();
-				return;
+
+	@Override
+	public synchronized String getTimingSummary(Question q) {
+		QuestionTiming t = timings.get(q);
+		return t == null ? null : t.toString();
+	}
+
+	/**
+	 * How long each stage of getting responses to a question into the log took.
+	 * Stages measured across machines (delivery and return) use the wall clock,
+	 * and so are only as accurate as the clocks agree.  They need the client's
+	 * timestamp parsed, so are only worked out when the summary is asked for.
+	 */
+	private static class QuestionTiming {
+		private final LocalDateTime started;
+		private final long startNanos;
+		/** responses whose client timestamps have not been looked at yet */
+		private final List<Response> unmeasured = new ArrayList<>();
+		/** question broadcast to client receipt, if the client gives a think time */
+		final LatencyHistogram delivery = new LatencyHistogram();
+		/** client receipt to response, as given by the client */
+		final LatencyHistogram think = new LatencyHistogram();
+		/** response to arrival at server */
+		final LatencyHistogram back = new LatencyHistogram();
+		/** arrival to being handled by the log */
+		final LatencyHistogram ingest = new LatencyHistogram();
+		/** handled to added to the log */
+		final LatencyHistogram log = new LatencyHistogram();
+		/** question broadcast to added to the log */
+		final LatencyHistogram total = new LatencyHistogram();
+
+		QuestionTiming(LocalDateTime start, long nanos) {
+			started = start;
+			startNanos = nanos;
+		}
+
+		void record(Response r, long arrived, long handled) {
+			long now = System.nanoTime();
+			if (r.getThinkTime() >= 0) think.record(r.getThinkTime() * 1000);
+			unmeasured.add(r);
+			ingest.record(handled - arrived);
+			log.record(now - handled);
+			total.record(now - startNanos);
+		}
+
+		/**
+		 * Record the stages that use the client's timestamp of the responses since the last time.
+		 * When a response arrived is recovered from its (nanosecond) sequence number.
+		 */
+		private void measure() {
+			for (Response r : unmeasured) {
+				LocalDateTime made = r.getTimestamp();
+				if (made == null) continue;
+				LocalDateTime arrival = started.plusNanos(arrivalOf(r.getSequence()) - startNanos);
+				if (r.getThinkTime() >= 0) delivery.record(ChronoUnit.NANOS.between(started, made) - r.getThinkTime() * 1000);
+				back.record(ChronoUnit.NANOS.between(made, arrival));
+			}
+			unmeasured.clear();
+		}
+
+		@Override
+		public String toString() {
+			measure();
+			return "delivery: " + delivery + "\n" +
+					"think: " + think + "\n" +
+					"return: " + back + "\n" +
+					"ingest: " + ingest + "\n" +
+					"log: " + log + "\n" +
+					"total: " + total;
+		}
+	}
+
+	/** Users for parsing responses, shared by all rooms. */
+	private static final User.Users users = new User.Users();
+	private final User.Users roster = new User.Users();
+	private final List<ClientConnection> clients = new ArrayList<>();
+	private final Set<ClientConnection> relays = new HashSet<>();
+	private final Set<ClientConnection> prefetchers = new HashSet<>();
+	private long prefetchId = 0;
+	/** questions prefetched but not yet asked, and their ids */
+	private final Map<Question,Long> prefetched = new IdentityHashMap<>();
+	private final Map<Long,EncodedElement> prefetches = new LinkedHashMap<>();
+
+	/**
+	 * Return the users that have logged in to this room.
+	 * @return users of this room
+	 */
+	public User.Users getRoster() {
+		return roster;
+	}
+
+	/**
+	 * A client wants to join this room.  Called on an engine thread.
+	 * @see ServerEngine.Handler#login(ClientConnection, Map)
+	 */
+	synchronized User login(ClientConnection c, Map<String,String> attributes) throws IOException {
+		String name = attributes.get("user");
+		String token = resumeTokens.get(name);
+		boolean resuming = token != null && token.equals(attributes.get(SESSION_ATTRIBUTE));
+		if (resuming) {
+			// the old connection (if still open) is stale
+			List<ClientConnection> stale = new ArrayList<>();
+			for (ClientConnection old : clients) {
+				User u = old.getUser();
+				if (u != null && u.getName().equals(name)) stale.add(old);
+			}
+			for (ClientConnection old : stale) {
+				old.close();
 			}
-			inputThread = new Thread(() -> doInput());
-			inputThread.start();
+		} else if (roster.find(name) != null) {
+			c.write(new Error("Duplicate user."));
+			throw new IOException("Duplicate user.");
 		}
-		
-		public boolean write(XMLObject obj) {
-			return outputQueue.write(obj);
+		User user = roster.get(name);
+		if (token == null) {
+			token = session + "." + Long.toHexString(random.nextLong());
+			resumeTokens.put(name, token);
+		}
+		if ("true".equals(attributes.get(RELAY_ATTRIBUTE))) relays.add(c);
+		clients.add(c);
+		catchUp(c, token, resuming ? attributes.get(SEQUENCE_ATTRIBUTE) : null);
+		if ("true".equals(attributes.get(PREFETCH_ATTRIBUTE))) {
+			prefetchers.add(c);
+			for (EncodedElement e : prefetches.values()) {
+				c.write(e);
+			}
 		}
-		
-		private void doInput() {
+		return user;
+	}
+
+	/**
+	 * Send a client that is logging in the session information and what it missed.
+	 * @param c client connection
+	 * @param token the user's token for resuming the session
+	 * @param seq sequence number of the last element the client received, or null if not resuming
+	 */
+	private void catchUp(ClientConnection c, String token, String seq) {
+		long last = -1;
+		if (seq != null) {
 			try {
-				XMLTokenizer xt = new XMLTokenizer(connection.getInputStream());
-				if (xt.next() != XMLTokenType.OPEN || !xt.getCurrentName().equals("UserResponses") ||
-					xt.next() != XMLTokenType.ATTR || !xt.getCurrentName().equals("user")) {
-					outputQueue.write(new Error("Malformed/Illegal request response."));
-					throw new IOException("Initial client response illegal.");
-				}
-				if (users.find(xt.getCurrentText()) != null) {
-					outputQueue.write(new Error("Duplicate user."));
-					throw new IOException("Duplicate user.");
-				}
-				user = users.get(xt.getCurrentText());
-				xt.next();
-				for (;;) {
-					if (xt.hasNext()) {
-						XMLObject obj = fromXML(xt);
-						if (obj instanceof Response) {
-							SwingUtilities.invokeLater(() -> handleResponse(this, (Response) obj));
-						} else {
-							throw new IOException("Illegal token received from client " + user.getName());
-						}
-					}
-				}
-			} catch (IOException | ParseException e) {
-				e.printStackTrace();
+				last = Long.parseLong(seq);
+			} catch (NumberFormatException e) {
+				// start afresh
 			}
-			killClient();
 		}
-		
-		private void killClient() {
-			outputQueue.close();
-			SwingUtilities.invokeLater(() -> clients.remove(this));
+		if (last >= 0 && last <= sequence && sequence - last <= replay.size()) {
+			c.write(new Session(token, last));
+			Iterator<EncodedElement> it = replay.descendingIterator();
+			EncodedElement[] missed = new EncodedElement[(int)(sequence - last)];
+			for (int i = missed.length-1; i >= 0; --i) {
+				missed[i] = it.next();
+			}
+			for (EncodedElement e : missed) {
+				c.write(e);
+			}
+		} else if (questionInProgress) {
+			c.write(new Session(token, sequence-1));
+			c.write(replay.getLast());
+		} else {
+			c.write(new Session(token, sequence));
 		}
 	}
+
+	/**
+	 * Find a user that a relay responds for, adding it to the roster if need be.
+	 * Called on an engine thread.
+	 * @see ServerEngine.Handler#findUser(ClientConnection, String)
+	 */
+	synchronized User relayedUser(ClientConnection c, String name) {
+		if (!relays.contains(c)) return null;
+		return roster.get(name);
+	}
+
+	/**
+	 * A client of this room has disconnected.  Called on an engine thread.
+	 * @see ServerEngine.Handler#disconnected(ClientConnection)
+	 */
+	synchronized void disconnected(ClientConnection c) {
+		relays.remove(c);
+		prefetchers.remove(c);
+		clients.remove(c);
+	}
 	
 	static {
 		register("UserResponses", () -> { return new UserResponses(); });
 		register("Requests", () -> { return new Requests(); });
 		register("ResponseTimeDone", () -> { return new ResponseTimeDone(); });
 		register("Error", () -> { return new Error(); });
+		register("Heartbeat", () -> { return new Heartbeat(); });
+		register("Session", () -> { return new Session(); });
+		register("Prefetch", () -> { return new Prefetch(); });
+		register("Reveal", () -> { return new Reveal(); });
 		register("ChoiceQuestion", () -> { return new ChoiceQuestion(); });
 		register("FreeResponseQuestion", () -> { return new FreeResponseQuestion(); });
 		register("Choice", () -> { return new Choice(); });
@@ -0,0 +1,18 @@
+package edu.uwm.cs552.net;
+
+/**
+ * What an {@link ElementQueue} does when an element is offered while it is full.
+ * Control elements (the session, questions, the ends of questions, prefetches and reveals) are never dropped:
+ * if nothing else can be done, they are queued beyond the capacity, but only up to
+ * {@link ElementQueue#CONTROL_OVERFLOW} of them, after which the client is given up on as under {@link #DISCONNECT}.
+ */
+public enum OverflowPolicy {
+	/** Wait (up to a timeout) for room, then drop the new element. */
+	BLOCK,
+	/** Drop the oldest queued elements that are not control elements. */
+	DROP_OLDEST,
+	/** Drop the new element if the same is already queued, otherwise drop oldest. */
+	COALESCE,
+	/** Give up on the client: the queue is cleared and the connection should be closed. */
+	DISCONNECT;
+}
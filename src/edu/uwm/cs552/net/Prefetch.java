@@ -0,0 +1,68 @@
+package edu.uwm.cs552.net;
+
+import java.io.IOException;
+
+import edu.uwm.cs.util.XMLWriter;
+import edu.uwm.cs552.Question;
+import edu.uwm.cs552.XMLObject;
+/**
+ * A question sent to a client ahead of time, so that it can get it ready
+ * (parse it and lay it out) before it is asked.  The client must not show it until
+ * it receives a {@link Reveal} with the same id.  Only sent to clients that put
+ * prefetch="true" on their UserResponses element.
+ */
+public class Prefetch extends XMLObject {
+
+	private long id;
+	private Question question;
+
+	public Prefetch() { }
+
+	public Prefetch(long id, Question q) {
+		this.id = id;
+		question = q;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public Question getQuestion() {
+		return question;
+	}
+
+	@Override
+	protected String getXMLelementName() {
+		return "Prefetch";
+	}
+
+	@Override
+	protected void writeAttributes(XMLWriter xw) throws IOException {
+		super.writeAttributes(xw);
+		xw.writeAttr("id", Long.toString(id));
+	}
+
+	@Override
+	protected void writeContents(XMLWriter xw) throws IOException {
+		super.writeContents(xw);
+		question.toXML(xw);
+	}
+
+	@Override
+	protected void addAttribute(String name, String text) throws ParseException {
+		if (name.equals("id")) {
+			try {
+				id = Long.parseLong(text);
+			} catch (NumberFormatException e) {
+				throw new ParseException("bad prefetch id: " + text);
+			}
+		} else super.addAttribute(name, text);
+	}
+
+	@Override
+	protected void addElement(XMLObject obj) throws ParseException {
+		if (obj instanceof Question && question == null) {
+			question = (Question)obj;
+		} else super.addElement(obj);
+	}
+}
@@ -0,0 +1,224 @@
+package edu.uwm.cs552.net;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.uwm.cs552.Question;
+import edu.uwm.cs552.Response;
+import edu.uwm.cs552.XMLObject;
+
+/**
+ * A relay between an upstream server and clients of its own.
+ * Upstream, the relay logs in like a client (with relay="true"),
+ * and downstream it serves the same questions to its own clients.
+ * Their responses are logged locally and forwarded upstream in batches.
+ * Since a relay is a server, relays can be connected to relays
+ * to make a tree of any depth.  A relay needs no GUI: questions are started
+ * and stopped on the upstream input thread.  Downstream clients are served
+ * by a thread each (--threads=platform or virtual) or by a selector (--selector).
+ */
+public class Relay {
+	/** How many responses to send upstream at once (at most). */
+	public static final int UPSTREAM_BATCH = 256;
+	/** How long to wait for more responses before sending a batch upstream. */
+	public static final long UPSTREAM_LINGER_MILLIS = 5;
+	/** How many responses may wait to be sent upstream. */
+	public static final int UPSTREAM_QUEUE = 16 * UPSTREAM_BATCH;
+	/** How long to wait for room in the upstream queue before giving up on a batch of responses. */
+	public static final long UPSTREAM_BLOCK_MILLIS = 1000;
+
+	private final String name;
+	private final Downstream downstream;
+	private final ServerConnection upstream;
+	private final ElementQueue upstreamQueue;
+	private final Metrics.Counter lost;
+
+	/**
+	 * Connect to an upstream server and start serving clients.
+	 * @param host name of upstream server
+	 * @param port port of upstream server
+	 * @param relayName user name to log in upstream as, must not be null
+	 * @param options extra attributes for the upstream handshake, such as a room
+	 * @param engine engine to serve downstream clients, must not have been started already
+	 * @throws IOException if the upstream server cannot be reached
+	 */
+	public Relay(String host, int port, String relayName, Map<String,String> options, ServerEngine engine) throws IOException {
+		name = relayName;
+		downstream = new Downstream(engine);
+		Map<String,String> attributes = new HashMap<>(options);
+		attributes.put(NetworkResponseLog.RELAY_ATTRIBUTE, "true");
+		lost = Metrics.getDefault().counter("quiz_relay_responses_lost_total", "relay=\"" + name + "\"",
+				"Responses that could not be queued to be forwarded upstream.");
+		// responses must not be dropped: wait for room rather than discarding old ones
+		upstreamQueue = new ElementQueue(UPSTREAM_QUEUE, Long.MAX_VALUE, OverflowPolicy.BLOCK, UPSTREAM_BLOCK_MILLIS);
+		upstream = new ServerConnection(host, port, name, attributes, new UpstreamEvents(), upstreamQueue);
+		upstream.setBatching(UPSTREAM_BATCH, UPSTREAM_LINGER_MILLIS);
+	}
+
+	/**
+	 * Return the log of responses from this relay's own clients.
+	 * @return downstream log, never null
+	 */
+	public NetworkResponseLog getLog() {
+		return downstream;
+	}
+
+	/**
+	 * Log out from the upstream server.
+	 */
+	public void close() {
+		upstream.close();
+	}
+
+	/**
+	 * The log served to downstream clients: accepted responses are forwarded upstream.
+	 * They are collected while the log is locked, and handed to the upstream queue
+	 * once it is unlocked, so that waiting for room upstream doesn't hold up the log.
+	 */
+	private class Downstream extends NetworkResponseLog {
+		private final Object forwardLock = new Object();
+		private List<Response> unforwarded = new ArrayList<>(); // guarded by this
+		private boolean losing = false; // guarded by forwardLock
+
+		Downstream(ServerEngine e) {
+			super(e);
+		}
+
+		@Override
+		public void addResponse(Response r) {
+			synchronized (this) {
+				super.addResponse(r);
+				unforwarded.add(r);
+			}
+			awaitJournal();
+			forward();
+		}
+
+		@Override
+		void handleResponses(List<RoomServer.Delivery> batch) {
+			super.handleResponses(batch);
+			forward();
+		}
+
+		/**
+		 * Hand the responses accepted so far to the upstream queue, in order.
+		 * If the queue stays full, the rest of the responses are given up on,
+		 * and until forwarding recovers, responses are given up on without waiting
+		 * whenever the queue is full.  This is reported once, not for every response.
+		 * Does nothing if called with the log locked: the caller forwards them later.
+		 */
+		private void forward() {
+			if (Thread.holdsLock(this)) return;
+			synchronized (forwardLock) {
+				List<Response> batch;
+				synchronized (this) {
+					if (unforwarded.isEmpty()) return;
+					batch = unforwarded;
+					unforwarded = new ArrayList<>();
+				}
+				int failed = 0;
+				for (Response r : batch) {
+					if (failed > 0 || losing && upstreamQueue.size() >= UPSTREAM_QUEUE || !upstream.write(r)) ++failed;
+				}
+				if (failed > 0) {
+					lost.add(failed);
+					if (!losing) System.err.println(name + " could not forward responses upstream; dropping them until it catches up");
+					losing = true;
+				} else if (losing) {
+					losing = false;
+					System.err.println(name + " is forwarding responses upstream again (" + lost.get() + " lost)");
+				}
+			}
+		}
+	}
+
+	/**
+	 * What the upstream server sends us, as decoded on the input thread.
+	 */
+	private class UpstreamEvents implements ServerConnection.Listener {
+		private boolean questionInProgress = false;
+
+		@Override
+		public void received(XMLObject obj) throws IOException {
+			if (obj instanceof Question) {
+				boolean stale = questionInProgress;
+				questionInProgress = true;
+				if (stale) downstream.stopQuestion();
+				downstream.startQuestion((Question) obj);
+			} else if (obj instanceof ResponseTimeDone) {
+				if (!questionInProgress) return;
+				questionInProgress = false;
+				downstream.stopQuestion();
+			} else if (obj instanceof Session) {
+				// we don't resume: nothing to do
+			} else if (obj instanceof Error) {
+				System.out.print(name + " received an Error: ");
+				System.out.println(((Error) obj).getError());
+			} else {
+				throw new IOException("Unexpected element from server: " + obj);
+			}
+		}
+
+		@Override
+		public void disconnected(boolean orderly) {
+			if (!orderly) System.err.println(name + " lost its connection to the upstream server");
+			try { Thread.sleep(100); } catch (InterruptedException e) { }
+			System.exit(orderly ? 0 : 1);
+		}
+	}
+
+	public static void main(String[] args) {
+		String server = "localhost";
+		int upstreamPort = NetworkResponseLog.PORT;
+		int port = NetworkResponseLog.PORT + 1;
+		String relayName = null;
+		boolean selector = false;
+		Integer metricsPort = null;
+		String threads = ThreadedServerEngine.PLATFORM;
+		Map<String,String> options = new HashMap<>();
+		for (String s : args) {
+			if (s.startsWith("--upstream=")) {
+				String hostPort = s.substring(11);
+				int colon = hostPort.lastIndexOf(':');
+				if (colon < 0) {
+					server = hostPort;
+				} else {
+					server = hostPort.substring(0, colon);
+					upstreamPort = Integer.parseInt(hostPort.substring(colon+1));
+				}
+			} else if (s.startsWith("--port=")) {
+				port = Integer.parseInt(s.substring(7));
+			} else if (s.startsWith("--name=")) {
+				relayName = s.substring(7);
+			} else if (s.startsWith("--room=")) {
+				options.put(RoomServer.ROOM_ATTRIBUTE, s.substring(7));
+			} else if (s.startsWith("--wire=")) {
+				options.put(BinaryCodec.WIRE_ATTRIBUTE, s.substring(7));
+			} else if (s.startsWith("--compress=")) {
+				options.put(ElementEncoder.COMPRESS_ATTRIBUTE, s.substring(11));
+			} else if (s.startsWith("--metrics-port=")) {
+				metricsPort = Integer.valueOf(s.substring(15));
+			} else if (s.equals("--selector")) {
+				selector = true;
+			} else if (s.startsWith("--threads=")) {
+				threads = s.substring(10);
+			}
+		}
+		if (relayName == null) relayName = "relay-" + port;
+		try {
+			ServerEngine engine = selector ? new SelectorServerEngine(port)
+					: new ThreadedServerEngine(port, ThreadedServerEngine.threadFactory(threads));
+			new Relay(server, upstreamPort, relayName, options, engine);
+			if (metricsPort != null) Metrics.getDefault().startHttpServer(metricsPort);
+		} catch (IllegalArgumentException|UnsupportedOperationException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
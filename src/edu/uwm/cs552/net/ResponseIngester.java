@@ -0,0 +1,75 @@
+package edu.uwm.cs552.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * A pipeline that takes responses from many connection threads and hands
+ * them in batches to a single writer thread, so that the response log
+ * is only ever changed by one thread and the Swing thread is not involved at all.
+ * @param <T> type of item queued: a response along with whatever else
+ * is needed to handle it
+ */
+public class ResponseIngester<T> {
+	public static final int MAX_BATCH = 256;
+
+	private final BlockingQueue<T> queue = new LinkedBlockingQueue<>();
+	private final Consumer<List<T>> sink;
+	private final Thread writerThread;
+
+	/**
+	 * Create and start an ingester.
+	 * @param s where batches of responses go, called only on the ingester's thread.
+	 * The list is reused after the call and so must not be kept.
+	 */
+	public ResponseIngester(Consumer<List<T>> s) {
+		sink = s;
+		writerThread = new Thread(() -> doIngest(), "response-ingester");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Queue a response received on a connection.  This never blocks.
+	 * @param item response and context, must not be null
+	 */
+	public void submit(T item) {
+		queue.add(item);
+	}
+
+	/**
+	 * Return the number of responses waiting to be handled.
+	 * @return size of backlog
+	 */
+	public int getBacklog() {
+		return queue.size();
+	}
+
+	/**
+	 * Stop the writer thread; responses still queued are discarded.
+	 */
+	public void close() {
+		writerThread.interrupt();
+	}
+
+	private void doIngest() {
+		List<T> batch = new ArrayList<>();
+		try {
+			for (;;) {
+				batch.add(queue.take());
+				queue.drainTo(batch, MAX_BATCH - 1);
+				try {
+					sink.accept(batch);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			// done
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package edu.uwm.cs552.net;
+
+import java.io.IOException;
+
+import edu.uwm.cs.util.XMLWriter;
+import edu.uwm.cs552.XMLObject;
+/**
+ * Start asking a question that was sent ahead of time in a {@link Prefetch}.
+ * For a client that asked for prefetching, this takes the place of the question itself.
+ */
+public class Reveal extends XMLObject {
+
+	private long id;
+
+	public Reveal() { }
+
+	public Reveal(long id) {
+		this.id = id;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	@Override
+	protected String getXMLelementName() {
+		return "Reveal";
+	}
+
+	@Override
+	protected void writeAttributes(XMLWriter xw) throws IOException {
+		super.writeAttributes(xw);
+		xw.writeAttr("id", Long.toString(id));
+	}
+
+	@Override
+	protected void addAttribute(String name, String text) throws ParseException {
+		if (name.equals("id")) {
+			try {
+				id = Long.parseLong(text);
+			} catch (NumberFormatException e) {
+				throw new ParseException("bad reveal id: " + text);
+			}
+		} else super.addAttribute(name, text);
+	}
+}
@@ -0,0 +1,189 @@
+package edu.uwm.cs552.net;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.uwm.cs552.Response;
+import edu.uwm.cs552.User;
+import edu.uwm.cs552.XMLObject;
+
+/**
+ * A server for many quiz sessions ("rooms") at once.  Each room is a
+ * {@link NetworkResponseLog} with its own question state, roster and log,
+ * but all rooms share the one {@link ServerEngine} (and thus the port and
+ * the I/O threads) and the one {@link ResponseIngester}.
+ * A client names its room with the "room" attribute of its UserResponses element;
+ * clients that don't name a room go to the {@link #DEFAULT_ROOM}.
+ */
+public class RoomServer {
+	public static final String DEFAULT_ROOM = "";
+	public static final String ROOM_ATTRIBUTE = "room";
+
+	private final ServerEngine engine;
+	private final ResponseIngester<Delivery> ingester;
+	private final Map<String,NetworkResponseLog> rooms = new ConcurrentHashMap<>();
+	private final Map<ClientConnection,NetworkResponseLog> members = new ConcurrentHashMap<>();
+
+	/**
+	 * Create a room server using the given engine.  No rooms are open initially.
+	 * @param e engine to use, must not have been started already
+	 */
+	public RoomServer(ServerEngine e) {
+		engine = e;
+		ingester = new ResponseIngester<>((batch) -> handleResponses(batch));
+	}
+
+	/**
+	 * Start accepting clients.  If the system property {@link Metrics#PORT_PROPERTY}
+	 * is set, metrics are also served as text on that port.
+	 * @throws IOException if the engine cannot be started
+	 */
+	public void start() throws IOException {
+		engine.start(new Dispatcher());
+		Integer metricsPort = Integer.getInteger(Metrics.PORT_PROPERTY);
+		if (metricsPort != null) Metrics.getDefault().startHttpServer(metricsPort);
+	}
+
+	/**
+	 * Stop accepting clients and close every connection.
+	 */
+	public void close() {
+		engine.close();
+		ingester.close();
+	}
+
+	/**
+	 * Return the engine used by all rooms.
+	 * @return engine, never null
+	 */
+	public ServerEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Open a new room.
+	 * @param name name of room, must not be null
+	 * @return log for the new room
+	 * @throws IllegalStateException if a room of this name is already open
+	 */
+	public NetworkResponseLog openRoom(String name) {
+		NetworkResponseLog log = new NetworkResponseLog(name);
+		addRoom(log);
+		return log;
+	}
+
+	void addRoom(NetworkResponseLog log) {
+		if (rooms.putIfAbsent(log.getRoomName(), log) != null) {
+			throw new IllegalStateException("room already open: " + log.getRoomName());
+		}
+	}
+
+	/**
+	 * Return the log of the room with the given name.
+	 * @param name name of room
+	 * @return room's log, or null if there is no such room open.
+	 */
+	public NetworkResponseLog getRoom(String name) {
+		return rooms.get(name);
+	}
+
+	/**
+	 * Return the names of all open rooms, in order.
+	 * @return set of room names (a copy)
+	 */
+	public Set<String> getRoomNames() {
+		return Collections.unmodifiableSet(new TreeSet<>(rooms.keySet()));
+	}
+
+	/**
+	 * Close a room and all the connections in it.  The room's log is unaffected.
+	 * @param name name of room
+	 */
+	public void closeRoom(String name) {
+		NetworkResponseLog log = rooms.remove(name);
+		if (log == null) return;
+		log.removeMetrics();
+		for (Map.Entry<ClientConnection,NetworkResponseLog> e : members.entrySet()) {
+			if (e.getValue() == log) e.getKey().close();
+		}
+	}
+
+	/**
+	 * A response on its way to a room.  The room is determined on arrival,
+	 * since the client may have disconnected by the time the response is handled.
+	 */
+	static class Delivery {
+		final NetworkResponseLog room;
+		final ClientConnection connection;
+		final Response response;
+		/** when the response arrived, see {@link System#nanoTime()} */
+		final long arrived = System.nanoTime();
+
+		Delivery(NetworkResponseLog log, ClientConnection c, Response r) {
+			room = log;
+			connection = c;
+			response = r;
+		}
+	}
+
+	/**
+	 * Pass responses on to their rooms, keeping each room's responses in order.
+	 * Called on the ingester's thread.
+	 */
+	private void handleResponses(List<Delivery> batch) {
+		Map<NetworkResponseLog,List<Delivery>> byRoom = new LinkedHashMap<>();
+		for (Delivery d : batch) {
+			byRoom.computeIfAbsent(d.room, (l) -> new ArrayList<>()).add(d);
+		}
+		for (Map.Entry<NetworkResponseLog,List<Delivery>> e : byRoom.entrySet()) {
+			e.getKey().handleResponses(e.getValue());
+		}
+	}
+
+	/**
+	 * Connection events from the engine, passed on to the client's room.
+	 */
+	private class Dispatcher implements ServerEngine.Handler {
+		@Override
+		public User login(ClientConnection c, Map<String,String> attributes) throws IOException {
+			String name = attributes.getOrDefault(ROOM_ATTRIBUTE, DEFAULT_ROOM);
+			NetworkResponseLog log = rooms.get(name);
+			if (log == null) {
+				c.write(new Error("No such room."));
+				throw new IOException("No such room: " + name);
+			}
+			User user = log.login(c, attributes);
+			members.put(c, log);
+			return user;
+		}
+
+		@Override
+		public void received(ClientConnection c, XMLObject obj) throws IOException {
+			NetworkResponseLog log = members.get(c);
+			if (obj instanceof Response && log != null) {
+				ingester.submit(new Delivery(log, c, (Response) obj));
+			} else {
+				throw new IOException("Illegal token received from client " + c.getUser().getName());
+			}
+		}
+
+		@Override
+		public User findUser(ClientConnection c, String name) {
+			NetworkResponseLog log = members.get(c);
+			return log == null ? null : log.relayedUser(c, name);
+		}
+
+		@Override
+		public void disconnected(ClientConnection c) {
+			NetworkResponseLog log = members.remove(c);
+			if (log != null) log.disconnected(c);
+		}
+	}
+}
@@ -0,0 +1,376 @@
+package edu.uwm.cs552.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * A server engine in which a small fixed set of event loops, each with its
+ * own {@link Selector}, handle all the client connections using non-blocking
+ * channels.  No thread is dedicated to any single client, so the number of
+ * clients is limited by memory rather than by threads.
+ * The protocol is exactly that of {@link ThreadedServerEngine}, so
+ * the same clients can connect to either.
+ */
+public class SelectorServerEngine extends AbstractServerEngine {
+	private static final EncodedElement REQUESTS_END = EncodedElement.endTag("Requests");
+	private static final int READ_BUFFER_SIZE = 4096;
+
+	private final EventLoop[] loops;
+	private ServerSocketChannel serverChannel;
+	private int nextLoop = 0; // only used in the accepting loop
+
+	/**
+	 * Create an engine with one event loop per available processor.
+	 * @param p port to listen on
+	 */
+	public SelectorServerEngine(int p) {
+		this(p, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create an engine with the given number of event loops.
+	 * @param p port to listen on
+	 * @param n number of event loops, must be positive
+	 */
+	public SelectorServerEngine(int p, int n) {
+		super(p);
+		if (n <= 0) throw new IllegalArgumentException("need at least one event loop");
+		loops = new EventLoop[n];
+	}
+
+	@Override
+	public void start(Handler h) throws IOException {
+		handler = h;
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+		serverChannel.configureBlocking(false);
+		for (int i=0; i < loops.length; ++i) {
+			loops[i] = new EventLoop("event-loop-" + i);
+		}
+		loops[0].execute(() -> loops[0].register(serverChannel, SelectionKey.OP_ACCEPT, null));
+		for (EventLoop l : loops) {
+			l.thread.start();
+		}
+		startMonitor();
+	}
+
+	@Override
+	public void close() {
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		stopMonitor();
+		for (EventLoop l : loops) {
+			if (l != null) l.shutdown();
+		}
+	}
+
+	/**
+	 * Accept all pending connections, spreading them over the loops.
+	 * Called on the first loop's thread.
+	 */
+	private void accept() {
+		try {
+			SocketChannel ch;
+			while ((ch = serverChannel.accept()) != null) {
+				if (!admit()) {
+					ch.close();
+					continue;
+				}
+				ch.configureBlocking(false);
+				ch.socket().setTcpNoDelay(true);
+				ch.socket().setKeepAlive(true);
+				final SocketChannel client = ch;
+				final EventLoop loop = loops[nextLoop];
+				nextLoop = (nextLoop + 1) % loops.length;
+				loop.execute(() -> {
+					try {
+						new ChannelConnection(loop, client);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				});
+			}
+		} catch (IOException e) {
+			if (serverChannel.isOpen()) e.printStackTrace();
+		}
+	}
+
+	/**
+	 * A thread that waits on a selector and runs all the I/O for the
+	 * channels registered with it.  Other threads hand it work with {@link #execute(Runnable)}.
+	 */
+	private class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Thread thread;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private volatile boolean running = true;
+
+		public EventLoop(String name) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, name);
+			thread.setDaemon(true);
+		}
+
+		/**
+		 * Arrange for the task to be run in this loop's thread.
+		 * @param r task to run, must not be null
+		 */
+		public void execute(Runnable r) {
+			tasks.add(r);
+			selector.wakeup();
+		}
+
+		public void register(ServerSocketChannel ch, int ops, Object att) {
+			try {
+				ch.register(selector, ops, att);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		public void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+					Runnable r;
+					while ((r = tasks.poll()) != null) {
+						r.run();
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						if (!key.isValid()) continue;
+						Object att = key.attachment();
+						if (att == null) {
+							if (key.isAcceptable()) accept();
+							continue;
+						}
+						ChannelConnection c = (ChannelConnection)att;
+						if (key.isReadable()) c.doRead();
+						if (key.isValid() && key.isWritable()) c.doWrite();
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof ChannelConnection) {
+					((ChannelConnection)key.attachment()).shutdown();
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * A single client connection.  Everything except {@link #write(EncodedElement)}
+	 * and {@link #close()} happens in the connection's event loop.
+	 */
+	private class ChannelConnection extends Connection {
+		private final EventLoop loop;
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private final ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private final ElementQueue output = getQueueSettings().create();
+		private final Deque<ByteBuffer> pending = new ArrayDeque<>();
+		private final List<EncodedElement> batch = new ArrayList<>();
+		private ElementEncoder encoder;
+		private boolean outputStarted = false;
+		private boolean endWritten = false;
+		private final AtomicBoolean flushPending = new AtomicBoolean();
+		private boolean closed = false;
+		private boolean paused = false; // not reading because the client is throttled
+
+		public ChannelConnection(EventLoop l, SocketChannel ch) throws IOException {
+			loop = l;
+			channel = ch;
+			key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+		}
+
+		@Override
+		protected void startOutput(Map<String,String> attributes) {
+			pending.add(EncodedElement.startTag("Requests", attributes).asByteBuffer());
+			encoder = new ElementEncoder(attributes);
+			outputStarted = true;
+			doWrite();
+		}
+
+		private ByteBuffer encode(EncodedElement e) {
+			return ByteBuffer.wrap(encoder.encode(e));
+		}
+
+		@Override
+		public boolean write(EncodedElement e) {
+			return write(e, System.nanoTime());
+		}
+
+		@Override
+		public boolean write(EncodedElement e, long since) {
+			if (output.offer(e, since)) {
+				scheduleFlush();
+				return true;
+			}
+			if (output.isOverflowed()) {
+				loop.execute(() -> shutdown());
+			}
+			return false;
+		}
+
+		@Override
+		public ElementQueue getOutputQueue() {
+			return output;
+		}
+
+		@Override
+		public void close() {
+			output.close();
+			scheduleFlush();
+		}
+
+		@Override
+		protected void abort() {
+			loop.execute(() -> shutdown());
+		}
+
+		private void scheduleFlush() {
+			if (flushPending.compareAndSet(false, true)) {
+				loop.execute(() -> {
+					flushPending.set(false);
+					doWrite();
+				});
+			}
+		}
+
+		/**
+		 * Write as much pending output as the channel will take.
+		 * Queued elements are written in batches with a single gathering write.
+		 */
+		void doWrite() {
+			if (closed) return;
+			if (!outputStarted) {
+				// closed before the handshake finished: nothing to say
+				if (output.isFinished()) shutdown();
+				return;
+			}
+			try {
+				for (;;) {
+					if (pending.isEmpty() && !fillPending()) return;
+					bytesOut.add(channel.write(pending.toArray(new ByteBuffer[pending.size()])));
+					while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+						pending.poll();
+					}
+					if (!pending.isEmpty()) {
+						key.interestOps(readOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+			} catch (IOException e) {
+				shutdown();
+			}
+		}
+
+		/**
+		 * Take the next batch of output from the queue.
+		 * @return false if there is nothing more to write for now.
+		 */
+		private boolean fillPending() {
+			output.drainTo(batch, maxBatch);
+			for (EncodedElement e : batch) {
+				pending.add(encode(e));
+			}
+			batch.clear();
+			if (!pending.isEmpty()) return true;
+			if (output.isOverflowed() || endWritten && output.isFinished()) {
+				shutdown();
+				return false;
+			}
+			if (output.isFinished()) {
+				pending.add(encode(REQUESTS_END));
+				endWritten = true;
+				return true;
+			}
+			key.interestOps(readOps());
+			return false;
+		}
+
+		private int readOps() {
+			return paused ? 0 : SelectionKey.OP_READ;
+		}
+
+		/**
+		 * Read whatever has arrived and decode it.
+		 */
+		void doRead() {
+			try {
+				int n = channel.read(input);
+				if (n < 0) {
+					shutdown();
+					return;
+				}
+				input.flip();
+				input(input.array(), input.position(), input.remaining());
+				input.clear();
+				long pause = takePause();
+				if (pause > 0 && !closed) {
+					// throttled: stop reading until the client may send again
+					paused = true;
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+					schedule(() -> loop.execute(() -> {
+						paused = false;
+						if (!closed) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+					}), pause);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				close();
+			}
+		}
+
+		/**
+		 * Close the channel immediately.
+		 */
+		void shutdown() {
+			if (closed) return;
+			closed = true;
+			output.close();
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// muffle: nothing else to do.
+			}
+			if (encoder != null) encoder.close();
+			closed();
+			if (getUser() != null) handler.disconnected(this);
+		}
+	}
+}
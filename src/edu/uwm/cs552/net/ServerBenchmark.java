@@ -0,0 +1,251 @@
+package edu.uwm.cs552.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import edu.uwm.cs552.ChoiceQuestion;
+
+/**
+ * Benchmarks of a server in this process under load from a {@link LoadGenerator}
+ * run as a separate process, so that what the server uses can be measured
+ * apart from the simulated clients.
+ * <dl>
+ * <dt>capacity [--clients=N] [--seconds=S] [--port=P] [--threaded | --threads=platform|virtual]</dt>
+ * <dd>how many clients the server can hold per GB of heap and per core:
+ * the heap retained once N clients (2000 by default) have connected, after a full collection,
+ * and the CPU time the server uses over S seconds (20 by default) while the clients
+ * answer a question every few seconds.  The server uses a selector unless told otherwise.</dd>
+ * <dt>hosting headless|gui [--clients=N] [--seconds=S] [--port=P]</dt>
+ * <dd>how soon the server is ready after the JVM starts, and how many responses a second
+ * it logs from N clients (2000 by default) answering questions asked every second or so,
+ * over S seconds (20 by default), and the CPU time used per response.  Headless, questions are asked from the main thread,
+ * as {@link HeadlessServer} does.  Hosted as by the GUI, they are asked on the Swing
+ * thread, and every change to the log makes the Swing thread refresh the count and timing
+ * of responses (at most every {@value #REFRESH_MILLIS} ms), as the master question dialog does.
+ * The dialog itself is not shown, so that this can run without a display.
+ * Each should be run in a JVM of its own.</dd>
+ * </dl>
+ * Simulating thousands of clients may need a higher limit on open files (ulimit -n).
+ */
+public class ServerBenchmark {
+	private static final long RAMP_MILLIS = 10000;
+	private static final long SETTLE_MILLIS = 5000;
+	private static final long QUESTION_INTERVAL_MILLIS = 1000;
+	private static final long QUESTION_OPEN_MILLIS = 3000;
+	private static final long HOSTED_OPEN_MILLIS = 1000;
+	private static final long HOSTED_THINK_MILLIS = 500;
+	/** How often the master question dialog refreshes, at most. */
+	private static final int REFRESH_MILLIS = 200;
+
+	/**
+	 * Return the heap in use after a full collection.
+	 * @return bytes of heap in use
+	 */
+	static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; ++i) System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	 * Start a load generator in a new process, with the same class path as this one.
+	 * Its output goes to ours.
+	 * @param args arguments for the generator
+	 * @return the process
+	 */
+	static Process startLoadGenerator(List<String> args) throws IOException {
+		List<String> command = new ArrayList<>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(LoadGenerator.class.getName());
+		command.addAll(args);
+		return new ProcessBuilder(command).inheritIO().start();
+	}
+
+	private static void capacity(int clients, int seconds, int port, ServerEngine engine) throws IOException, InterruptedException {
+		long baseHeap = usedHeap();
+		NetworkResponseLog log = new NetworkResponseLog(engine);
+		List<String> args = new ArrayList<>();
+		args.add("--port=" + port);
+		args.add("--clients=" + clients);
+		args.add("--profile=" + LoadGenerator.RAMP);
+		args.add("--ramp=" + RAMP_MILLIS);
+		args.add("--duration=" + (RAMP_MILLIS + 2 * SETTLE_MILLIS + seconds * 1000L));
+		args.add("--think=uniform:100:" + QUESTION_OPEN_MILLIS / 2);
+		Process generator = startLoadGenerator(args);
+		Thread.sleep(RAMP_MILLIS + SETTLE_MILLIS);
+
+		int connected = engine.getConnectionCount();
+		long heap = usedHeap() - baseHeap;
+		LoadGenerator.askQuestions(log, null, QUESTION_INTERVAL_MILLIS, QUESTION_OPEN_MILLIS);
+		long cpu = IngestBenchmark.processCpuTime();
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		double cores = (double)(IngestBenchmark.processCpuTime() - cpu) / (System.nanoTime() - start);
+		int responses = log.getTotalResponseCount();
+		generator.waitFor();
+
+		System.out.printf("%d of %d clients connected: %.1f MB of heap (%.1f KB each), %.1f%% of a core answering%n",
+				connected, clients, heap / 1e6, heap / 1e3 / connected, 100 * cores);
+		System.out.printf("%d responses logged in %d s%n", responses, seconds);
+		System.out.printf("clients per GB of heap: %.0f%n", connected / (heap / 1e9));
+		System.out.printf("clients per core: %.0f%n", connected / cores);
+	}
+
+	/**
+	 * What the master question dialog does when a log changes, without the dialog:
+	 * refresh the count and timing of responses on the Swing thread, soon after.
+	 */
+	private static class Refresher implements Observer {
+		private final NetworkResponseLog log;
+		private final AtomicBoolean pending = new AtomicBoolean();
+		private final Timer timer = new Timer(REFRESH_MILLIS, (ae) -> refresh());
+		private ChoiceQuestion question;
+		private int refreshes = 0;
+
+		Refresher(NetworkResponseLog l) {
+			log = l;
+			timer.setRepeats(false);
+			log.addObserver(this);
+		}
+
+		@Override
+		public void update(Observable o, Object arg) {
+			if (pending.compareAndSet(false, true)) {
+				timer.restart();
+			}
+		}
+
+		private void refresh() {
+			pending.set(false);
+			if (question == null) return;
+			log.getResponseCount(question);
+			log.getTimingSummary(question);
+			++refreshes;
+		}
+	}
+
+	/**
+	 * Run a task on the Swing thread and wait for it, or just run it.
+	 */
+	private static void run(boolean swing, Runnable r) throws InterruptedException {
+		if (!swing) {
+			r.run();
+			return;
+		}
+		try {
+			SwingUtilities.invokeAndWait(r);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private static void hosting(boolean gui, int clients, int seconds, int port) throws IOException, InterruptedException {
+		NetworkResponseLog log = new NetworkResponseLog(new SelectorServerEngine(port));
+		Refresher[] refresher = { null };
+		run(gui, () -> {
+			if (gui) refresher[0] = new Refresher(log);
+		});
+		long ready = ManagementFactory.getRuntimeMXBean().getUptime();
+
+		List<String> args = new ArrayList<>();
+		args.add("--port=" + port);
+		args.add("--clients=" + clients);
+		args.add("--profile=" + LoadGenerator.RAMP);
+		args.add("--ramp=" + SETTLE_MILLIS);
+		args.add("--duration=" + (3 * SETTLE_MILLIS + seconds * 1000L));
+		args.add("--think=uniform:10:" + HOSTED_THINK_MILLIS);
+		Process generator = startLoadGenerator(args);
+		Thread.sleep(2 * SETTLE_MILLIS);
+
+		int start = log.getTotalResponseCount();
+		long cpu = IngestBenchmark.processCpuTime();
+		long startNanos = System.nanoTime(), end = startNanos + seconds * 1_000_000_000L;
+		for (int n = 1; System.nanoTime() < end; ++n) {
+			ChoiceQuestion q = new ChoiceQuestion();
+			q.setQuestion("Question " + n);
+			for (int i = 1; i <= 4; ++i) q.addChoice("Choice " + i);
+			run(gui, () -> {
+				log.startQuestion(q);
+				if (gui) refresher[0].question = q;
+			});
+			Thread.sleep(HOSTED_OPEN_MILLIS);
+			run(gui, () -> log.stopQuestion());
+		}
+		double elapsed = (System.nanoTime() - startNanos) / 1e9;
+		int responses = log.getTotalResponseCount() - start;
+		cpu = IngestBenchmark.processCpuTime() - cpu;
+		generator.waitFor();
+
+		System.out.printf("%s: ready %d ms after the JVM started%n", gui ? "hosted as by the GUI" : "headless", ready);
+		System.out.printf("%d responses logged in %.1f s: %.0f/s%n", responses, elapsed, responses / elapsed);
+		System.out.printf("%.1f%% of a core, %.1f us CPU per response%n", cpu / elapsed / 1e7, cpu / 1e3 / responses);
+		if (gui) System.out.println(refresher[0].refreshes + " refreshes on the Swing thread");
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String mode = args.length == 0 ? "" : args[0];
+		int first = 1;
+		boolean gui = false;
+		if (mode.equals("hosting")) {
+			first = 2;
+			if (args.length < 2 || !args[1].equals("headless") && !args[1].equals("gui")) mode = "";
+			else gui = args[1].equals("gui");
+		}
+		int clients = 2000;
+		int seconds = 20;
+		int port = NetworkResponseLog.PORT;
+		boolean selector = true;
+		String threads = ThreadedServerEngine.PLATFORM;
+		for (int i = first; i < args.length; ++i) {
+			String s = args[i];
+			if (s.startsWith("--clients=")) {
+				clients = Integer.parseInt(s.substring(10));
+			} else if (s.startsWith("--seconds=")) {
+				seconds = Integer.parseInt(s.substring(10));
+			} else if (s.startsWith("--port=")) {
+				port = Integer.parseInt(s.substring(7));
+			} else if (s.equals("--threaded")) {
+				selector = false;
+			} else if (s.startsWith("--threads=")) {
+				selector = false;
+				threads = s.substring(10);
+			} else {
+				mode = "";
+			}
+		}
+		switch (mode) {
+		case "capacity":
+			ServerEngine engine = null;
+			try {
+				engine = selector ? new SelectorServerEngine(port)
+						: new ThreadedServerEngine(port, ThreadedServerEngine.threadFactory(threads));
+			} catch (IllegalArgumentException|UnsupportedOperationException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+			System.out.println(selector ? "selector" : threads + " threads");
+			capacity(clients, seconds, port, engine);
+			break;
+		case "hosting":
+			hosting(gui, clients, seconds, port);
+			break;
+		default:
+			System.err.println("usage: ServerBenchmark capacity [--clients=N] [--seconds=S] [--port=P] [--threaded | --threads=platform|virtual]");
+			System.err.println("   or: ServerBenchmark hosting headless|gui [--clients=N] [--seconds=S] [--port=P]");
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
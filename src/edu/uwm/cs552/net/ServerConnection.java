@@ -0,0 +1,180 @@
+package edu.uwm.cs552.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import edu.uwm.cs552.XMLObject;
+
+/**
+ * The client's end of a connection to a server: the client sends a
+ * UserResponses element and the server sends back a Requests element.
+ * Heartbeats are sent in the background, and if the server is silent for
+ * too long, the connection is closed.
+ */
+public class ServerConnection {
+
+	/**
+	 * What happens on the connection.  Methods are called on the connection's input thread.
+	 */
+	public interface Listener {
+		/**
+		 * The server has sent a nested element (other than a heartbeat).
+		 * @param obj element received, never null
+		 * @throws IOException if the element is not acceptable, which closes the connection
+		 */
+		public void received(XMLObject obj) throws IOException;
+
+		/**
+		 * The connection has ended.  No more elements will be received.
+		 * @param orderly whether the server ended its Requests element,
+		 * rather than the connection being lost
+		 */
+		public void disconnected(boolean orderly);
+	}
+
+	private final String user;
+	private final Listener listener;
+	private final Socket socket;
+	private final BackgroundXMLObjectStream output;
+	private final ElementDecoder decoder;
+	private final ScheduledExecutorService heartbeats;
+	private volatile long lastHeard = System.currentTimeMillis();
+
+	/**
+	 * Connect to a server and start the handshake.
+	 * @param host name of the server to connect with
+	 * @param port port of the server
+	 * @param userName name of user to log in as, must not be null
+	 * @param options extra attributes for the handshake, such as
+	 * wire="binary" (see {@link BinaryCodec}) or compress="deflate" (see {@link ElementEncoder})
+	 * @param l listener to report to, must not be null
+	 * @throws IOException if the connection cannot be made
+	 */
+	public ServerConnection(String host, int port, String userName, Map<String,String> options, Listener l) throws IOException {
+		this(host, port, userName, options, l, new ElementQueue.Settings().create());
+	}
+
+	/**
+	 * Connect to a server as above, using the given queue for elements waiting to be sent.
+	 * @param host name of the server to connect with
+	 * @param port port of the server
+	 * @param userName name of user to log in as, must not be null
+	 * @param options extra attributes for the handshake
+	 * @param l listener to report to, must not be null
+	 * @param q queue for output, must be empty and not used for anything else
+	 * @throws IOException if the connection cannot be made
+	 */
+	public ServerConnection(String host, int port, String userName, Map<String,String> options, Listener l, ElementQueue q) throws IOException {
+		user = userName;
+		listener = l;
+		socket = new Socket(host, port);
+		socket.setKeepAlive(true);
+		// "user" must come last: it completes the handshake
+		Map<String,String> attributes = new LinkedHashMap<>();
+		attributes.put("heartbeat", "true");
+		attributes.putAll(options);
+		attributes.remove("user");
+		attributes.put("user", user);
+		output = new BackgroundXMLObjectStream(socket.getOutputStream(), "UserResponses", attributes, Thread::new, q);
+		decoder = new ElementDecoder(null, new Events());
+		heartbeats = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "heartbeat");
+			t.setDaemon(true);
+			return t;
+		});
+		long interval = AbstractServerEngine.DEFAULT_HEARTBEAT_MILLIS;
+		heartbeats.scheduleWithFixedDelay(() -> checkServer(), interval, interval, TimeUnit.MILLISECONDS);
+		new Thread(() -> doInput(), "server-input").start();
+	}
+
+	/**
+	 * Arrange for the given element to be sent to the server in the background.
+	 * @param obj element to send, must not be null
+	 * @return false if the backlog is too great
+	 */
+	public boolean write(XMLObject obj) {
+		return output.write(obj);
+	}
+
+	/**
+	 * Set how elements are batched before being sent.
+	 * @see BackgroundXMLObjectStream#setBatching(int, long)
+	 */
+	public void setBatching(int max, long lingerMillis) {
+		output.setBatching(max, lingerMillis);
+	}
+
+	/**
+	 * End the UserResponses element, which will end the connection.
+	 */
+	public void close() {
+		output.close();
+	}
+
+	/**
+	 * Send a heartbeat, unless the server has been silent so long
+	 * that the connection must be dead.
+	 */
+	private void checkServer() {
+		if (System.currentTimeMillis() - lastHeard >= AbstractServerEngine.DEFAULT_IDLE_TIMEOUT_MILLIS) {
+			System.out.println(user + " has not heard from the server: disconnecting.");
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// muffle: the input thread will finish up
+			}
+			return;
+		}
+		output.write(new Heartbeat());
+	}
+
+	private void doInput() {
+		try {
+			InputStream in = socket.getInputStream();
+			byte[] buf = new byte[8192];
+			int n;
+			while (!decoder.isDone() && (n = in.read(buf)) >= 0) {
+				lastHeard = System.currentTimeMillis();
+				decoder.feed(buf, 0, n);
+			}
+		} catch (IOException e) {
+			if (!socket.isClosed()) e.printStackTrace();
+		}
+		heartbeats.shutdownNow();
+		output.close();
+		listener.disconnected(decoder.isDone());
+	}
+
+	/**
+	 * What the server sends us, as decoded on the input thread.
+	 */
+	private class Events implements ElementDecoder.Listener {
+		@Override
+		public void attribute(String name, String value) throws IOException {
+			// no attributes used yet, except for the encoding
+		}
+
+		@Override
+		public void startTagClosed() throws IOException {
+			if (!"Requests".equals(decoder.getRootName())) {
+				throw new IOException("Server did not send requests");
+			}
+		}
+
+		@Override
+		public void element(XMLObject obj) throws IOException {
+			if (!(obj instanceof Heartbeat)) listener.received(obj);
+		}
+
+		@Override
+		public void end() throws IOException {
+			System.out.println(user + " was disconnected by the server.");
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package edu.uwm.cs552.net;
+
+import java.io.IOException;
+import java.util.Map;
+
+import edu.uwm.cs552.User;
+import edu.uwm.cs552.XMLObject;
+
+/**
+ * The part of the quiz server that handles the network: accepting clients,
+ * reading the UserResponses handshake, decoding the elements clients send
+ * and sending Requests elements back.  What is done with the results is
+ * up to the {@link Handler}.
+ */
+public interface ServerEngine {
+
+	/**
+	 * Start accepting connections in the background.
+	 * @param h handler to report connection events to, must not be null
+	 * @throws IOException if the server cannot be started (e.g. the port is in use)
+	 */
+	public void start(Handler h) throws IOException;
+
+	/**
+	 * Stop accepting connections and close all current connections.
+	 */
+	public void close();
+
+	/**
+	 * Return the port the engine is (or will be) listening on.
+	 * @return port number
+	 */
+	public int getPort();
+
+	/**
+	 * Return the number of open connections, whether logged in or not.
+	 * @return number of connections
+	 */
+	public int getConnectionCount();
+
+	/**
+	 * Return the number of connections that seem to be half open:
+	 * they should be sending heartbeats but have missed some.
+	 * @return number of connections that have gone quiet
+	 */
+	public int getHalfOpenCount();
+
+	/**
+	 * Receiver of connection events.  Methods are called on the engine's
+	 * own threads, and so implementations must be prepared for concurrent calls.
+	 */
+	public interface Handler {
+		/**
+		 * A client has sent the attributes of its UserResponses element.
+		 * If the login is refused, the handler should write an Error to the
+		 * connection and throw an exception, which will close the connection.
+		 * @param c connection being logged in, never null
+		 * @param attributes attributes of the UserResponses element, including "user"
+		 * @return user logged in, must not be null
+		 * @throws IOException if the login is refused
+		 */
+		public User login(ClientConnection c, Map<String,String> attributes) throws IOException;
+
+		/**
+		 * A logged in client has sent a nested element.
+		 * @param c connection on which the element arrived, never null
+		 * @param obj element received, never null
+		 * @throws IOException if the element is not acceptable, which closes the connection
+		 */
+		public void received(ClientConnection c, XMLObject obj) throws IOException;
+
+		/**
+		 * Find a user other than the connection's own user that the client
+		 * may send responses for, as a relay does for its own clients.
+		 * By default, clients only respond for themselves.
+		 * @param c logged in connection, never null
+		 * @param name name of user
+		 * @return user, or null if the client may not respond for this user
+		 */
+		public default User findUser(ClientConnection c, String name) {
+			return null;
+		}
+
+		/**
+		 * A logged in client has been disconnected. No further events
+		 * will be reported for this connection.
+		 * @param c connection that has closed
+		 */
+		public void disconnected(ClientConnection c);
+	}
+}
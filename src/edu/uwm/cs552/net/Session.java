@@ -0,0 +1,59 @@
+package edu.uwm.cs552.net;
+
+import java.io.IOException;
+
+import edu.uwm.cs.util.XMLWriter;
+import edu.uwm.cs552.XMLObject;
+/**
+ * Sent to a client when it logs in to a room: the user's token for the room's
+ * session, and the sequence number of the last question or end of question
+ * sent before this point.  Every question and end of question sent afterwards
+ * has the next sequence number.  A client that reconnects sends these back
+ * (attributes "session" and "seq" of its UserResponses element) so that it
+ * is only sent what it missed.
+ */
+public class Session extends XMLObject {
+
+	private String id = "";
+	private long sequence;
+
+	public Session() { }
+
+	public Session(String id, long seq) {
+		this.id = id;
+		sequence = seq;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	@Override
+	protected String getXMLelementName() {
+		return "Session";
+	}
+
+	@Override
+	protected void writeAttributes(XMLWriter xw) throws IOException {
+		super.writeAttributes(xw);
+		xw.writeAttr("id", id);
+		xw.writeAttr("seq", Long.toString(sequence));
+	}
+
+	@Override
+	protected void addAttribute(String name, String text) throws ParseException {
+		if (name.equals("id")) {
+			id = text;
+		} else if (name.equals("seq")) {
+			try {
+				sequence = Long.parseLong(text);
+			} catch (NumberFormatException e) {
+				throw new ParseException("bad sequence number: " + text);
+			}
+		} else super.addAttribute(name, text);
+	}
+}
@@ -0,0 +1,222 @@
+package edu.uwm.cs552.net;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The original server engine: a thread blocks on accept, and every client
+ * gets a thread of its own for input and another (in a {@link BackgroundXMLObjectStream})
+ * for output.  The threads for clients come from a {@link ThreadFactory}, 
+ * so that (for instance) virtual threads can be used instead of platform threads.
+ */
+public class ThreadedServerEngine extends AbstractServerEngine {
+	/** System property giving the kind of threads ("platform" or "virtual") of engines created without a factory. */
+	public static final String THREADS_PROPERTY = "edu.uwm.cs552.threads";
+	public static final String PLATFORM = "platform";
+	public static final String VIRTUAL = "virtual";
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	private final ThreadFactory threadFactory;
+	private ServerSocket serverSocket;
+	private Thread serverThread;
+
+	/**
+	 * Create an engine using the kind of threads given by {@link #THREADS_PROPERTY},
+	 * platform threads by default.
+	 * @param p port to listen on
+	 * @throws IllegalArgumentException if the property names an unknown kind of threads
+	 * @throws UnsupportedOperationException if it asks for virtual threads and this Java does not support them
+	 */
+	public ThreadedServerEngine(int p) {
+		this(p, threadFactory(System.getProperty(THREADS_PROPERTY, PLATFORM)));
+	}
+	
+	/**
+	 * Create an engine whose client threads are all created by the given factory.
+	 * @param p port to listen on
+	 * @param tf factory for client input and output threads, must not be null
+	 */
+	public ThreadedServerEngine(int p, ThreadFactory tf) {
+		super(p);
+		threadFactory = tf;
+	}
+	
+	/**
+	 * Return a factory for virtual threads.
+	 * We use reflection so that this class still works with Java versions
+	 * that do not have virtual threads.
+	 * @return thread factory creating virtual threads
+	 * @throws UnsupportedOperationException if this Java does not support virtual threads.
+	 */
+	public static ThreadFactory virtualThreadFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = ofVirtual.getReturnType().getMethod("factory");
+			return (ThreadFactory)factory.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("virtual threads not supported by this Java", e);
+		}
+	}
+
+	/**
+	 * Return a factory for the named kind of threads, as given to a --threads option.
+	 * @param kind {@link #PLATFORM} or {@link #VIRTUAL}
+	 * @return thread factory
+	 * @throws IllegalArgumentException if the kind is not known
+	 * @throws UnsupportedOperationException if virtual threads are asked for and this Java does not support them
+	 */
+	public static ThreadFactory threadFactory(String kind) {
+		if (PLATFORM.equals(kind)) return Thread::new;
+		if (VIRTUAL.equals(kind)) return virtualThreadFactory();
+		throw new IllegalArgumentException("unknown kind of threads: " + kind + " (expected platform or virtual)");
+	}
+
+	@Override
+	public void start(Handler h) throws IOException {
+		handler = h;
+		serverSocket = new ServerSocket(port, ACCEPT_BACKLOG);
+		serverThread = new Thread(() -> runServer());
+		serverThread.start();
+		startMonitor();
+	}
+
+	@Override
+	public void close() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		stopMonitor();
+	}
+
+	private void runServer() {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket client = serverSocket.accept();
+				if (!admit()) {
+					client.close();
+					continue;
+				}
+				client.setKeepAlive(true);
+				new ClientHandler(client);
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * A stream that adds whatever is written through it to {@link #bytesOut}.
+	 */
+	private class CountingOutputStream extends FilterOutputStream {
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			bytesOut.increment();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			bytesOut.add(len);
+		}
+	}
+
+	private class ClientHandler extends Connection {
+		private final Socket connection;
+		private final ElementQueue queue = getQueueSettings().create();
+		private volatile BackgroundXMLObjectStream outputStream;
+
+		public ClientHandler(Socket client){
+			connection = client;
+			threadFactory.newThread(() -> doInput()).start();
+		}
+
+		@Override
+		protected void startOutput(Map<String,String> attributes) {
+			try {
+				outputStream = new BackgroundXMLObjectStream(new CountingOutputStream(connection.getOutputStream()), "Requests", attributes, threadFactory, queue);
+				outputStream.setBatching(maxBatch, linger);
+			} catch (IOException e) {
+				e.printStackTrace();
+				abort();
+			}
+		}
+
+		@Override
+		public boolean write(EncodedElement e) {
+			return write(e, System.nanoTime());
+		}
+
+		@Override
+		public boolean write(EncodedElement e, long since) {
+			if (queue.offer(e, since)) return true;
+			if (queue.isOverflowed()) {
+				// slow consumer: closing the socket ends the input thread too.
+				abort();
+			}
+			return false;
+		}
+
+		@Override
+		public ElementQueue getOutputQueue() {
+			return queue;
+		}
+
+		@Override
+		public void close() {
+			queue.close();
+			// without an output thread, nothing else will close the socket
+			if (outputStream == null) abort();
+		}
+
+		@Override
+		protected void abort() {
+			try {
+				connection.close();
+			} catch (IOException ex) {
+				// muffle: nothing else to do
+			}
+		}
+
+		/**
+		 * Read until the client ends the top-level element,
+		 * or the connection is closed.
+		 */
+		private void doInput() {
+			try {
+				InputStream in = connection.getInputStream();
+				byte[] buf = new byte[READ_BUFFER_SIZE];
+				int n;
+				while (!isInputDone() && (n = in.read(buf)) >= 0) {
+					input(buf, 0, n);
+					long pause = takePause();
+					if (pause > 0) LockSupport.parkNanos(pause);
+				}
+			} catch (IOException e) {
+				if (!connection.isClosed()) e.printStackTrace();
+			}
+			killClient();
+		}
+
+		private void killClient() {
+			close();
+			closed();
+			if (getUser() != null) handler.disconnected(this);
+		}
+	}
+}